@@ -0,0 +1,61 @@
+package outlinc.benchmarks;
+
+import org.apache.curator.test.TestingServer;
+import outlinc.discovery.CuratorBroker;
+import outlinc.discovery.ServiceEntity;
+import outlinc.discovery.ServiceRegistry;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * An in-process ZooKeeper and a broker connected to it, with instances registered on made-up ports
+ */
+public final class Discovery implements Closeable {
+
+    private final TestingServer zk;
+    private final CuratorBroker<String> broker;
+
+    public Discovery(String providerStrategy) throws Exception {
+        this.zk = new TestingServer();
+        Properties props = new Properties();
+        props.setProperty("discovery.curator.connectString", zk.getConnectString());
+        props.setProperty("discovery.curator.basePath", "/outlinc-benchmarks");
+        props.setProperty("discovery.curator.providerStrategy", providerStrategy);
+        this.broker = new CuratorBroker<String>(props, String.class);
+    }
+
+    public CuratorBroker<String> broker() {
+        return broker;
+    }
+
+    /**
+     * Register instances of a service at 127.0.0.1, from port 20000 on, and wait for the broker to produce them
+     */
+    public void register(String serviceName, int instances) throws InterruptedException {
+        ServiceRegistry<String> registry = broker.registry();
+        for (int i = 0; i < instances; i++) {
+            registry.register(new ServiceEntity.Builder<String>()
+                .name(serviceName)
+                .host("127.0.0.1")
+                .port(20000 + i)
+                .content(serviceName + '#' + i)
+                .build());
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (broker.produce(serviceName) == null || broker.produceAll(serviceName).size() < instances) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Instances of " + serviceName + " not produced");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        broker.close();
+        zk.close();
+    }
+
+}
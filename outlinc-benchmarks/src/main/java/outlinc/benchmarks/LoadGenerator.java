@@ -0,0 +1,284 @@
+package outlinc.benchmarks;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.HdrHistogram.Recorder;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Open-loop load from one event loop: requests start on a fixed schedule whether the earlier ones
+ * responded or not, and their latency counts from the time they were due, so a stalled proxy is
+ * not hidden by requests that were never sent. Requests wait for a connection once the limit of
+ * connections is reached, only accessed from its event loop
+ */
+final class LoadGenerator implements Runnable {
+
+    private static final int BODY_MAX = 16 * 1024 * 1024;
+    private static final ByteBuf BODY = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(new byte[BODY_MAX]));
+
+    private final EventLoop loop;
+    private final Bootstrap bootstrap;
+    private final Stats stats;
+    private final String host;
+    private final String path;
+    private final int[] requestBytes;
+    private final int[] responseBytes;
+    private final int keepAlivePercent;
+    private final int connectionsMax;
+    private final long intervalNanos;
+    private final long total;
+    private final long measureFrom;
+    private final long start;
+    private final Queue<Conn> idle = new ArrayDeque<Conn>();
+    private final Queue<Request> pending = new ArrayDeque<Request>();
+    private int connections;
+    private long sent;
+    private volatile ScheduledFuture<?> ticks;
+
+    /**
+     * @param rate        requests per second of this generator
+     * @param start       {@link System#nanoTime()} the first request is due
+     * @param measureFrom {@link System#nanoTime()} from which the requests due are measured
+     * @param end         {@link System#nanoTime()} the requests stop
+     */
+    LoadGenerator(EventLoop loop, InetSocketAddress proxy, String service, LoadTestConfig config, Stats stats,
+                  double rate, int connectionsMax, long start, long measureFrom, long end) {
+        this.loop = loop;
+        this.stats = stats;
+        this.host = proxy.getAddress().getHostAddress() + ':' + proxy.getPort();
+        this.path = '/' + service + '/';
+        this.requestBytes = sizes(config.getRequestBytes());
+        this.responseBytes = sizes(config.getResponseBytes());
+        this.keepAlivePercent = Math.max(0, Math.min(100, config.getKeepAlivePercent()));
+        this.connectionsMax = Math.max(1, connectionsMax);
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        this.total = (end - start) / intervalNanos;
+        this.start = start;
+        this.measureFrom = measureFrom;
+        this.bootstrap = new Bootstrap()
+            .group(loop)
+            .channel(NioSocketChannel.class)
+            .option(ChannelOption.TCP_NODELAY, true)
+            .remoteAddress(proxy)
+            .handler(new ChannelInitializer<Channel>() {
+                @Override
+                protected void initChannel(Channel ch) throws Exception {
+                    ch.pipeline().addLast(new HttpClientCodec());
+                    ch.pipeline().addLast(new Conn());
+                }
+            });
+    }
+
+    void start() {
+        long delay = Math.max(0, start - System.nanoTime());
+        ticks = loop.scheduleAtFixedRate(this, delay, Math.min(intervalNanos, TimeUnit.MILLISECONDS.toNanos(1)),
+            TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Start the requests due by now
+     */
+    @Override
+    public void run() {
+        long now = System.nanoTime();
+        while (sent < total) {
+            long due = start + sent * intervalNanos;
+            if (due > now) {
+                return;
+            }
+            int index = (int) (sent % (requestBytes.length * responseBytes.length));
+            /* Spread evenly, keepAlivePercent of any 100 requests in a row */
+            boolean keepAlive = (sent + 1) * keepAlivePercent / 100 != sent * keepAlivePercent / 100;
+            pending.add(new Request(due, requestBytes[index % requestBytes.length],
+                responseBytes[index / requestBytes.length], keepAlive));
+            stats.started.incrementAndGet();
+            sent++;
+            drain();
+        }
+        if (ticks != null) {
+            ticks.cancel(false);
+        }
+    }
+
+    /**
+     * Send waiting requests on idle connections, or on new ones under the limit
+     */
+    private void drain() {
+        while (!pending.isEmpty()) {
+            Request req = pending.peek();
+            if (req.keepAlive && !idle.isEmpty()) {
+                pending.poll();
+                idle.poll().send(req);
+            } else if (connections < connectionsMax) {
+                pending.poll();
+                connect(req);
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void connect(final Request req) {
+        connections++;
+        bootstrap.connect().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    future.channel().pipeline().get(Conn.class).send(req);
+                } else {
+                    connections--;
+                    stats.failed(req.due >= measureFrom);
+                    drain();
+                }
+            }
+        });
+    }
+
+    private static int[] sizes(String spec) {
+        String[] parts = spec.split(",");
+        int[] sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            sizes[i] = Math.max(0, Math.min(BODY_MAX, Integer.parseInt(parts[i].trim())));
+        }
+        return sizes;
+    }
+
+    private static final class Request {
+        final long due;
+        final int requestBytes;
+        final int responseBytes;
+        final boolean keepAlive;
+
+        Request(long due, int requestBytes, int responseBytes, boolean keepAlive) {
+            this.due = due;
+            this.requestBytes = requestBytes;
+            this.responseBytes = responseBytes;
+            this.keepAlive = keepAlive;
+        }
+    }
+
+    /**
+     * A connection to the proxy, one request at a time
+     */
+    private final class Conn extends SimpleChannelInboundHandler<HttpObject> {
+        private ChannelHandlerContext ctx;
+        private Request current;
+        private long sentAt;
+        private boolean ok;
+        private boolean reusable;
+        private long bytes;
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+            this.ctx = ctx;
+        }
+
+        void send(Request req) {
+            current = req;
+            sentAt = System.nanoTime();
+            bytes = 0;
+            HttpMethod method = req.requestBytes > 0 ? HttpMethod.POST : HttpMethod.GET;
+            FullHttpRequest msg = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, method,
+                path + req.responseBytes, BODY.slice(0, req.requestBytes));
+            msg.headers().set(HttpHeaderNames.HOST, host);
+            if (req.requestBytes > 0) {
+                HttpUtil.setContentLength(msg, req.requestBytes);
+            }
+            HttpUtil.setKeepAlive(msg, req.keepAlive);
+            ctx.writeAndFlush(msg, ctx.voidPromise());
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) throws Exception {
+            if (current == null) {
+                return;
+            }
+            if (msg instanceof HttpResponse) {
+                HttpResponse res = (HttpResponse) msg;
+                ok = res.status().code() / 100 == 2;
+                reusable = current.keepAlive && HttpUtil.isKeepAlive(res);
+            }
+            if (msg instanceof HttpContent) {
+                bytes += ((HttpContent) msg).content().readableBytes();
+            }
+            if (msg instanceof LastHttpContent) {
+                Request req = current;
+                current = null;
+                long now = System.nanoTime();
+                stats.done(req.due >= measureFrom, ok, now - req.due, now - sentAt, bytes);
+                if (reusable) {
+                    idle.add(this);
+                    drain();
+                } else {
+                    ctx.close();
+                }
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            connections--;
+            idle.remove(this);
+            if (current != null) {
+                stats.failed(current.due >= measureFrom);
+                current = null;
+            }
+            drain();
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            ctx.close();
+        }
+    }
+
+    /**
+     * Results of all the generators
+     */
+    static final class Stats {
+        /**
+         * Microseconds from the time requests were due, and from the time they were sent
+         */
+        final Recorder latency = new Recorder(3);
+        final Recorder serviceTime = new Recorder(3);
+        final AtomicLong started = new AtomicLong();
+        final AtomicLong finished = new AtomicLong();
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+
+        void done(boolean measured, boolean ok, long latencyNanos, long serviceNanos, long bytes) {
+            finished.incrementAndGet();
+            if (!measured) {
+                return;
+            }
+            if (ok) {
+                completed.incrementAndGet();
+                latency.recordValue(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+                serviceTime.recordValue(TimeUnit.NANOSECONDS.toMicros(serviceNanos));
+                this.bytes.addAndGet(bytes);
+            } else {
+                errors.incrementAndGet();
+            }
+        }
+
+        void failed(boolean measured) {
+            finished.incrementAndGet();
+            if (measured) {
+                errors.incrementAndGet();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+package outlinc.benchmarks;
+
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.HdrHistogram.Histogram;
+import org.apache.curator.test.TestingServer;
+import org.skife.config.ConfigurationObjectFactory;
+import outlinc.discovery.CuratorBroker;
+import outlinc.discovery.ServiceEntity;
+import outlinc.discovery.ServiceRegistry;
+import outlinc.proxy.HttpProxyServer;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test of the proxy on one box: an in-process ZooKeeper, stub backends registered in it and
+ * the proxy in front of them, under an open-loop load of {@link LoadTestConfig}. Reports the
+ * throughput and the latency percentiles, from the time each request was due and from the time
+ * it was sent. Settings come from a properties file given as the first argument, and from
+ * {@code -Dload.*}, {@code -Dproxy.*} and {@code -Ddiscovery.*} system properties over it
+ */
+public final class LoadTest {
+
+    private static final String SERVICE = "stub";
+
+    private final Properties props;
+    private final LoadTestConfig config;
+    private final PrintStream out;
+
+    private LoadTest(Properties props, PrintStream out) {
+        this.props = props;
+        this.config = new ConfigurationObjectFactory(props).build(LoadTestConfig.class);
+        this.out = out;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties props = new Properties();
+        if (args.length > 0) {
+            InputStream inp = new FileInputStream(args[0]);
+            try {
+                props.load(inp);
+            } finally {
+                inp.close();
+            }
+        }
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("load.") || name.startsWith("proxy.") || name.startsWith("discovery.")) {
+                props.setProperty(name, System.getProperty(name));
+            }
+        }
+        new LoadTest(props, System.out).run();
+        /* Curator and ZooKeeper threads left behind are not daemons */
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        TestingServer zk = new TestingServer();
+        props.setProperty("discovery.curator.connectString", zk.getConnectString());
+        if (!props.containsKey("discovery.curator.basePath")) {
+            props.setProperty("discovery.curator.basePath", "/outlinc-load-test");
+        }
+        NioEventLoopGroup backendGroup = new NioEventLoopGroup();
+        CuratorBroker<String> registrar = new CuratorBroker<String>(props, String.class);
+        ServiceRegistry<String> registry = registrar.registry();
+        for (int i = 0; i < config.getBackends(); i++) {
+            int port = StubBackend.start(backendGroup, config.getBackendDelayMs());
+            registry.register(new ServiceEntity.Builder<String>()
+                .name(SERVICE)
+                .host("127.0.0.1")
+                .port(port)
+                .content(SERVICE + '#' + i)
+                .build());
+        }
+        int proxyPort = config.getProxyPort() > 0 ? config.getProxyPort() : freePort();
+        if (!props.containsKey("proxy.http.host")) {
+            props.setProperty("proxy.http.host", "127.0.0.1");
+        }
+        props.setProperty("proxy.http.port", String.valueOf(proxyPort));
+        HttpProxyServer proxy = new HttpProxyServer(props);
+        proxy.start();
+        InetSocketAddress address = new InetSocketAddress(props.getProperty("proxy.http.host"), proxyPort);
+        NioEventLoopGroup clientGroup = new NioEventLoopGroup(Math.max(1, config.getThreads()));
+        try {
+            load(address, clientGroup);
+        } finally {
+            clientGroup.shutdownGracefully().awaitUninterruptibly();
+            proxy.stop();
+            registrar.close();
+            backendGroup.shutdownGracefully().awaitUninterruptibly();
+            zk.close();
+        }
+    }
+
+    private void load(InetSocketAddress proxy, NioEventLoopGroup group) throws InterruptedException {
+        int threads = Math.max(1, config.getThreads());
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(config.getWarmupSeconds());
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(config.getDurationSeconds());
+        LoadGenerator.Stats stats = new LoadGenerator.Stats();
+        out.printf("%d backends, %d req/s for %d s after %d s of warm-up, %d connections at most, "
+                + "%d%% keep-alive, request bytes %s, response bytes %s%n", config.getBackends(), config.getRate(),
+            config.getDurationSeconds(), config.getWarmupSeconds(), config.getConnections(),
+            config.getKeepAlivePercent(), config.getRequestBytes(), config.getResponseBytes());
+        for (int i = 0; i < threads; i++) {
+            new LoadGenerator(group.next(), proxy, SERVICE, config, stats, (double) config.getRate() / threads,
+                Math.max(1, config.getConnections() / threads), start, measureFrom, end).start();
+        }
+        Histogram latency = new Histogram(3);
+        Histogram serviceTime = new Histogram(3);
+        Histogram interval = null;
+        Histogram serviceInterval = null;
+        long finished = 0;
+        long grace = end + TimeUnit.SECONDS.toNanos(10);
+        for (int second = 1; ; second++) {
+            long next = start + TimeUnit.SECONDS.toNanos(second);
+            TimeUnit.NANOSECONDS.sleep(Math.max(0, next - System.nanoTime()));
+            interval = stats.latency.getIntervalHistogram(interval);
+            serviceInterval = stats.serviceTime.getIntervalHistogram(serviceInterval);
+            latency.add(interval);
+            serviceTime.add(serviceInterval);
+            long now = stats.finished.get();
+            out.printf("%4d s %s %8d req/s  p99 %9s ms  errors %d%n", second, next <= measureFrom ? "warm-up" : "       ",
+                now - finished, interval.getTotalCount() > 0 ? millis(interval.getValueAtPercentile(99)) : "-",
+                stats.errors.get());
+            finished = now;
+            if (next >= end && (stats.finished.get() >= stats.started.get() || next >= grace)) {
+                break;
+            }
+        }
+        report(stats, latency, serviceTime);
+    }
+
+    private void report(LoadGenerator.Stats stats, Histogram latency, Histogram serviceTime) {
+        double seconds = config.getDurationSeconds();
+        out.printf("%nRequests %d completed, %d errors, %d unfinished%n", stats.completed.get(), stats.errors.get(),
+            stats.started.get() - stats.finished.get());
+        out.printf("Throughput %.1f req/s, %.2f MB/s of response bodies%n", stats.completed.get() / seconds,
+            stats.bytes.get() / seconds / 1024 / 1024);
+        out.printf("%-14s %9s %9s %9s %9s %9s %9s%n", "Latency ms", "p50", "p90", "p99", "p99.9", "p99.99", "max");
+        row("from due", latency);
+        row("from sent", serviceTime);
+    }
+
+    private void row(String name, Histogram h) {
+        out.printf("%-14s %9s %9s %9s %9s %9s %9s%n", name, millis(h.getValueAtPercentile(50)),
+            millis(h.getValueAtPercentile(90)), millis(h.getValueAtPercentile(99)),
+            millis(h.getValueAtPercentile(99.9)), millis(h.getValueAtPercentile(99.99)), millis(h.getMaxValue()));
+    }
+
+    private static String millis(long micros) {
+        return String.format("%.3f", micros / 1000.0);
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+package outlinc.benchmarks;
+
+import org.skife.config.Config;
+import org.skife.config.Default;
+
+/**
+ * Settings of {@link LoadTest}, the {@code proxy.*} and {@code discovery.*} ones go to the proxy
+ */
+public interface LoadTestConfig {
+
+    /**
+     * Stub backends registered as the service {@code stub}
+     */
+    @Config("load.backends")
+    @Default("4")
+    int getBackends();
+
+    /**
+     * Milliseconds a backend waits before responding
+     */
+    @Config("load.backend.delay.ms")
+    @Default("0")
+    long getBackendDelayMs();
+
+    /**
+     * Requests started per second, whether the earlier ones responded or not
+     */
+    @Config("load.rate")
+    @Default("5000")
+    int getRate();
+
+    @Config("load.duration.seconds")
+    @Default("30")
+    int getDurationSeconds();
+
+    /**
+     * Seconds of load before the measurement starts
+     */
+    @Config("load.warmup.seconds")
+    @Default("5")
+    int getWarmupSeconds();
+
+    /**
+     * Connections to the proxy open at most, requests wait for one beyond
+     */
+    @Config("load.connections")
+    @Default("256")
+    int getConnections();
+
+    /**
+     * Percent of the requests sent on a kept-alive connection, the others on a new connection closed after
+     */
+    @Config("load.keepalive.percent")
+    @Default("100")
+    int getKeepAlivePercent();
+
+    /**
+     * Bytes of the request bodies, comma separated sizes taken in turn, a GET without a body for 0
+     */
+    @Config("load.request.bytes")
+    @Default("0")
+    String getRequestBytes();
+
+    /**
+     * Bytes of the response bodies, comma separated sizes taken in turn
+     */
+    @Config("load.response.bytes")
+    @Default("1024")
+    String getResponseBytes();
+
+    /**
+     * Threads sending the load
+     */
+    @Config("load.threads")
+    @Default("2")
+    int getThreads();
+
+    /**
+     * Port of the proxy, a free one for 0
+     */
+    @Config("load.proxy.port")
+    @Default("0")
+    int getProxyPort();
+
+}
@@ -0,0 +1,96 @@
+package outlinc.benchmarks;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.*;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Backend answering {@code /<service>/<bytes>} with a body of that many bytes,
+ * after a fixed delay, to any method
+ */
+final class StubBackend {
+
+    private static final int BODY_MAX = 16 * 1024 * 1024;
+    private static final ByteBuf BODY = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(new byte[BODY_MAX]));
+
+    private StubBackend() {
+    }
+
+    /**
+     * @return the port listened on
+     */
+    static int start(NioEventLoopGroup group, final long delayMs) throws InterruptedException {
+        ServerBootstrap boot = new ServerBootstrap()
+            .group(group)
+            .channel(NioServerSocketChannel.class)
+            .childOption(ChannelOption.TCP_NODELAY, true)
+            .childHandler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel ch) throws Exception {
+                    ch.pipeline().addLast(new HttpServerCodec());
+                    ch.pipeline().addLast(new HttpObjectAggregator(BODY_MAX));
+                    ch.pipeline().addLast(new Handler(delayMs));
+                }
+            });
+        Channel ch = boot.bind("127.0.0.1", 0).sync().channel();
+        return ((InetSocketAddress) ch.localAddress()).getPort();
+    }
+
+    private static final class Handler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        private final long delayMs;
+
+        Handler(long delayMs) {
+            this.delayMs = delayMs;
+        }
+
+        @Override
+        protected void channelRead0(final ChannelHandlerContext ctx, FullHttpRequest req) throws Exception {
+            final boolean keepAlive = HttpUtil.isKeepAlive(req);
+            final int bytes = size(req.uri());
+            if (delayMs > 0) {
+                ctx.executor().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        respond(ctx, bytes, keepAlive);
+                    }
+                }, delayMs, TimeUnit.MILLISECONDS);
+            } else {
+                respond(ctx, bytes, keepAlive);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            ctx.close();
+        }
+
+        private static void respond(ChannelHandlerContext ctx, int bytes, boolean keepAlive) {
+            FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                BODY.slice(0, bytes));
+            HttpUtil.setContentLength(res, bytes);
+            HttpUtil.setKeepAlive(res, keepAlive);
+            ChannelFuture future = ctx.writeAndFlush(res);
+            if (!keepAlive) {
+                future.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        private static int size(String uri) {
+            int index = uri.lastIndexOf('/');
+            try {
+                return Math.max(0, Math.min(BODY_MAX, Integer.parseInt(uri.substring(index + 1))));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+package outlinc.discovery;
+
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.UriSpec;
+import org.apache.curator.x.discovery.details.JsonInstanceSerializer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and writing the node of an instance, as JSON and in the binary form
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstanceSerializerBenchmark {
+
+    private ServiceInstance<String> instance;
+    private JsonInstanceSerializer<String> json;
+    private BinaryInstanceSerializer<String> binary;
+    private byte[] jsonBytes;
+    private byte[] binaryBytes;
+
+    @Setup
+    public void setUp() throws Exception {
+        instance = ServiceInstance.<String>builder()
+            .name("bench")
+            .address("127.0.0.1")
+            .port(20000)
+            .payload("bench#0")
+            .uriSpec(new UriSpec("{scheme}://{address}:{port}"))
+            .build();
+        json = new JsonInstanceSerializer<String>(String.class);
+        binary = new BinaryInstanceSerializer<String>(String.class, true);
+        jsonBytes = json.serialize(instance);
+        binaryBytes = binary.serialize(instance);
+    }
+
+    @Benchmark
+    public byte[] writeJson() throws Exception {
+        return json.serialize(instance);
+    }
+
+    @Benchmark
+    public byte[] writeBinary() throws Exception {
+        return binary.serialize(instance);
+    }
+
+    @Benchmark
+    public ServiceInstance<String> readJson() throws Exception {
+        return json.deserialize(jsonBytes);
+    }
+
+    @Benchmark
+    public ServiceInstance<String> readBinary() throws Exception {
+        return binary.deserialize(binaryBytes);
+    }
+
+}
@@ -0,0 +1,93 @@
+package outlinc.discovery;
+
+import org.apache.curator.x.discovery.ProviderStrategy;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceProvider;
+import org.apache.curator.x.discovery.strategies.RandomStrategy;
+import org.apache.curator.x.discovery.strategies.RoundRobinStrategy;
+import org.apache.curator.x.discovery.strategies.StickyStrategy;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picking an instance with each {@link ServiceProducer.Strategy}, apart from ZooKeeper and the provider cache
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProviderStrategyBenchmark {
+
+    @Param({"RoundRobin", "Random", "Sticky", "LeastOutstanding", "ConsistentHash"})
+    public ServiceProducer.Strategy strategy;
+
+    @Param({"4", "32"})
+    public int instances;
+
+    private InstanceProvider<String> provider;
+    private List<ServiceInstance<String>> list;
+    private ProviderStrategy<String> picker;
+    private LeastOutstandingStrategy<String> leastOutstanding;
+    private ConsistentHashStrategy<String> consistentHash;
+    private String[] keys;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        list = new ArrayList<ServiceInstance<String>>();
+        for (int i = 0; i < instances; i++) {
+            list.add(ServiceInstance.<String>builder().name("bench").address("127.0.0.1").port(20000 + i).build());
+        }
+        provider = new InstanceProvider<String>() {
+            @Override
+            public List<ServiceInstance<String>> getInstances() throws Exception {
+                return list;
+            }
+        };
+        keys = new String[1024];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "user-" + i;
+        }
+        switch (strategy) {
+            case Random:
+                picker = new RandomStrategy<String>();
+                break;
+            case Sticky:
+                picker = new StickyStrategy<String>(new RandomStrategy<String>());
+                break;
+            case LeastOutstanding:
+                picker = leastOutstanding = new LeastOutstandingStrategy<String>(10000);
+                break;
+            case ConsistentHash:
+                picker = consistentHash = new ConsistentHashStrategy<String>(160);
+                /* The ring is built for the first key, then reused while the instances stay the same */
+                consistentHash.getInstance(list, keys[0]);
+                break;
+            default:
+                picker = new RoundRobinStrategy<String>();
+        }
+    }
+
+    @Benchmark
+    public ServiceInstance<String> getInstance(Cursor cursor) throws Exception {
+        if (consistentHash != null) {
+            return consistentHash.getInstance(list, keys[cursor.next++ & (keys.length - 1)]);
+        }
+        ServiceInstance<String> instance = picker.getInstance(provider);
+        if (leastOutstanding != null) {
+            leastOutstanding.start(instance.getId());
+            leastOutstanding.finish(instance.getId(), 1000000L);
+        }
+        return instance;
+    }
+
+}
@@ -0,0 +1,65 @@
+package outlinc.discovery;
+
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.UriSpec;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the {@link ServiceEntity} handed out for each request
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceEntityBenchmark {
+
+    private ServiceInstance<String> instance;
+
+    @Setup
+    public void setUp() throws Exception {
+        instance = ServiceInstance.<String>builder()
+            .name("bench")
+            .address("127.0.0.1")
+            .port(20000)
+            .payload("bench#0")
+            .uriSpec(new UriSpec("{scheme}://{address}:{port}"))
+            .build();
+    }
+
+    @Benchmark
+    public ServiceEntity<String> build() {
+        return new ServiceEntity.Builder<String>()
+            .instanceId(instance.getId())
+            .name(instance.getName())
+            .host(instance.getAddress())
+            .port(instance.getPort())
+            .sslPort(instance.getSslPort())
+            .content(instance.getPayload())
+            .enabled(instance.isEnabled())
+            .registerUTC(instance.getRegistrationTimeUTC())
+            .build();
+    }
+
+    /**
+     * The same with the uri spec of the instance built, as the broker does
+     */
+    @Benchmark
+    public ServiceEntity<String> buildWithUri() {
+        return new ServiceEntity.Builder<String>()
+            .instanceId(instance.getId())
+            .name(instance.getName())
+            .host(instance.getAddress())
+            .port(instance.getPort())
+            .sslPort(instance.getSslPort())
+            .content(instance.getPayload())
+            .uri(instance.buildUriSpec())
+            .enabled(instance.isEnabled())
+            .registerUTC(instance.getRegistrationTimeUTC())
+            .build();
+    }
+
+}
@@ -0,0 +1,68 @@
+package outlinc.discovery;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import outlinc.benchmarks.Discovery;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link CuratorBroker#produce(String, ServiceProducer.Strategy, String)} from as many threads
+ * as event loops, with the load reported around each request as the proxy does
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ServiceProducerBenchmark {
+
+    private static final String SERVICE = "bench";
+
+    @Param({"RoundRobin", "Random", "LeastOutstanding", "ConsistentHash"})
+    public ServiceProducer.Strategy strategy;
+
+    @Param({"4", "32"})
+    public int instances;
+
+    private Discovery discovery;
+    private ServiceProducer<String> producer;
+    private String[] keys;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        discovery = new Discovery(strategy.name());
+        discovery.register(SERVICE, instances);
+        producer = discovery.broker().producer();
+        if (producer.produce(SERVICE, strategy, "warm") == null) {
+            throw new IllegalStateException("No instance of " + SERVICE);
+        }
+        keys = new String[1024];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "user-" + i;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        discovery.close();
+    }
+
+    @Benchmark
+    public ServiceEntity<String> produce() {
+        return producer.produce(SERVICE, strategy, keys[ThreadLocalRandom.current().nextInt(keys.length)]);
+    }
+
+    @Benchmark
+    public void produceReported(Blackhole bh) {
+        ServiceEntity<String> entity = producer.produce(SERVICE, strategy,
+            keys[ThreadLocalRandom.current().nextInt(keys.length)]);
+        producer.reportStart(entity);
+        producer.reportFinish(entity, 1000000L, false);
+        bh.consume(entity);
+    }
+
+}
@@ -0,0 +1,100 @@
+package outlinc.proxy;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.*;
+import org.skife.config.ConfigurationObjectFactory;
+import outlinc.benchmarks.Discovery;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A request through the handlers of a downstream connection, from its bytes to the bytes of its
+ * response: decoding, the exchange, the response from the cache, metrics and encoding.
+ * The response is served from the cache, an {@link EmbeddedChannel} has no upstream to reach
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpProxyHandlerBenchmark {
+
+    @Param({"true", "false"})
+    public boolean streaming;
+
+    @Param({"128", "16384"})
+    public int responseBytes;
+
+    private Discovery discovery;
+    private HttpProxyCache cache;
+    private EmbeddedChannel channel;
+    private ByteBuf request;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        discovery = new Discovery("RoundRobin");
+        Properties props = new Properties();
+        props.setProperty("proxy.http.streaming", String.valueOf(streaming));
+        props.setProperty("proxy.http2", "false");
+        props.setProperty("proxy.cache", "true");
+        HttpProxyConfig config = new ConfigurationObjectFactory(props).build(HttpProxyConfig.class);
+        cache = new HttpProxyCache(config);
+        prime(cache, "/bench/item", responseBytes);
+        ChannelHandler[] handlers = HttpProxyHandler.newHandlers(config, discovery.broker(),
+            HttpProxyHandler.newPools(config, HttpProxyTransport.of(config)), cache,
+            null, null, null, null, new HttpProxyMetrics(config), null, null, null);
+        channel = new EmbeddedChannel(new HttpServerCodec());
+        channel.pipeline().addLast(handlers);
+        request = Unpooled.unreleasableBuffer(Unpooled.copiedBuffer(
+            "GET /bench/item HTTP/1.1\r\nHost: bench\r\nAccept: */*\r\n\r\n", CharsetUtil.US_ASCII));
+        if (exchange() == 0) {
+            throw new IllegalStateException("No response");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        channel.finishAndReleaseAll();
+        discovery.close();
+    }
+
+    /**
+     * @return bytes of the response
+     */
+    @Benchmark
+    public int exchange() {
+        channel.writeInbound(request.duplicate());
+        int bytes = 0;
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            if (msg instanceof ByteBuf) {
+                bytes += ((ByteBuf) msg).readableBytes();
+            }
+            ReferenceCountUtil.release(msg);
+        }
+        return bytes;
+    }
+
+    /**
+     * Store a fresh response as if it came from the upstream
+     */
+    private static void prime(HttpProxyCache cache, String uri, int bytes) {
+        HttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        HttpProxyCache.Exchange ex = cache.lookup(HttpProxyHandler.serviceName(uri), req);
+        FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+            Unpooled.wrappedBuffer(new byte[bytes]));
+        res.headers().set(HttpHeaderNames.CACHE_CONTROL, "max-age=86400");
+        HttpUtil.setContentLength(res, bytes);
+        ReferenceCountUtil.release(ex.onResponse(res, true));
+        ex.release();
+    }
+
+}
@@ -0,0 +1,92 @@
+package outlinc.proxy;
+
+import io.netty.handler.codec.http.*;
+import org.openjdk.jmh.annotations.*;
+import outlinc.benchmarks.Discovery;
+import outlinc.discovery.ServiceEntity;
+import outlinc.discovery.ServiceProducer;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routing a request to an instance: the service name out of its uri or out of a routing table,
+ * its hash key, and the instance produced for them
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpProxyRoutingBenchmark {
+
+    @Param({"/bench", "/bench/users/42?fields=name&sort=asc", "/bench/a/very/long/path/to/some/resource/of/the/service"})
+    public String uri;
+
+    private Discovery discovery;
+    private ServiceProducer<String> producer;
+    private HttpRequest request;
+    private HttpProxyHashKey hashKey;
+    private HttpProxyRoutes routes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        discovery = new Discovery("ConsistentHash");
+        discovery.register("bench", 8);
+        producer = discovery.broker().producer();
+        request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        request.headers().set(HttpHeaderNames.HOST, "bench.example.org:8081");
+        request.headers().set("X-User", "user-42");
+        hashKey = HttpProxyHashKey.parse("header:X-User");
+        Properties props = new Properties();
+        props.setProperty("proxy.route.api.host", "api.example.com");
+        props.setProperty("proxy.route.api.service", "api");
+        props.setProperty("proxy.route.web.host", "*.example.com");
+        props.setProperty("proxy.route.web.service", "web");
+        props.setProperty("proxy.route.bench.path", "/bench");
+        props.setProperty("proxy.route.bench.service", "bench");
+        props.setProperty("proxy.route.users.path", "/bench/users/");
+        props.setProperty("proxy.route.users.header.X-Admin", "*");
+        props.setProperty("proxy.route.users.service", "users");
+        props.setProperty("proxy.route.default.service", "default");
+        routes = HttpProxyRoutes.parse(props);
+        if (!"bench".equals(routes.route(request))) {
+            throw new IllegalStateException("Bad route of " + uri);
+        }
+        if (HttpProxyHandler.fetchService("bench", request, producer, null) == null) {
+            throw new IllegalStateException("No instance of bench");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        discovery.close();
+    }
+
+    @Benchmark
+    public String serviceName() {
+        return HttpProxyHandler.serviceName(request.uri());
+    }
+
+    @Benchmark
+    public String route() {
+        return routes.route(request);
+    }
+
+    @Benchmark
+    public String hashKey() {
+        return hashKey.of(request);
+    }
+
+    @Benchmark
+    public ServiceEntity<String> fetchService() {
+        return HttpProxyHandler.fetchService("bench", request, producer, null);
+    }
+
+    @Benchmark
+    public ServiceEntity<String> fetchServiceHashed() {
+        return HttpProxyHandler.fetchService("bench", request, producer, hashKey);
+    }
+
+}
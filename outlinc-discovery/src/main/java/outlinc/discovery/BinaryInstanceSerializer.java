@@ -0,0 +1,212 @@
+package outlinc.discovery;
+
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.ServiceType;
+import org.apache.curator.x.discovery.UriSpec;
+import org.apache.curator.x.discovery.details.InstanceSerializer;
+import org.apache.curator.x.discovery.details.JsonInstanceSerializer;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Instances in a compact binary form, decoded without data binding. Nodes written as JSON by
+ * {@link JsonInstanceSerializer} are still read, and the instances can be written as JSON too,
+ * so that all clients read both before any writes the binary form.
+ * <p>
+ * The binary form is a marker byte never starting JSON, a version, flags of the optional fields,
+ * then the name, the id, the address, the ports, the registration time, the service type, the
+ * parts of the uri spec and the payload after its length. String payloads are written as UTF-8,
+ * others as JSON.
+ */
+final class BinaryInstanceSerializer<T> implements InstanceSerializer<T> {
+
+    /**
+     * Not valid UTF-8, nor the first byte of any JSON document
+     */
+    private static final byte MAGIC = (byte) 0xc1;
+    private static final byte VERSION = 1;
+    private static final int ADDRESS = 1;
+    private static final int PORT = 1 << 1;
+    private static final int SSL_PORT = 1 << 2;
+    private static final int PAYLOAD = 1 << 3;
+    private static final int URI_SPEC = 1 << 4;
+    private static final int ENABLED = 1 << 5;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final ServiceType[] SERVICE_TYPES = ServiceType.values();
+
+    private final Class<T> payloadClass;
+    private final boolean binary;
+    private final JsonInstanceSerializer<T> json;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * @param binary whether to write the binary form, or JSON
+     */
+    BinaryInstanceSerializer(Class<T> payloadClass, boolean binary) {
+        this.payloadClass = payloadClass;
+        this.binary = binary;
+        this.json = new JsonInstanceSerializer<T>(payloadClass);
+    }
+
+    @Override
+    public byte[] serialize(ServiceInstance<T> instance) throws Exception {
+        if (!binary) {
+            return json.serialize(instance);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        byte[] payload = instance.getPayload() != null ? writePayload(instance.getPayload()) : null;
+        int flags = (instance.getAddress() != null ? ADDRESS : 0)
+            | (instance.getPort() != null ? PORT : 0)
+            | (instance.getSslPort() != null ? SSL_PORT : 0)
+            | (payload != null ? PAYLOAD : 0)
+            | (instance.getUriSpec() != null ? URI_SPEC : 0)
+            | (instance.isEnabled() ? ENABLED : 0);
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(flags);
+        writeString(out, instance.getName());
+        writeString(out, instance.getId());
+        if (instance.getAddress() != null) {
+            writeString(out, instance.getAddress());
+        }
+        if (instance.getPort() != null) {
+            out.writeInt(instance.getPort());
+        }
+        if (instance.getSslPort() != null) {
+            out.writeInt(instance.getSslPort());
+        }
+        out.writeLong(instance.getRegistrationTimeUTC());
+        out.writeByte(instance.getServiceType() != null ? instance.getServiceType().ordinal() : -1);
+        if (instance.getUriSpec() != null) {
+            List<UriSpec.Part> parts = instance.getUriSpec().getParts();
+            out.writeShort(parts.size());
+            for (UriSpec.Part part : parts) {
+                out.writeBoolean(part.isVariable());
+                writeString(out, part.getValue());
+            }
+        }
+        if (payload != null) {
+            out.writeInt(payload.length);
+            out.write(payload);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public ServiceInstance<T> deserialize(byte[] bytes) throws Exception {
+        if (bytes.length == 0 || bytes[0] != MAGIC) {
+            return json.deserialize(bytes);
+        }
+        Reader in = new Reader(bytes);
+        in.pos = 1;
+        int version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unknown instance version " + version);
+        }
+        int flags = in.readByte();
+        String name = in.readString();
+        String id = in.readString();
+        String address = (flags & ADDRESS) != 0 ? in.readString() : null;
+        Integer port = (flags & PORT) != 0 ? in.readInt() : null;
+        Integer sslPort = (flags & SSL_PORT) != 0 ? in.readInt() : null;
+        long registrationTimeUTC = in.readLong();
+        int type = (byte) in.readByte();
+        if (type >= SERVICE_TYPES.length) {
+            throw new IOException("Unknown service type " + type);
+        }
+        UriSpec uriSpec = null;
+        if ((flags & URI_SPEC) != 0) {
+            uriSpec = new UriSpec();
+            for (int i = in.readShort(); i > 0; i--) {
+                boolean variable = in.readByte() != 0;
+                uriSpec.add(new UriSpec.Part(in.readString(), variable));
+            }
+        }
+        T payload = null;
+        if ((flags & PAYLOAD) != 0) {
+            int length = in.readInt();
+            payload = readPayload(bytes, in.skip(length), length);
+        }
+        return new ServiceInstance<T>(name, id, address, port, sslPort, payload, registrationTimeUTC,
+            type >= 0 ? SERVICE_TYPES[type] : null, uriSpec, (flags & ENABLED) != 0);
+    }
+
+    private byte[] writePayload(T payload) throws IOException {
+        if (payloadClass == String.class) {
+            return ((String) payload).getBytes(UTF_8);
+        }
+        return mapper.writeValueAsBytes(payload);
+    }
+
+    private T readPayload(byte[] b, int offset, int length) throws IOException {
+        if (payloadClass == String.class) {
+            return payloadClass.cast(new String(b, offset, length, UTF_8));
+        }
+        return mapper.readValue(b, offset, length, payloadClass);
+    }
+
+    /**
+     * UTF-8 after its length, unlike {@link DataOutput#writeUTF} read back without copies
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(UTF_8);
+        if (b.length > 0xffff) {
+            throw new IOException("String too long: " + b.length);
+        }
+        out.writeShort(b.length);
+        out.write(b);
+    }
+
+    /**
+     * Big-endian fields of an array, as written by {@link DataOutputStream}
+     */
+    private static final class Reader {
+        final byte[] b;
+        int pos;
+
+        Reader(byte[] b) {
+            this.b = b;
+        }
+
+        /**
+         * @return the offset of the bytes skipped
+         */
+        int skip(int length) throws IOException {
+            if (length < 0 || length > b.length - pos) {
+                throw new EOFException("Bad length " + length + " at " + pos);
+            }
+            int offset = pos;
+            pos += length;
+            return offset;
+        }
+
+        int readByte() throws IOException {
+            return b[skip(1)] & 0xff;
+        }
+
+        int readShort() throws IOException {
+            int i = skip(2);
+            return (b[i] & 0xff) << 8 | b[i + 1] & 0xff;
+        }
+
+        int readInt() throws IOException {
+            int i = skip(4);
+            return (b[i] & 0xff) << 24 | (b[i + 1] & 0xff) << 16 | (b[i + 2] & 0xff) << 8 | b[i + 3] & 0xff;
+        }
+
+        long readLong() throws IOException {
+            return (long) readInt() << 32 | readInt() & 0xffffffffL;
+        }
+
+        String readString() throws IOException {
+            int length = readShort();
+            return new String(b, skip(length), length, UTF_8);
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package outlinc.discovery;
+
+import org.apache.curator.x.discovery.ProviderStrategy;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceProvider;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Consistent hashing over a ring of virtual nodes, the same key goes to the same instance
+ * and only the keys of an instance joining or leaving move. Without a key it picks at random.
+ */
+public class ConsistentHashStrategy<Content> implements ProviderStrategy<Content> {
+
+    /**
+     * Random of each thread, one shared by all would contend on its seed
+     */
+    private static final ThreadLocal<Random> RANDOM = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    private final ConcurrentMap<String, Ring<Content>> rings = new ConcurrentHashMap<String, Ring<Content>>();
+    private final int replicas;
+
+    /**
+     * @param replicas virtual nodes of each instance on the ring
+     */
+    public ConsistentHashStrategy(int replicas) {
+        this.replicas = Math.max(1, replicas);
+    }
+
+    @Override
+    public ServiceInstance<Content> getInstance(InstanceProvider<Content> instanceProvider) throws Exception {
+        List<ServiceInstance<Content>> instances = instanceProvider.getInstances();
+        return instances.isEmpty() ? null : instances.get(RANDOM.get().nextInt(instances.size()));
+    }
+
+    /**
+     * @param instances available instances of one service
+     * @param key       key of the request
+     */
+    public ServiceInstance<Content> getInstance(Collection<ServiceInstance<Content>> instances, String key) {
+        if (instances.isEmpty()) {
+            return null;
+        }
+        String serviceName = first(instances).getName();
+        Ring<Content> ring = rings.get(serviceName);
+        if (ring == null || !ring.covers(instances)) {
+            ring = new Ring<Content>(instances, replicas);
+            rings.put(serviceName, ring);
+        }
+        return ring.get(hash(key));
+    }
+
+    /**
+     * Indexed lists are read without an iterator, it's on the path of every request
+     */
+    private static <Content> ServiceInstance<Content> first(Collection<ServiceInstance<Content>> instances) {
+        if (instances instanceof List && instances instanceof RandomAccess) {
+            return ((List<ServiceInstance<Content>>) instances).get(0);
+        }
+        return instances.iterator().next();
+    }
+
+    /**
+     * 64-bit FNV-1a, finished with the mix of MurmurHash3 to spread similar keys
+     */
+    static long hash(CharSequence s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Immutable ring of one set of instances, replaced as a whole when the set changes
+     */
+    private static final class Ring<Content> {
+        private final ServiceInstance<Content>[] instances;
+        private final long[] points;
+        private final ServiceInstance<Content>[] owners;
+
+        Ring(Collection<ServiceInstance<Content>> members, int replicas) {
+            this.instances = members.toArray(Ring.<Content>newArray(members.size()));
+            TreeMap<Long, ServiceInstance<Content>> nodes = new TreeMap<Long, ServiceInstance<Content>>();
+            for (ServiceInstance<Content> instance : instances) {
+                for (int i = 0; i < replicas; i++) {
+                    Long point = hash(instance.getId() + '#' + i);
+                    ServiceInstance<Content> prior = nodes.get(point);
+                    /* The rare collision goes to the same owner whatever the order of the instances */
+                    if (prior == null || prior.getId().compareTo(instance.getId()) > 0) {
+                        nodes.put(point, instance);
+                    }
+                }
+            }
+            this.points = new long[nodes.size()];
+            this.owners = newArray(nodes.size());
+            int i = 0;
+            for (Map.Entry<Long, ServiceInstance<Content>> node : nodes.entrySet()) {
+                points[i] = node.getKey();
+                owners[i++] = node.getValue();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <Content> ServiceInstance<Content>[] newArray(int size) {
+            return (ServiceInstance<Content>[]) new ServiceInstance<?>[size];
+        }
+
+        /**
+         * Whether the ring was built of these very instances, in the same order
+         */
+        boolean covers(Collection<ServiceInstance<Content>> members) {
+            if (members.size() != instances.length) {
+                return false;
+            }
+            if (members instanceof List && members instanceof RandomAccess) {
+                List<ServiceInstance<Content>> list = (List<ServiceInstance<Content>>) members;
+                for (int i = 0; i < instances.length; i++) {
+                    if (list.get(i) != instances[i]) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            int i = 0;
+            for (ServiceInstance<Content> instance : members) {
+                if (instance != instances[i++]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        ServiceInstance<Content> get(long hash) {
+            int index = Arrays.binarySearch(points, hash);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return owners[index < points.length ? index : 0];
+        }
+    }
+
+}
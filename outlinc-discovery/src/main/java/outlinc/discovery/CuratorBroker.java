@@ -4,10 +4,17 @@ import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.framework.api.CuratorEvent;
 import org.apache.curator.framework.api.CuratorListener;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
 import org.apache.curator.retry.RetryOneTime;
 import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.utils.ThreadUtils;
+import org.apache.curator.utils.ZKPaths;
 import org.apache.curator.x.discovery.*;
-import org.apache.curator.x.discovery.details.JsonInstanceSerializer;
+import org.apache.curator.x.discovery.details.InstanceSerializer;
 import org.apache.curator.x.discovery.strategies.RandomStrategy;
 import org.apache.curator.x.discovery.strategies.RoundRobinStrategy;
 import org.apache.curator.x.discovery.strategies.StickyStrategy;
@@ -16,13 +23,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
-import java.util.Properties;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.TimeUnit;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by wangkang on 17/06/2017
@@ -37,9 +40,65 @@ public class CuratorBroker<Content>
     private final static Logger log = LoggerFactory.getLogger(CuratorBroker.class);
     private final CuratorConfig config;
     private final Class<Content> contentClass;
+    /**
+     * Instances registered here or seen by a watch, forgotten once they left it
+     */
     private final ConcurrentMap<String, ServiceInstance<Content>> instanceMap;
-    private final ConcurrentMap<String, ServiceProvider<Content>> providerMap;
+    private final ConcurrentMap<String, InstanceCache<Content>> cacheMap;
+    /**
+     * Services registered here, known before the watch of {@link #serviceNames} tells
+     */
+    private final Set<String> registeredNames;
+    /**
+     * Instances registered here, kept until unregistered
+     */
+    private final Set<String> registeredIds;
+    private final LeastOutstandingStrategy<Content> leastOutstanding;
+    private final ConsistentHashStrategy<Content> consistentHash;
+    private final DownInstances<Content> downInstances;
+    private final InstanceSerializer<Content> serializer;
+    /**
+     * Null when no snapshot is kept
+     */
+    private final DiscoverySnapshot<Content> snapshot;
+    private final AtomicBoolean snapshotDirty = new AtomicBoolean();
+    private final InstanceCache.Listener<Content> published = new InstanceCache.Listener<Content>() {
+        @Override
+        public void published(List<ServiceInstance<Content>> instances, List<ServiceInstance<Content>> gone) {
+            for (ServiceInstance<Content> instance : instances) {
+                instanceMap.put(instance.getId(), instance);
+            }
+            for (ServiceInstance<Content> instance : gone) {
+                forget(instance.getId());
+            }
+            if (snapshot != null) {
+                scheduleSnapshot();
+            }
+        }
+    };
+    private ScheduledExecutorService snapshotWriter;
+    /**
+     * Registering and unregistering the instances of bulks, null until used
+     */
+    private ThreadPoolExecutor registerPool;
+    /**
+     * Starting the watches of the services, off the threads producing them
+     */
+    private ThreadPoolExecutor watchPool;
+    private CuratorFramework client;
     private ServiceDiscovery<Content> discovery;
+    /**
+     * Watch of the names of the services, so that producing an unknown one doesn't ask ZooKeeper
+     */
+    private PathChildrenCache serviceNames;
+    /**
+     * Whether {@link #serviceNames} were listed once
+     */
+    private volatile boolean serviceNamesReady;
+    /**
+     * Counted down once the discovery is told of the first connection, which registers again what was before
+     */
+    private volatile CountDownLatch connected = new CountDownLatch(1);
 
     public CuratorBroker(Class<Content> contentClass) {
         this(new Properties(), contentClass);
@@ -53,7 +112,15 @@ public class CuratorBroker<Content>
         this.config = config;
         this.contentClass = contentClass;
         this.instanceMap = new ConcurrentHashMap<String, ServiceInstance<Content>>();
-        this.providerMap = new ConcurrentHashMap<String, ServiceProvider<Content>>();
+        this.cacheMap = new ConcurrentHashMap<String, InstanceCache<Content>>();
+        this.registeredNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        this.registeredIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        this.leastOutstanding = new LeastOutstandingStrategy<Content>(config.getLatencyDecayMs());
+        this.consistentHash = new ConsistentHashStrategy<Content>(config.getHashReplicas());
+        this.downInstances = new DownInstances<Content>(config);
+        this.serializer = makeSerializer(config.getInstanceSerializer().trim(), contentClass);
+        String snapshotPath = config.getSnapshotPath().trim();
+        this.snapshot = snapshotPath.length() > 0 ? new DiscoverySnapshot<Content>(snapshotPath, serializer) : null;
     }
 
     @Override
@@ -63,11 +130,51 @@ public class CuratorBroker<Content>
 
     @Override
     public void close() throws IOException {
-        for (ServiceProvider<Content> provider : providerMap.values()) {
-            CloseableUtils.closeQuietly(provider);
+        ThreadPoolExecutor registering;
+        synchronized (this) {
+            registering = registerPool;
+            registerPool = null;
+            if (watchPool != null) {
+                watchPool.shutdownNow();
+                watchPool = null;
+            }
         }
-        providerMap.clear();
+        if (registering != null) {
+            /* Bulks in flight go on with the client, for a while */
+            registering.shutdown();
+            try {
+                if (!registering.awaitTermination(Math.max(2000, config.getConnectionTimeoutMs()), TimeUnit.MILLISECONDS)) {
+                    log.warn("Closing with bulk registrations still in flight");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (snapshotWriter != null) {
+            snapshotWriter.shutdownNow();
+            try {
+                /* A write in flight took the changes already, the file is renamed once it ends */
+                snapshotWriter.awaitTermination(Math.max(2000, config.getConnectionTimeoutMs()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            snapshotWriter = null;
+            if (snapshotDirty.getAndSet(false)) {
+                snapshot.write(snapshotView());
+            }
+        }
+        for (InstanceCache<Content> cache : cacheMap.values()) {
+            CloseableUtils.closeQuietly(cache);
+        }
+        cacheMap.clear();
         instanceMap.clear();
+        registeredNames.clear();
+        registeredIds.clear();
+        if (serviceNames != null) {
+            CloseableUtils.closeQuietly(serviceNames);
+            serviceNames = null;
+        }
+        serviceNamesReady = false;
         if (discovery != null) {
             CloseableUtils.closeQuietly(discovery);
             discovery = null;
@@ -98,34 +205,89 @@ public class CuratorBroker<Content>
 
     @Override
     public ServiceEntity<Content> produce(String serviceName, Strategy strategy) {
+        return produce(serviceName, strategy, null);
+    }
+
+    @Override
+    public ServiceEntity<Content> produce(String serviceName, Strategy strategy, String hashKey) {
         if (discovery == null) {
             return null;
         }
         ServiceInstance<Content> instance = null;
-        ServiceProvider<Content> provider = fetchProvider(serviceName, strategy);
-        if (provider != null) {
+        InstanceCache<Content> cache = fetchCache(serviceName);
+        if (cache != null) {
             try {
-                instance = provider.getInstance();
+                /* A half-open instance out of requests to let through is filtered out once refused */
+                for (int i = 0; i < 3; i++) {
+                    if (strategy == Strategy.ConsistentHash && hashKey != null) {
+                        instance = consistentHash.getInstance(cache.getInstances(), hashKey);
+                    } else {
+                        ProviderStrategy<Content> providerStrategy = cache.strategy(strategy);
+                        if (providerStrategy == null) {
+                            providerStrategy = cache.strategy(strategy, makeProviderStrategy(strategy));
+                        }
+                        instance = providerStrategy.getInstance(cache);
+                    }
+                    if (instance == null || downInstances.admit(instance.getId())) {
+                        break;
+                    }
+                    instance = null;
+                }
             } catch (Exception e) {
                 log.error(e.getMessage(), e);
-                providerMap.remove(serviceName);
             }
         }
-        if (instance != null) {
-            instanceMap.put(instance.getId(), instance);
-            return new ServiceEntity.Builder<Content>()
-                .instanceId(instance.getId())
-                .name(instance.getName())
-                .host(instance.getAddress())
-                .port(instance.getPort())
-                .sslPort(instance.getSslPort())
-                .content(instance.getPayload())
-                .uri(instance.buildUriSpec())
-                .enabled(instance.isEnabled())
-                .registerUTC(instance.getRegistrationTimeUTC())
-                .build();
+        return instance != null ? toEntity(cache.produced(instance)) : null;
+    }
+
+    @Override
+    public List<ServiceEntity<Content>> produceAll(String serviceName) {
+        List<ServiceEntity<Content>> entities = new ArrayList<ServiceEntity<Content>>();
+        if (discovery == null) {
+            return entities;
+        }
+        try {
+            InstanceCache<Content> cache = cacheMap.get(serviceName);
+            if (cache != null && cache.isLoaded()) {
+                for (ServiceInstance<Content> instance : cache.getAllInstances()) {
+                    entities.add(toEntity(cache.produced(instance)));
+                }
+            } else {
+                /* Fresh copies of the instances, known until a watch tells they left */
+                for (ServiceInstance<Content> instance : discovery.queryForInstances(serviceName)) {
+                    instanceMap.put(instance.getId(), instance);
+                    entities.add(toEntity(new InstanceCache.Produced<Content>(instance)));
+                }
+            }
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
         }
-        return null;
+        return entities;
+    }
+
+    @Override
+    public boolean isStale(String serviceName) {
+        InstanceCache<Content> cache = cacheMap.get(serviceName);
+        return cache != null && cache.isStale();
+    }
+
+    @Override
+    public boolean markDown(String instanceId) {
+        ServiceInstance<Content> instance = instanceId != null ? instanceMap.get(instanceId) : null;
+        boolean changed = instance != null && downInstances.markDown(instanceId, instance.getName());
+        if (changed) {
+            log.info("mark down {}", instanceId);
+        }
+        return changed;
+    }
+
+    @Override
+    public boolean markUp(String instanceId) {
+        boolean changed = instanceId != null && downInstances.markUp(instanceId);
+        if (changed) {
+            log.info("mark up {}", instanceId);
+        }
+        return changed;
     }
 
     @Override
@@ -134,11 +296,10 @@ public class CuratorBroker<Content>
         if (instance == null) {
             return false;
         }
-        ServiceProvider<Content> provider = providerMap.get(instance.getName());
-        if (provider == null) {
+        if (!cacheMap.containsKey(instance.getName())) {
             return false;
         }
-        provider.noteError(instance);
+        downInstances.noteError(instanceId, instance.getName());
         return true;
     }
 
@@ -147,6 +308,26 @@ public class CuratorBroker<Content>
         return entity != null && this.reportError(entity.getInstanceId());
     }
 
+    @Override
+    public void reportStart(ServiceEntity<Content> entity) {
+        if (entity != null) {
+            leastOutstanding.start(entity.getInstanceId());
+        }
+    }
+
+    @Override
+    public void reportFinish(ServiceEntity<Content> entity, long latencyNanos) {
+        reportFinish(entity, latencyNanos, false);
+    }
+
+    @Override
+    public void reportFinish(ServiceEntity<Content> entity, long latencyNanos, boolean failed) {
+        if (entity != null) {
+            leastOutstanding.finish(entity.getInstanceId(), latencyNanos, failed);
+            downInstances.noteResult(entity.getInstanceId(), entity.getName(), failed, latencyNanos);
+        }
+    }
+
     @Override
     public String register(String serviceName, Content content) {
         ServiceEntity<Content> node = new ServiceEntity.Builder<Content>()
@@ -176,7 +357,10 @@ public class CuratorBroker<Content>
                 b.uriSpec(new UriSpec(node.getUri()));
             }
             instance = b.build();
+            connected.await(Math.max(2000, config.getConnectionTimeoutMs()), TimeUnit.MILLISECONDS);
             discovery.registerService(instance);
+            registeredNames.add(instance.getName());
+            registeredIds.add(instance.getId());
             log.info("register {}", instance);
         } catch (Exception e) {
             log.error(e.getMessage(), e);
@@ -190,11 +374,22 @@ public class CuratorBroker<Content>
 
     @Override
     public List<String> register(Collection<ServiceEntity<Content>> nodes) {
-        ArrayList<String> ids = new ArrayList<String>(nodes.size());
-        for (ServiceEntity<Content> node : nodes) {
-            ids.add(register(node));
+        return join(registerAsync(nodes), nodes.size(), "");
+    }
+
+    @Override
+    public Future<List<String>> registerAsync(Collection<ServiceEntity<Content>> nodes) {
+        ExecutorService pool = registerPool();
+        List<Future<String>> ids = new ArrayList<Future<String>>(nodes.size());
+        for (final ServiceEntity<Content> node : nodes) {
+            ids.add(pool.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    return register(node);
+                }
+            }));
         }
-        return ids;
+        return new BulkFuture<String>(ids);
     }
 
     @Override
@@ -210,7 +405,8 @@ public class CuratorBroker<Content>
         }
         try {
             ServiceInstance<Content> instance = instanceMap.get(instanceId);
-            instanceMap.remove(instanceId);
+            registeredIds.remove(instanceId);
+            forget(instanceId);
             discovery.unregisterService(instance);
             log.info("unregister {}", instance);
         } catch (Exception e) {
@@ -222,11 +418,46 @@ public class CuratorBroker<Content>
 
     @Override
     public List<Boolean> unregister(Collection<String> instanceIds) {
-        ArrayList<Boolean> results = new ArrayList<Boolean>(instanceIds.size());
-        for (String id : instanceIds) {
-            results.add(unregister(id));
+        return join(unregisterAsync(instanceIds), instanceIds.size(), Boolean.FALSE);
+    }
+
+    @Override
+    public Future<List<Boolean>> unregisterAsync(Collection<String> instanceIds) {
+        ExecutorService pool = registerPool();
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(instanceIds.size());
+        for (final String id : instanceIds) {
+            results.add(pool.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return unregister(id);
+                }
+            }));
+        }
+        return new BulkFuture<Boolean>(results);
+    }
+
+    private synchronized ExecutorService registerPool() {
+        if (registerPool == null) {
+            int threads = Math.max(1, config.getRegisterConcurrency());
+            registerPool = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), ThreadUtils.newThreadFactory("outlinc-discovery-register"));
+            registerPool.allowCoreThreadTimeOut(true);
         }
-        return results;
+        return registerPool;
+    }
+
+    /**
+     * The results of a bulk, the failed value for all when interrupted
+     */
+    private static <T> List<T> join(Future<List<T>> future, int size, T failed) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error(e.getMessage(), e);
+        }
+        return new ArrayList<T>(Collections.nCopies(size, failed));
     }
 
     @Override
@@ -265,64 +496,238 @@ public class CuratorBroker<Content>
     }
 
     private void startDiscovery() {
+        final CountDownLatch connected = new CountDownLatch(1);
+        final CountDownLatch listed = new CountDownLatch(1);
         synchronized (this) {
             if (discovery != null) {
                 return;
             }
+            loadSnapshot();
+            this.connected = connected;
+            watchPool = new ThreadPoolExecutor(4, 4, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), ThreadUtils.newThreadFactory("outlinc-discovery-watch"));
+            watchPool.allowCoreThreadTimeOut(true);
             int timeoutSess = Math.max(3000, config.getSessionTimeoutMs());
             int timeoutConn = Math.max(2000, config.getConnectionTimeoutMs());
-            CuratorFramework client = CuratorFrameworkFactory
+            client = CuratorFrameworkFactory
                 .newClient(config.getConnectString(), timeoutSess, timeoutConn, new RetryOneTime(1));
             client.getCuratorListenable().addListener(this);
+            client.getConnectionStateListenable().addListener(new ConnectionStateListener() {
+                @Override
+                public void stateChanged(CuratorFramework client, ConnectionState newState) {
+                    if (newState.isConnected()) {
+                        connected.countDown();
+                    }
+                }
+            });
             client.start();
             discovery = ServiceDiscoveryBuilder
                 .builder(contentClass)
                 .client(client)
-                .serializer(new JsonInstanceSerializer<Content>(contentClass))
+                .serializer(serializer)
                 .watchInstances(config.getWatchInstances())
                 .basePath(config.getBasePath())
                 .build();
+            serviceNames = new PathChildrenCache(client, config.getBasePath(), false);
+            serviceNames.getListenable().addListener(new PathChildrenCacheListener() {
+                @Override
+                public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
+                    if (event.getType() == PathChildrenCacheEvent.Type.INITIALIZED) {
+                        serviceNamesReady = true;
+                        listed.countDown();
+                    }
+                }
+            });
         }
         try {
             discovery.start();
+            long timeout = Math.max(2000, config.getConnectionTimeoutMs());
+            if (snapshot == null) {
+                /* Nothing to produce meanwhile */
+                connected.await(timeout, TimeUnit.MILLISECONDS);
+            }
+            /* Listed in the background, services are unknown until then */
+            serviceNames.start(PathChildrenCache.StartMode.POST_INITIALIZED_EVENT);
+            if (snapshot == null) {
+                listed.await(timeout, TimeUnit.MILLISECONDS);
+            }
         } catch (Exception e) {
             discovery = null;
             log.error("Curator Init failed", e);
         }
     }
 
-    private ServiceProvider<Content> fetchProvider(String serviceName, Strategy strategy) {
-        if (providerMap.containsKey(serviceName)) {
-            try {
-                return providerMap.get(serviceName);
-            } catch (Exception e) {
-                log.error(e.getMessage(), e);
-                providerMap.remove(serviceName);
+    /**
+     * Produce the instances of the snapshot until their services are watched
+     */
+    private void loadSnapshot() {
+        if (snapshot == null) {
+            return;
+        }
+        if (snapshotWriter == null) {
+            snapshotWriter = Executors.newSingleThreadScheduledExecutor(
+                ThreadUtils.newThreadFactory("outlinc-discovery-snapshot"));
+        }
+        if (!cacheMap.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, List<ServiceInstance<Content>>> service : snapshot.read().entrySet()) {
+            InstanceCache<Content> cache = new InstanceCache<Content>(service.getKey(), downInstances, published);
+            cache.load(service.getValue());
+            cacheMap.put(service.getKey(), cache);
+        }
+    }
+
+    /**
+     * Write the snapshot a second after the instances change, once for the changes meanwhile
+     */
+    private void scheduleSnapshot() {
+        ScheduledExecutorService writer = snapshotWriter;
+        if (writer != null && snapshotDirty.compareAndSet(false, true)) {
+            writer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (snapshotDirty.getAndSet(false)) {
+                        snapshot.write(snapshotView());
+                    }
+                }
+            }, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    private Map<String, List<ServiceInstance<Content>>> snapshotView() {
+        Map<String, List<ServiceInstance<Content>>> view = new TreeMap<String, List<ServiceInstance<Content>>>();
+        for (Map.Entry<String, InstanceCache<Content>> cache : cacheMap.entrySet()) {
+            if (cache.getValue().isLoaded()) {
+                view.put(cache.getKey(), cache.getValue().getAllInstances());
             }
         }
-        try {
-            Collection<ServiceInstance<Content>> instances =
-                discovery.queryForInstances(serviceName);
-            if (instances.size() > 0) {
-                ServiceProvider<Content> provider = discovery
-                    .serviceProviderBuilder()
-                    .serviceName(serviceName)
-                    .providerStrategy(makeProviderStrategy(strategy))
-                    //.threadFactory()
-                    //.additionalFilter()
-                    .downInstancePolicy(new DownInstancePolicy(
-                        config.getDownInstanceTimeoutMs(),
-                        TimeUnit.MILLISECONDS,
-                        config.getDownInstanceThreshold()))
-                    .build();
-                provider.start();
-                providerMap.put(serviceName, provider);
-                return provider;
+        return view;
+    }
+
+    /**
+     * The cache of a service, watched in the background from first use on. Until the first
+     * attempt to watch it ends, the first uses of a service wait for it for a while, unless
+     * the snapshot has its instances. Services unknown to the watch of the names are not
+     * looked up, those of the snapshot are produced until watched
+     */
+    private InstanceCache<Content> fetchCache(String serviceName) {
+        InstanceCache<Content> cache = cacheMap.get(serviceName);
+        if (cache == null) {
+            if (!isKnown(serviceName)) {
+                return null;
+            }
+            cache = new InstanceCache<Content>(serviceName, downInstances, published);
+            InstanceCache<Content> known = cacheMap.putIfAbsent(serviceName, cache);
+            if (known != null) {
+                cache = known;
             }
+        }
+        ThreadPoolExecutor pool = watchPool;
+        if (!cache.isWatched() && pool != null) {
+            cache.watch(discovery, pool);
+            cache.awaitLoaded(Math.max(2000, config.getConnectionTimeoutMs()));
+        }
+        return cache;
+    }
+
+    private boolean isKnown(String serviceName) {
+        if (registeredNames.contains(serviceName)) {
+            return true;
+        }
+        /* Never asks ZooKeeper, the names not listed yet are unknown */
+        return serviceNamesReady
+            && serviceNames.getCurrentData(ZKPaths.makePath(config.getBasePath(), serviceName)) != null;
+    }
+
+    private ServiceEntity<Content> toEntity(InstanceCache.Produced<Content> produced) {
+        return downInstances.isDown(produced.instance.getId()) ? produced.down : produced.up;
+    }
+
+    /**
+     * Forget the loads and the breaker of an instance, and the instance itself unless registered here
+     */
+    private void forget(String instanceId) {
+        if (!registeredIds.contains(instanceId)) {
+            instanceMap.remove(instanceId);
+        }
+        leastOutstanding.remove(instanceId);
+        downInstances.remove(instanceId);
+    }
+
+    /**
+     * Results of the instances of a bulk, done once all are
+     */
+    private static final class BulkFuture<T> implements Future<List<T>> {
+        private final List<Future<T>> futures;
+
+        BulkFuture(List<Future<T>> futures) {
+            this.futures = futures;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = false;
+            for (Future<T> future : futures) {
+                cancelled |= future.cancel(mayInterruptIfRunning);
+            }
+            return cancelled;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            for (Future<T> future : futures) {
+                if (future.isCancelled()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            for (Future<T> future : futures) {
+                if (!future.isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public List<T> get() throws InterruptedException, ExecutionException {
+            List<T> results = new ArrayList<T>(futures.size());
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        }
+
+        @Override
+        public List<T> get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            List<T> results = new ArrayList<T>(futures.size());
+            for (Future<T> future : futures) {
+                results.add(future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+            }
+            return results;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <Content> InstanceSerializer<Content> makeSerializer(String name, Class<Content> contentClass) {
+        if (name.equalsIgnoreCase("Json")) {
+            return new BinaryInstanceSerializer<Content>(contentClass, false);
+        }
+        if (name.equalsIgnoreCase("Binary")) {
+            return new BinaryInstanceSerializer<Content>(contentClass, true);
+        }
+        try {
+            return (InstanceSerializer<Content>) Class.forName(name).getConstructor(Class.class).newInstance(contentClass);
         } catch (Exception e) {
-            log.error(e.getMessage(), e);
+            throw new IllegalArgumentException("Bad instance serializer: " + name, e);
         }
-        return null;
     }
 
     protected ProviderStrategy<Content> makeProviderStrategy(Strategy strategy) {
@@ -333,6 +738,10 @@ public class CuratorBroker<Content>
                 return new RandomStrategy<Content>();
             case Sticky:
                 return new StickyStrategy<Content>(new RandomStrategy<Content>());
+            case LeastOutstanding:
+                return leastOutstanding;
+            case ConsistentHash:
+                return consistentHash;
             default:
                 return new RoundRobinStrategy<Content>();
         }
@@ -41,4 +41,95 @@ public interface CuratorConfig {
     @Default("2")
     int getDownInstanceThreshold();
 
+    /**
+     * Time over which the weight of a latency sample decays by e,
+     * for the latency average of {@link ServiceProducer.Strategy#LeastOutstanding}
+     */
+    @Config("discovery.curator.latencyDecayMs")
+    @Default("10000")
+    long getLatencyDecayMs();
+
+    /**
+     * Virtual nodes of each instance on the ring of {@link ServiceProducer.Strategy#ConsistentHash}
+     */
+    @Config("discovery.curator.hashReplicas")
+    @Default("160")
+    int getHashReplicas();
+
+    /**
+     * Requests failed in a row, by 5xx responses or timeouts, opening the breaker of an instance
+     */
+    @Config("discovery.curator.breakerConsecutiveFailures")
+    @Default("5")
+    int getBreakerConsecutiveFailures();
+
+    /**
+     * Window of the failure rate and of the average latency of an instance
+     */
+    @Config("discovery.curator.breakerWindowMs")
+    @Default("10000")
+    long getBreakerWindowMs();
+
+    /**
+     * Requests of an instance in a window before its failure rate or latency may open its breaker
+     */
+    @Config("discovery.curator.breakerRequestsMin")
+    @Default("20")
+    int getBreakerRequestsMin();
+
+    /**
+     * Failure rate opening the breaker of an instance, 0 to disable
+     */
+    @Config("discovery.curator.breakerFailurePercent")
+    @Default("50")
+    int getBreakerFailurePercent();
+
+    /**
+     * How many times slower than the median of the other instances of its service
+     * an instance has to be for its breaker to open, 0 to disable
+     */
+    @Config("discovery.curator.breakerLatencyFactor")
+    @Default("3")
+    double getBreakerLatencyFactor();
+
+    /**
+     * Share of the instances of a service that may be down at once
+     */
+    @Config("discovery.curator.breakerEjectionMaxPercent")
+    @Default("50")
+    int getBreakerEjectionMaxPercent();
+
+    /**
+     * Requests let through to an instance whose breaker half-opened, until one of them closes
+     * or opens it again. More are let through when none told anything for
+     * {@link #getDownInstanceTimeoutMs()}
+     */
+    @Config("discovery.curator.breakerHalfOpenRequests")
+    @Default("1")
+    int getBreakerHalfOpenRequests();
+
+    /**
+     * File of the last instances known, read at start to produce them before ZooKeeper answers,
+     * or while it can't be reached, empty to keep none
+     */
+    @Config("discovery.curator.snapshotPath")
+    @Default("")
+    String getSnapshotPath();
+
+    /**
+     * Form of the instances in ZooKeeper and in the snapshot, {@code Json}, {@code Binary}, or the class
+     * of an {@link org.apache.curator.x.discovery.details.InstanceSerializer} built from the content class.
+     * Both forms are read either way, turn {@code Binary} on once all the clients read it
+     */
+    @Config("discovery.curator.instanceSerializer")
+    @Default("Json")
+    String getInstanceSerializer();
+
+    /**
+     * Instances of a bulk registered or unregistered at once, their requests pipelined on the connection
+     */
+    @Config("discovery.curator.registerConcurrency")
+    @Default("16")
+    int getRegisterConcurrency();
+
 }
@@ -0,0 +1,132 @@
+package outlinc.discovery;
+
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * File of the last instances known of each service used, read when the broker starts so that
+ * it produces them before ZooKeeper answers, or when it can't be reached at all.
+ * <p>
+ * The file is a header ({@code OLDS}, a version, the time written and the count of services),
+ * then for each service its name and its instances, each as written by the instance serializer
+ * after its length. It is written and synced to a temporary file renamed over the previous one,
+ * so a reader never sees it half written.
+ */
+final class DiscoverySnapshot<Content> {
+
+    private final static Logger log = LoggerFactory.getLogger(DiscoverySnapshot.class);
+    private static final int MAGIC = 0x4f4c4453;
+    private static final int VERSION = 1;
+    /**
+     * Larger instances are not read, the file is broken
+     */
+    private static final int INSTANCE_MAX = 1 << 20;
+
+    private final File file;
+    private final InstanceSerializer<Content> serializer;
+
+    DiscoverySnapshot(String path, InstanceSerializer<Content> serializer) {
+        this.file = new File(path);
+        this.serializer = serializer;
+    }
+
+    /**
+     * @return the instances of each service, none when there is no file or it can't be read
+     */
+    Map<String, List<ServiceInstance<Content>>> read() {
+        Map<String, List<ServiceInstance<Content>>> services = new LinkedHashMap<String, List<ServiceInstance<Content>>>();
+        if (!file.isFile()) {
+            return services;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.warn("Not a discovery snapshot of version {}: {}", VERSION, file);
+                return services;
+            }
+            long written = in.readLong();
+            int count = in.readInt();
+            int instances = 0;
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                int size = in.readInt();
+                List<ServiceInstance<Content>> list = new ArrayList<ServiceInstance<Content>>(Math.min(size, 1024));
+                for (int j = 0; j < size; j++) {
+                    int length = in.readInt();
+                    if (length < 0 || length > INSTANCE_MAX) {
+                        throw new IOException("Bad instance length " + length);
+                    }
+                    byte[] bytes = new byte[length];
+                    in.readFully(bytes);
+                    list.add(serializer.deserialize(bytes));
+                }
+                services.put(name, list);
+                instances += size;
+            }
+            log.info("Read {} instance(s) of {} service(s) from {}, written {}ms ago", instances, count, file,
+                System.currentTimeMillis() - written);
+        } catch (Exception e) {
+            log.warn("Can't read discovery snapshot " + file + ": " + e.getMessage(), e);
+            services.clear();
+        } finally {
+            CloseableUtils.closeQuietly(in);
+        }
+        return services;
+    }
+
+    void write(Map<String, List<ServiceInstance<Content>>> services) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Can't create " + dir);
+            }
+            FileOutputStream fos = new FileOutputStream(tmp);
+            out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(services.size());
+            for (Map.Entry<String, List<ServiceInstance<Content>>> service : services.entrySet()) {
+                out.writeUTF(service.getKey());
+                out.writeInt(service.getValue().size());
+                for (ServiceInstance<Content> instance : service.getValue()) {
+                    byte[] bytes = serializer.serialize(instance);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+            out.flush();
+            /* On disk before renamed, or a crash could leave the new name on missing data */
+            fos.getFD().sync();
+            out.close();
+            out = null;
+            /* Replaces the file at once on POSIX. Elsewhere it goes first, a crash then leaves only the tmp file */
+            if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+                throw new IOException("Can't rename " + tmp);
+            }
+            log.debug("Wrote {} service(s) to {}", services.size(), file);
+        } catch (Exception e) {
+            log.warn("Can't write discovery snapshot " + file + ": " + e.getMessage(), e);
+        } finally {
+            CloseableUtils.closeQuietly(out);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return file.getPath();
+    }
+
+}
@@ -0,0 +1,426 @@
+package outlinc.discovery;
+
+import org.apache.curator.x.discovery.InstanceFilter;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Instances filtered out of the producers, by a circuit breaker of each instance or until
+ * marked up again when marked down by a health check.
+ * <p>
+ * A breaker is closed while the instance does well. It opens when the instance can't be reached
+ * {@link CuratorConfig#getDownInstanceThreshold()} times in a row, fails
+ * {@link CuratorConfig#getBreakerConsecutiveFailures()} times in a row, fails more than
+ * {@link CuratorConfig#getBreakerFailurePercent()} of its requests in a window, or answers
+ * {@link CuratorConfig#getBreakerLatencyFactor()} times slower than the other instances of its
+ * service. It stays open for {@link CuratorConfig#getDownInstanceTimeoutMs()}, longer each time
+ * in a row, then half-opens: the instance takes {@link CuratorConfig#getBreakerHalfOpenRequests()}
+ * requests again, admitted one by one by {@link #admit(String)}, and the first result closes the
+ * breaker or opens it again. No breaker opens, and no instance is marked down, when it would take
+ * more than {@link CuratorConfig#getBreakerEjectionMaxPercent()} of the instances of a service out.
+ */
+final class DownInstances<Content> implements InstanceFilter<Content> {
+
+    private final static Logger log = LoggerFactory.getLogger(DownInstances.class);
+    /**
+     * Instances not filtered for this long are no longer counted in their service
+     */
+    private static final long SEEN_NANOS = TimeUnit.SECONDS.toNanos(60);
+    /**
+     * Open periods in a row lengthen up to this many times the first one
+     */
+    private static final int EJECTIONS_MAX = 8;
+
+    private final ConcurrentMap<String, Status> statuses = new ConcurrentHashMap<String, Status>();
+    private final ConcurrentMap<String, ConcurrentMap<String, Status>> services
+        = new ConcurrentHashMap<String, ConcurrentMap<String, Status>>();
+    /**
+     * Count of the breakers opened, closed and instances marked, for the filtered lists to follow
+     */
+    private final AtomicLong version = new AtomicLong();
+    private final long timeoutNanos;
+    private final int threshold;
+    private final int consecutiveMax;
+    private final long windowNanos;
+    private final int requestsMin;
+    private final int failurePercent;
+    private final double latencyFactor;
+    private final int ejectionMaxPercent;
+    private final int probesMax;
+
+    DownInstances(CuratorConfig config) {
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, config.getDownInstanceTimeoutMs()));
+        this.threshold = Math.max(1, config.getDownInstanceThreshold());
+        this.consecutiveMax = Math.max(1, config.getBreakerConsecutiveFailures());
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, config.getBreakerWindowMs()));
+        this.requestsMin = Math.max(1, config.getBreakerRequestsMin());
+        this.failurePercent = config.getBreakerFailurePercent();
+        this.latencyFactor = config.getBreakerLatencyFactor();
+        this.ejectionMaxPercent = Math.min(100, Math.max(0, config.getBreakerEjectionMaxPercent()));
+        this.probesMax = Math.max(1, config.getBreakerHalfOpenRequests());
+    }
+
+    @Override
+    public boolean apply(ServiceInstance<Content> instance) {
+        long now = System.nanoTime();
+        Status status = status(instance.getId(), instance.getName());
+        status.seen = now;
+        return status.isUp(now);
+    }
+
+    /**
+     * The instance could not be reached
+     */
+    void noteError(String instanceId, String serviceName) {
+        note(instanceId, serviceName, true, true, -1);
+    }
+
+    /**
+     * @param latencyNanos -1 when unknown
+     */
+    void noteResult(String instanceId, String serviceName, boolean failed, long latencyNanos) {
+        note(instanceId, serviceName, false, failed, latencyNanos);
+    }
+
+    private void note(String instanceId, String serviceName, boolean error, boolean failed, long latencyNanos) {
+        long now = System.nanoTime();
+        Status status = status(instanceId, serviceName);
+        String reason = null;
+        synchronized (status) {
+            if (status.openUntil != 0) {
+                if (now - status.openUntil < 0) {
+                    /* Requests sent before the breaker opened */
+                    return;
+                }
+                /* Half-open, the first result decides */
+                if (failed) {
+                    reason = "failed again";
+                } else {
+                    status.close(now, true);
+                    version.incrementAndGet();
+                    log.info("Instance {} of {} is closed again", instanceId, serviceName);
+                    return;
+                }
+            } else {
+                status.record(now, error, failed, latencyNanos, windowNanos);
+                if (status.errors >= threshold) {
+                    reason = status.errors + " errors in a row";
+                } else if (status.consecutive >= consecutiveMax) {
+                    reason = status.consecutive + " failures in a row";
+                } else if (status.requests >= requestsMin && failurePercent > 0
+                    && status.failures * 100L > (long) failurePercent * status.requests) {
+                    reason = status.failures + " failures of " + status.requests + " requests";
+                } else if (latencyFactor > 0 && status.latencyCount >= requestsMin
+                    && status.latencyCount % requestsMin == 0) {
+                    long median = medianLatency(serviceName, status);
+                    long mean = status.latencySum / status.latencyCount;
+                    if (median > 0 && mean > latencyFactor * median) {
+                        reason = "latency " + TimeUnit.NANOSECONDS.toMillis(mean) + "ms against "
+                            + TimeUnit.NANOSECONDS.toMillis(median) + "ms";
+                    }
+                }
+            }
+            if (reason == null) {
+                return;
+            }
+            if (!mayOpen(serviceName, now)) {
+                log.warn("Instance {} of {} stays closed, too many are down: {}", instanceId, serviceName, reason);
+                status.close(now, false);
+                return;
+            }
+            status.open(now, timeoutNanos * Math.min(EJECTIONS_MAX, ++status.ejections), probesMax, timeoutNanos);
+            status.unreachable = error;
+            version.incrementAndGet();
+        }
+        log.warn("Instance {} of {} is open for {}ms: {}", instanceId, serviceName,
+            TimeUnit.NANOSECONDS.toMillis(status.openUntil - now), reason);
+    }
+
+    /**
+     * Let a request through to an instance produced, only as many as allowed while its breaker is half-open
+     *
+     * @return false when the instance should not take the request, another one is to be produced
+     */
+    boolean admit(String instanceId) {
+        Status status = statuses.get(instanceId);
+        if (status == null) {
+            return true;
+        }
+        long now = System.nanoTime();
+        long until = status.openUntil;
+        if (until == 0) {
+            return true;
+        }
+        if (now - until < 0) {
+            return false;
+        }
+        for (; ; ) {
+            int left = status.probes.get();
+            if (left > 0) {
+                if (status.probes.compareAndSet(left, left - 1)) {
+                    if (left == 1) {
+                        /* Filtered out until a result comes */
+                        version.incrementAndGet();
+                    }
+                    return true;
+                }
+            } else if (!status.refill(now, probesMax, timeoutNanos)) {
+                return false;
+            } else {
+                version.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Marked down only while as many instances of the service may be down as for the breakers
+     *
+     * @return whether the instance was up and is down now
+     */
+    boolean markDown(String instanceId, String serviceName) {
+        Status status = status(instanceId, serviceName);
+        long now = System.nanoTime();
+        synchronized (status) {
+            if (!status.isUp(now)) {
+                status.ejected = true;
+                return false;
+            }
+            if (!mayOpen(serviceName, now)) {
+                log.warn("Instance {} of {} stays up, too many are down", instanceId, serviceName);
+                return false;
+            }
+            status.ejected = true;
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Bring back an instance marked down, or whose breaker opened only because it could
+     * not be reached, a breaker opened by failed requests stays open
+     *
+     * @return whether the instance was down and is up now
+     */
+    boolean markUp(String instanceId) {
+        Status status = statuses.get(instanceId);
+        if (status == null) {
+            return false;
+        }
+        long now = System.nanoTime();
+        boolean down = !status.isUp(now);
+        synchronized (status) {
+            status.ejected = false;
+            if (status.unreachable) {
+                status.close(now, true);
+            }
+        }
+        version.incrementAndGet();
+        return down && status.isUp(now);
+    }
+
+    boolean isDown(String instanceId) {
+        Status status = statuses.get(instanceId);
+        return status != null && !status.isUp(System.nanoTime());
+    }
+
+    /**
+     * {@link System#nanoTime()} the breaker of an instance half-opens, or lets more requests through
+     * when half-open, 0 when closed
+     */
+    long downUntil(String instanceId) {
+        Status status = statuses.get(instanceId);
+        if (status == null) {
+            return 0;
+        }
+        long until = status.openUntil;
+        if (until != 0 && System.nanoTime() - until >= 0 && status.probes.get() <= 0) {
+            return status.probeUntil;
+        }
+        return until;
+    }
+
+    long version() {
+        return version.get();
+    }
+
+    void remove(String instanceId) {
+        Status status = statuses.remove(instanceId);
+        if (status != null) {
+            version.incrementAndGet();
+            ConcurrentMap<String, Status> service = services.get(status.serviceName);
+            if (service != null) {
+                service.remove(instanceId);
+            }
+        }
+    }
+
+    /**
+     * Whether one more instance of a service may be taken out
+     */
+    private boolean mayOpen(String serviceName, long now) {
+        int total = 0;
+        int down = 0;
+        for (Status status : service(serviceName).values()) {
+            if (now - status.seen < SEEN_NANOS) {
+                total++;
+                if (!status.isUp(now)) {
+                    down++;
+                }
+            }
+        }
+        return (down + 1) * 100L <= (long) ejectionMaxPercent * total;
+    }
+
+    /**
+     * Median of the average latencies of the other instances of a service in their windows
+     */
+    private long medianLatency(String serviceName, Status self) {
+        List<Long> means = new ArrayList<Long>();
+        for (Status status : service(serviceName).values()) {
+            long count = status.latencyCount;
+            if (status != self && count > 0 && status.openUntil == 0) {
+                means.add(status.latencySum / count);
+            }
+        }
+        if (means.isEmpty()) {
+            return -1;
+        }
+        Collections.sort(means);
+        return means.get(means.size() / 2);
+    }
+
+    private Status status(String instanceId, String serviceName) {
+        Status status = statuses.get(instanceId);
+        if (status == null) {
+            Status prior = statuses.putIfAbsent(instanceId, status = new Status(serviceName));
+            if (prior != null) {
+                return prior;
+            }
+            service(serviceName).put(instanceId, status);
+        }
+        return status;
+    }
+
+    private ConcurrentMap<String, Status> service(String serviceName) {
+        ConcurrentMap<String, Status> service = services.get(serviceName);
+        if (service == null) {
+            ConcurrentMap<String, Status> prior = services.putIfAbsent(serviceName,
+                service = new ConcurrentHashMap<String, Status>());
+            if (prior != null) {
+                service = prior;
+            }
+        }
+        return service;
+    }
+
+    /**
+     * Breaker of one instance, its fields written under its lock
+     */
+    private static final class Status {
+        final String serviceName;
+        /**
+         * {@link System#nanoTime()} the breaker is open until, 0 when closed
+         */
+        volatile long openUntil;
+        /**
+         * Requests still let through once half-open, more are after {@link #probeUntil} without a result
+         */
+        final AtomicInteger probes = new AtomicInteger();
+        volatile long probeUntil;
+        volatile boolean ejected;
+        volatile long seen = System.nanoTime();
+        int ejections;
+        /**
+         * Whether the breaker opened as the instance could not be reached
+         */
+        boolean unreachable;
+        int errors;
+        int consecutive;
+        long windowStart = System.nanoTime();
+        int requests;
+        int failures;
+        volatile long latencyCount;
+        volatile long latencySum;
+
+        Status(String serviceName) {
+            this.serviceName = serviceName;
+        }
+
+        /**
+         * Up when closed or half-open with requests left to let through, and not marked down
+         */
+        boolean isUp(long now) {
+            long until = openUntil;
+            return !ejected && (until == 0
+                || now - until >= 0 && (probes.get() > 0 || now - probeUntil >= 0));
+        }
+
+        /**
+         * Let requests through again when those let through since half-open told nothing for a while
+         *
+         * @return whether more requests are let through
+         */
+        synchronized boolean refill(long now, int probesMax, long timeoutNanos) {
+            if (openUntil == 0 || probes.get() > 0 || now - probeUntil < 0) {
+                return false;
+            }
+            probeUntil = now + timeoutNanos;
+            probes.set(probesMax);
+            return true;
+        }
+
+        void record(long now, boolean error, boolean failed, long latencyNanos, long windowNanos) {
+            if (now - windowStart >= windowNanos) {
+                windowStart = now;
+                requests = failures = 0;
+                latencyCount = latencySum = 0;
+            }
+            requests++;
+            errors = error ? errors + 1 : 0;
+            if (failed) {
+                failures++;
+                consecutive++;
+            } else {
+                consecutive = 0;
+                if (latencyNanos >= 0) {
+                    latencySum += latencyNanos;
+                    latencyCount++;
+                }
+            }
+        }
+
+        void open(long now, long nanos, int probesMax, long timeoutNanos) {
+            openUntil = now + nanos;
+            if (openUntil == 0) {
+                openUntil = 1;
+            }
+            probeUntil = openUntil + timeoutNanos;
+            probes.set(probesMax);
+        }
+
+        /**
+         * @param recovered whether the instance did well, so the next open period is the first of a row
+         */
+        void close(long now, boolean recovered) {
+            openUntil = 0;
+            errors = consecutive = 0;
+            windowStart = now;
+            requests = failures = 0;
+            latencyCount = latencySum = 0;
+            if (recovered) {
+                ejections = 0;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,366 @@
+package outlinc.discovery;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.x.discovery.ProviderStrategy;
+import org.apache.curator.x.discovery.ServiceCache;
+import org.apache.curator.x.discovery.ServiceDiscovery;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceProvider;
+import org.apache.curator.x.discovery.details.ServiceCacheListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Local copy of the instances of one service, kept up to date by a watch and published as
+ * immutable lists, so that producing an instance never waits for ZooKeeper nor takes a lock.
+ * While ZooKeeper can't be reached, the last instances known are kept and flagged as stale,
+ * as are the instances read from a {@link DiscoverySnapshot} until the watch starts.
+ * <p>
+ * The instances not filtered out by {@link DownInstances} are listed again only when a breaker
+ * changes, when an open breaker is due to half-open, and every second to keep them seen.
+ * The entities of the instances are built as they are published, off the threads producing them.
+ */
+final class InstanceCache<Content> implements InstanceProvider<Content>, ServiceCacheListener, Closeable {
+
+    private final static Logger log = LoggerFactory.getLogger(InstanceCache.class);
+    private static final long REFILTER_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long WATCH_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final Comparator<ServiceInstance<?>> BY_ID = new Comparator<ServiceInstance<?>>() {
+        @Override
+        public int compare(ServiceInstance<?> a, ServiceInstance<?> b) {
+            return a.getId().compareTo(b.getId());
+        }
+    };
+
+    private final String name;
+    private final DownInstances<Content> downInstances;
+    /**
+     * Told when the instances change
+     */
+    private final Listener<Content> listener;
+    /**
+     * Null until watched
+     */
+    private volatile ServiceCache<Content> cache;
+    private volatile boolean loaded;
+    private volatile boolean closed;
+    private volatile boolean stale = true;
+    private final AtomicBoolean watching = new AtomicBoolean();
+    /**
+     * Counted down once the first attempt to watch ends, whether it loaded the instances or not
+     */
+    private final CountDownLatch attempted = new CountDownLatch(1);
+    private volatile long watchedAt;
+    /**
+     * Strategies picking from this service, by {@link ServiceProducer.Strategy#ordinal()}
+     */
+    private final AtomicReferenceArray<ProviderStrategy<Content>> strategies
+        = new AtomicReferenceArray<ProviderStrategy<Content>>(ServiceProducer.Strategy.values().length);
+    private volatile List<ServiceInstance<Content>> all = Collections.emptyList();
+    /**
+     * Entities of {@link #all} by instance id
+     */
+    private volatile Map<String, Produced<Content>> produced = Collections.emptyMap();
+    private volatile Filtered<Content> filtered;
+
+    InstanceCache(String name, DownInstances<Content> downInstances, Listener<Content> listener) {
+        this.name = name;
+        this.downInstances = downInstances;
+        this.listener = listener;
+    }
+
+    /**
+     * Produce the instances of a snapshot until watched
+     */
+    void load(List<ServiceInstance<Content>> instances) {
+        publish(new ArrayList<ServiceInstance<Content>>(instances));
+    }
+
+    /**
+     * Load the instances and start watching them in the background, once. Never waits,
+     * the instances known meanwhile are produced, and it is tried again a second after a failure
+     */
+    void watch(final ServiceDiscovery<Content> discovery, Executor executor) {
+        if (cache != null) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (watchedAt != 0 && now - watchedAt < WATCH_RETRY_NANOS || !watching.compareAndSet(false, true)) {
+            return;
+        }
+        watchedAt = now;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start(discovery);
+                    } finally {
+                        watching.set(false);
+                        attempted.countDown();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            watching.set(false);
+        }
+    }
+
+    private void start(ServiceDiscovery<Content> discovery) {
+        if (this.cache != null || closed) {
+            return;
+        }
+        ServiceCache<Content> cache = discovery.serviceCacheBuilder().name(name).build();
+        try {
+            cache.addListener(this);
+            cache.start();
+        } catch (Exception e) {
+            log.warn("Can't watch the instances of {}: {}", name, e.getMessage());
+            CloseableUtils.closeQuietly(cache);
+            return;
+        }
+        synchronized (this) {
+            if (closed) {
+                cache.removeListener(this);
+                CloseableUtils.closeQuietly(cache);
+                return;
+            }
+            this.cache = cache;
+        }
+        stale = false;
+        refresh();
+    }
+
+    /**
+     * Wait for the first attempt to watch the instances, for a while at most
+     *
+     * @return whether there are instances to produce
+     */
+    boolean awaitLoaded(long timeoutMs) {
+        if (!loaded) {
+            try {
+                attempted.await(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return loaded;
+    }
+
+    boolean isWatched() {
+        return cache != null;
+    }
+
+    /**
+     * Whether there are instances to produce, from the watch or from a snapshot
+     */
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Whether the instances are from a snapshot, or last known before ZooKeeper went away
+     */
+    boolean isStale() {
+        return stale;
+    }
+
+    /**
+     * @return all the instances, down ones included, sorted by id
+     */
+    List<ServiceInstance<Content>> getAllInstances() {
+        return all;
+    }
+
+    /**
+     * @return the instances up, sorted by id
+     */
+    @Override
+    public List<ServiceInstance<Content>> getInstances() {
+        Filtered<Content> f = filtered;
+        long now = System.nanoTime();
+        if (f == null || f.version != downInstances.version() || now - f.until >= 0) {
+            f = filter(now);
+        }
+        return f.up;
+    }
+
+    /**
+     * @return the entities of an instance, built now only when not from this cache
+     */
+    Produced<Content> produced(ServiceInstance<Content> instance) {
+        Produced<Content> p = produced.get(instance.getId());
+        if (p == null || p.instance != instance && !p.instance.equals(instance)) {
+            p = new Produced<Content>(instance);
+        }
+        return p;
+    }
+
+    ProviderStrategy<Content> strategy(ServiceProducer.Strategy strategy) {
+        return strategies.get(strategy.ordinal());
+    }
+
+    /**
+     * @return the strategy set for this service, the given one unless another was set meanwhile
+     */
+    ProviderStrategy<Content> strategy(ServiceProducer.Strategy strategy, ProviderStrategy<Content> made) {
+        strategies.compareAndSet(strategy.ordinal(), null, made);
+        return strategies.get(strategy.ordinal());
+    }
+
+    @Override
+    public void cacheChanged() {
+        refresh();
+    }
+
+    @Override
+    public void stateChanged(CuratorFramework client, ConnectionState newState) {
+        stale = !newState.isConnected();
+        if (stale) {
+            log.warn("Keep the {} instance(s) of {} known, {}", all.size(), name, newState);
+        }
+    }
+
+    @Override
+    public void close() {
+        ServiceCache<Content> cache;
+        synchronized (this) {
+            closed = true;
+            cache = this.cache;
+        }
+        if (cache != null) {
+            cache.removeListener(this);
+            CloseableUtils.closeQuietly(cache);
+        }
+        attempted.countDown();
+    }
+
+    private void refresh() {
+        /* Changes before the watch is set are listed right after */
+        ServiceCache<Content> cache = this.cache;
+        if (cache != null) {
+            publish(new ArrayList<ServiceInstance<Content>>(cache.getInstances()));
+        }
+    }
+
+    /**
+     * Publish the instances with their entities, those of the instances unchanged are kept
+     */
+    private synchronized void publish(List<ServiceInstance<Content>> instances) {
+        Collections.sort(instances, BY_ID);
+        Map<String, Produced<Content>> prior = produced;
+        Map<String, Produced<Content>> entities = new HashMap<String, Produced<Content>>(instances.size() * 2);
+        for (ServiceInstance<Content> instance : instances) {
+            Produced<Content> p = prior.get(instance.getId());
+            if (p == null || !p.instance.equals(instance)) {
+                p = new Produced<Content>(instance);
+            }
+            entities.put(instance.getId(), p);
+        }
+        List<ServiceInstance<Content>> gone = new ArrayList<ServiceInstance<Content>>();
+        for (Produced<Content> p : prior.values()) {
+            if (!entities.containsKey(p.instance.getId())) {
+                gone.add(p.instance);
+            }
+        }
+        produced = entities;
+        all = Collections.unmodifiableList(instances);
+        filtered = null;
+        loaded = true;
+        log.debug("{} instance(s) of {}", instances.size(), name);
+        listener.published(all, gone);
+    }
+
+    private Filtered<Content> filter(long now) {
+        long version = downInstances.version();
+        List<ServiceInstance<Content>> instances = all;
+        List<ServiceInstance<Content>> up = new ArrayList<ServiceInstance<Content>>(instances.size());
+        long until = now + REFILTER_NANOS;
+        for (int i = 0; i < instances.size(); i++) {
+            ServiceInstance<Content> instance = instances.get(i);
+            if (downInstances.apply(instance)) {
+                up.add(instance);
+            } else {
+                long downUntil = downInstances.downUntil(instance.getId());
+                if (downUntil != 0 && downUntil - until < 0) {
+                    until = downUntil;
+                }
+            }
+        }
+        Filtered<Content> f = new Filtered<Content>(version, until, Collections.unmodifiableList(up));
+        /* Dropped by a refresh meanwhile, the list is filtered again next time */
+        if (instances == all) {
+            filtered = f;
+        }
+        return f;
+    }
+
+    /**
+     * Told on the thread publishing the instances of a service
+     */
+    interface Listener<Content> {
+        /**
+         * @param instances all the instances published
+         * @param gone      the instances no longer there
+         */
+        void published(List<ServiceInstance<Content>> instances, List<ServiceInstance<Content>> gone);
+    }
+
+    /**
+     * Immutable entities of one instance object, as enabled and as marked down, its address resolved
+     */
+    static final class Produced<Content> {
+        final ServiceInstance<Content> instance;
+        final ServiceEntity<Content> up;
+        final ServiceEntity<Content> down;
+
+        Produced(ServiceInstance<Content> instance) {
+            this.instance = instance;
+            ServiceEntity.Builder<Content> b = new ServiceEntity.Builder<Content>()
+                .instanceId(instance.getId())
+                .name(instance.getName())
+                .host(instance.getAddress())
+                .port(instance.getPort())
+                .sslPort(instance.getSslPort())
+                .content(instance.getPayload())
+                .uri(instance.buildUriSpec())
+                .registerUTC(instance.getRegistrationTimeUTC());
+            if (instance.getAddress() != null && instance.getPort() != null) {
+                b.socketAddress(new InetSocketAddress(instance.getAddress(), instance.getPort()));
+            }
+            this.up = b.enabled(instance.isEnabled()).build();
+            this.down = b.enabled(false).build();
+        }
+    }
+
+    private static final class Filtered<Content> {
+        /**
+         * {@link DownInstances#version()} the instances were filtered at
+         */
+        final long version;
+        /**
+         * {@link System#nanoTime()} to filter the instances again by
+         */
+        final long until;
+        final List<ServiceInstance<Content>> up;
+
+        Filtered(long version, long until, List<ServiceInstance<Content>> up) {
+            this.version = version;
+            this.until = until;
+            this.up = up;
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+package outlinc.discovery;
+
+import org.apache.curator.x.discovery.ProviderStrategy;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceProvider;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Power of two choices: picks the less loaded of two random instances, by the number of
+ * requests in flight weighted with the moving average of the latency. The load is only
+ * known from what the callers report with {@link ServiceProducer#reportStart(ServiceEntity)}
+ * and {@link ServiceProducer#reportFinish(ServiceEntity, long, boolean)}. A failed request counts
+ * as a slow one, so that an instance answering errors fast doesn't draw the traffic.
+ */
+public class LeastOutstandingStrategy<Content> implements ProviderStrategy<Content> {
+
+    /**
+     * Latency a failed request counts for at least, and against the average of its instance
+     */
+    private static final long FAILURE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int FAILURE_FACTOR = 4;
+    /**
+     * Random of each thread, one shared by all would contend on its seed
+     */
+    private static final ThreadLocal<Random> RANDOM = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    private final ConcurrentMap<String, Load> loads = new ConcurrentHashMap<String, Load>();
+    private final long decayNanos;
+
+    /**
+     * @param decayMs time over which the weight of a latency sample decays by e
+     */
+    public LeastOutstandingStrategy(long decayMs) {
+        this.decayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, decayMs));
+    }
+
+    @Override
+    public ServiceInstance<Content> getInstance(InstanceProvider<Content> instanceProvider) throws Exception {
+        List<ServiceInstance<Content>> instances = instanceProvider.getInstances();
+        int size = instances.size();
+        if (size == 0) {
+            return null;
+        }
+        if (size == 1) {
+            return instances.get(0);
+        }
+        Random random = RANDOM.get();
+        int i = random.nextInt(size);
+        int j = random.nextInt(size - 1);
+        if (j >= i) {
+            j++;
+        }
+        ServiceInstance<Content> a = instances.get(i);
+        ServiceInstance<Content> b = instances.get(j);
+        Load loadA = loads.get(a.getId());
+        Load loadB = loads.get(b.getId());
+        if (loadA == null || loadB == null) {
+            return loadA == null ? a : b;
+        }
+        double latencyA = loadA.latency;
+        double latencyB = loadB.latency;
+        if (latencyA <= 0 || latencyB <= 0) {
+            /* No response yet from one of them, only the requests in flight tell */
+            latencyA = latencyB = 1;
+        }
+        double costA = latencyA * (loadA.outstanding.get() + 1);
+        double costB = latencyB * (loadB.outstanding.get() + 1);
+        return costA <= costB ? a : b;
+    }
+
+    /**
+     * A request was sent to an instance
+     */
+    public void start(String instanceId) {
+        Load load = loads.get(instanceId);
+        if (load == null) {
+            Load prior = loads.putIfAbsent(instanceId, load = new Load());
+            if (prior != null) {
+                load = prior;
+            }
+        }
+        load.outstanding.incrementAndGet();
+    }
+
+    /**
+     * A request sent to an instance ended
+     *
+     * @param latencyNanos time the instance took to respond
+     */
+    public void finish(String instanceId, long latencyNanos) {
+        finish(instanceId, latencyNanos, false);
+    }
+
+    /**
+     * @param failed whether the request failed, its latency is then taken as a penalty
+     */
+    public void finish(String instanceId, long latencyNanos, boolean failed) {
+        Load load = loads.get(instanceId);
+        if (load != null) {
+            load.outstanding.decrementAndGet();
+            load.sample(Math.max(0, latencyNanos), failed, decayNanos);
+        }
+    }
+
+    /**
+     * Forget an instance that is gone
+     */
+    public void remove(String instanceId) {
+        loads.remove(instanceId);
+    }
+
+    private static final class Load {
+        final AtomicInteger outstanding = new AtomicInteger();
+        volatile double latency;
+        private long sampledAt;
+
+        synchronized void sample(long latencyNanos, boolean failed, long decayNanos) {
+            long now = System.nanoTime();
+            if (failed) {
+                latencyNanos = Math.max(FAILURE_NANOS, (long) Math.max(latencyNanos, latency) * FAILURE_FACTOR);
+            }
+            if (latency <= 0) {
+                latency = latencyNanos;
+            } else {
+                double w = Math.exp(-(double) Math.max(0, now - sampledAt) / decayNanos);
+                latency = latency * w + latencyNanos * (1 - w);
+            }
+            sampledAt = now;
+        }
+    }
+
+}
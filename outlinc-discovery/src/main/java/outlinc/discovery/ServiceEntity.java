@@ -1,5 +1,7 @@
 package outlinc.discovery;
 
+import java.net.InetSocketAddress;
+
 /**
  * Created by wangkang on 17/06/2017
  */
@@ -14,10 +16,11 @@ public class ServiceEntity<T> {
     private final boolean enabled;
     private final Long registerUTC;
     private final T content;
+    private final InetSocketAddress socketAddress;
 
     private ServiceEntity
         (String instanceId, String name, String address, Integer port, Integer sslPort,
-         String uri, boolean enabled, Long registeredUTC, T content) {
+         String uri, boolean enabled, Long registeredUTC, T content, InetSocketAddress socketAddress) {
         this.instanceId = instanceId;
         this.name = name;
         this.address = address;
@@ -27,6 +30,7 @@ public class ServiceEntity<T> {
         this.enabled = enabled;
         this.registerUTC = registeredUTC;
         this.content = content;
+        this.socketAddress = socketAddress;
     }
 
     public String getInstanceId() {
@@ -65,6 +69,14 @@ public class ServiceEntity<T> {
         return content;
     }
 
+    /**
+     * @return the address and port to connect to, resolved once when produced by a broker,
+     * null without address or port
+     */
+    public InetSocketAddress getSocketAddress() {
+        return socketAddress;
+    }
+
     @Override
     public String toString() {
         return "ServiceEntity{" +
@@ -91,10 +103,18 @@ public class ServiceEntity<T> {
         private boolean enabled = true;
         private Long registerUTC = 0L;
         private T content = null;
+        private InetSocketAddress socketAddress = null;
 
+        /**
+         * The socket address is left unresolved unless given
+         */
         public ServiceEntity<T> build() {
+            InetSocketAddress socketAddress = this.socketAddress;
+            if (socketAddress == null && host != null && port != null) {
+                socketAddress = InetSocketAddress.createUnresolved(host, port);
+            }
             return new ServiceEntity<T>
-                (instanceId, name, host, port, sslPort, uri, enabled, registerUTC, content);
+                (instanceId, name, host, port, sslPort, uri, enabled, registerUTC, content, socketAddress);
         }
 
         public Builder<T> instanceId(String instanceId) {
@@ -141,6 +161,11 @@ public class ServiceEntity<T> {
             this.content = content;
             return this;
         }
+
+        public Builder<T> socketAddress(InetSocketAddress socketAddress) {
+            this.socketAddress = socketAddress;
+            return this;
+        }
     }
 
 }
@@ -1,12 +1,22 @@
 package outlinc.discovery;
 
+import java.util.List;
+
 /**
  * Created by wangkang on 17/06/2017
  */
 public interface ServiceProducer<Content> {
 
     enum Strategy {
-        RoundRobin, Random, Sticky
+        RoundRobin, Random, Sticky,
+        /**
+         * Less loaded of two random instances, see {@link #reportStart(ServiceEntity)}
+         */
+        LeastOutstanding,
+        /**
+         * Same instance for the same key, see {@link #produce(String, Strategy, String)}
+         */
+        ConsistentHash
     }
 
     CuratorConfig getConfig();
@@ -15,12 +25,17 @@ public interface ServiceProducer<Content> {
 
     ServiceEntity<Content> produce(String serviceName, Strategy strategy);
 
+    /**
+     * @param hashKey key of the request, only used by {@link Strategy#ConsistentHash}
+     */
+    ServiceEntity<Content> produce(String serviceName, Strategy strategy, String hashKey);
+
     /**
      * Report an error status when the instance is unavailable.
-     * When error count reaches {@link CuratorConfig#getDownInstanceThreshold()}
-     * the instance will be filtered locally.
+     * When error count reaches {@link CuratorConfig#getDownInstanceThreshold()} in a row
+     * the breaker of the instance opens and it will be filtered locally.
      * When local time elapses {@link CuratorConfig#getDownInstanceTimeoutMs()} ms
-     * the instance will be back again
+     * the instance will be back again, for longer each time it fails again
      *
      * @param instanceId UUID of service instance
      * @see CuratorConfig#getDownInstanceThreshold()
@@ -30,4 +45,55 @@ public interface ServiceProducer<Content> {
 
     boolean reportError(ServiceEntity<Content> entity);
 
+    /**
+     * All the registered instances of a service, including the ones filtered locally,
+     * which are produced as not {@link ServiceEntity#isEnabled() enabled}
+     */
+    List<ServiceEntity<Content>> produceAll(String serviceName);
+
+    /**
+     * Whether the instances of a service are the last known ones, from the snapshot read at start
+     * or from before ZooKeeper went away
+     *
+     * @see CuratorConfig#getSnapshotPath()
+     */
+    boolean isStale(String serviceName);
+
+    /**
+     * Filter the instance locally until {@link #markUp(String)}, as when a health check fails,
+     * unless that would take too many instances of its service out
+     *
+     * @return whether the instance was produced before and is no longer
+     */
+    boolean markDown(String instanceId);
+
+    /**
+     * Produce the instance again when marked down, or when its breaker opened only because
+     * it could not be reached, a breaker opened by failed or slow requests stays open
+     *
+     * @return whether the instance was filtered before
+     */
+    boolean markUp(String instanceId);
+
+    /**
+     * Report a request sent to an instance, each followed by one
+     * {@link #reportFinish(ServiceEntity, long)} when it ends.
+     * The load of the instances drives {@link Strategy#LeastOutstanding}
+     */
+    void reportStart(ServiceEntity<Content> entity);
+
+    /**
+     * @param latencyNanos time the instance took to respond, or until the request gave up
+     * @see CuratorConfig#getLatencyDecayMs()
+     */
+    void reportFinish(ServiceEntity<Content> entity, long latencyNanos);
+
+    /**
+     * @param failed whether the request failed, as by a 5xx response or a timeout, failures and
+     *               slow responses open the breaker of the instance
+     * @see CuratorConfig#getBreakerFailurePercent()
+     * @see CuratorConfig#getBreakerLatencyFactor()
+     */
+    void reportFinish(ServiceEntity<Content> entity, long latencyNanos, boolean failed);
+
 }
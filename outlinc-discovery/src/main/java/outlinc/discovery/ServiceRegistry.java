@@ -2,6 +2,7 @@ package outlinc.discovery;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * Created by wangkang on 17/06/2017
@@ -33,6 +34,14 @@ public interface ServiceRegistry<Content> {
      */
     List<String> register(Collection<ServiceEntity<Content>> nodes);
 
+    /**
+     * Register several service instances without waiting, several at once
+     *
+     * @param nodes Configs of several service instances
+     * @return UUIDs of service instances in the order of the configs, empty for those failed
+     */
+    Future<List<String>> registerAsync(Collection<ServiceEntity<Content>> nodes);
+
     /**
      * Unregister a service instance
      *
@@ -47,4 +56,12 @@ public interface ServiceRegistry<Content> {
      */
     List<Boolean> unregister(Collection<String> instanceIds);
 
+    /**
+     * Unregister several service instances without waiting, several at once
+     *
+     * @param instanceIds UUIDs of service instances
+     * @return whether each instance was unregistered, in the order of the UUIDs
+     */
+    Future<List<Boolean>> unregisterAsync(Collection<String> instanceIds);
+
 }
@@ -0,0 +1,110 @@
+package outlinc.discovery;
+
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.*;
+
+public class DiscoverySnapshotTest {
+
+    private File file;
+    private DiscoverySnapshot<String> snapshot;
+
+    @Before
+    public void beforeEach() throws IOException {
+        file = File.createTempFile("outlinc-snapshot", ".bin");
+        Assert.assertTrue(file.delete());
+        snapshot = new DiscoverySnapshot<String>(file.getPath(), new BinaryInstanceSerializer<String>(String.class, true));
+    }
+
+    @After
+    public void afterEach() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void test_round_trip() throws Exception {
+        Map<String, List<ServiceInstance<String>>> services = services();
+        snapshot.write(services);
+        Assert.assertTrue(file.isFile());
+        Assert.assertFalse(new File(file.getPath() + ".tmp").exists());
+        Map<String, List<ServiceInstance<String>>> read = snapshot.read();
+        Assert.assertEquals(services.keySet(), read.keySet());
+        for (String name : services.keySet()) {
+            List<ServiceInstance<String>> expected = services.get(name);
+            List<ServiceInstance<String>> actual = read.get(name);
+            Assert.assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                Assert.assertEquals(expected.get(i).getId(), actual.get(i).getId());
+                Assert.assertEquals(expected.get(i).getPort(), actual.get(i).getPort());
+                Assert.assertEquals(expected.get(i).getPayload(), actual.get(i).getPayload());
+            }
+        }
+    }
+
+    @Test
+    public void test_missing_file() {
+        Assert.assertTrue(snapshot.read().isEmpty());
+    }
+
+    @Test
+    public void test_wrong_magic() throws Exception {
+        snapshot.write(services());
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.write(new byte[]{'J', 'U', 'N', 'K'});
+        raf.close();
+        Assert.assertTrue(snapshot.read().isEmpty());
+    }
+
+    @Test
+    public void test_truncated() throws Exception {
+        snapshot.write(services());
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() / 2);
+        raf.close();
+        Assert.assertTrue(snapshot.read().isEmpty());
+    }
+
+    @Test
+    public void test_corrupt() throws Exception {
+        snapshot.write(services());
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        /* The first instance length, past the header and the first name */
+        raf.seek(4 + 4 + 8 + 4 + 2 + "test.a".length() + 4);
+        raf.writeInt(-7);
+        raf.close();
+        Assert.assertTrue(snapshot.read().isEmpty());
+        FileOutputStream out = new FileOutputStream(file);
+        byte[] junk = new byte[256];
+        new Random(42).nextBytes(junk);
+        out.write(junk);
+        out.close();
+        Assert.assertTrue(snapshot.read().isEmpty());
+    }
+
+    private static Map<String, List<ServiceInstance<String>>> services() throws Exception {
+        Map<String, List<ServiceInstance<String>>> services = new TreeMap<String, List<ServiceInstance<String>>>();
+        for (String name : Arrays.asList("test.a", "test.b")) {
+            List<ServiceInstance<String>> instances = new ArrayList<ServiceInstance<String>>();
+            for (int i = 0; i < 3; i++) {
+                instances.add(ServiceInstance.<String>builder()
+                    .name(name)
+                    .address("127.0.0.1")
+                    .port(8000 + i)
+                    .payload(name + '#' + i)
+                    .build());
+            }
+            services.put(name, instances);
+        }
+        return services;
+    }
+
+}
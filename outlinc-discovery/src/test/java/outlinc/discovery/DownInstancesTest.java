@@ -0,0 +1,92 @@
+package outlinc.discovery;
+
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.config.ConfigurationObjectFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+public class DownInstancesTest {
+
+    private static final String SERVICE = "test.down";
+
+    private final List<ServiceInstance<String>> instances = new ArrayList<ServiceInstance<String>>();
+    private DownInstances<String> down;
+
+    @Before
+    public void beforeEach() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("discovery.curator.downInstanceTimeout", "100");
+        props.setProperty("discovery.curator.breakerHalfOpenRequests", "2");
+        down = new DownInstances<String>(new ConfigurationObjectFactory(props).build(CuratorConfig.class));
+        for (int i = 0; i < 4; i++) {
+            ServiceInstance<String> instance = ServiceInstance.<String>builder()
+                .id("i" + i).name(SERVICE).address("127.0.0.1").port(8000 + i).build();
+            instances.add(instance);
+            /* Seen by a filter, counted in its service */
+            Assert.assertTrue(down.apply(instance));
+        }
+    }
+
+    @Test
+    public void test_half_open() throws Exception {
+        ServiceInstance<String> instance = instances.get(0);
+        down.noteError("i0", SERVICE);
+        down.noteError("i0", SERVICE);
+        Assert.assertTrue(down.isDown("i0"));
+        Assert.assertFalse(down.admit("i0"));
+        Thread.sleep(150);
+        /* Half-open, only as many requests as allowed go through */
+        Assert.assertTrue(down.apply(instance));
+        long version = down.version();
+        Assert.assertTrue(down.admit("i0"));
+        Assert.assertTrue(down.admit("i0"));
+        Assert.assertFalse(down.admit("i0"));
+        Assert.assertTrue(down.version() != version);
+        Assert.assertFalse(down.apply(instance));
+        Assert.assertTrue(down.downUntil("i0") - System.nanoTime() > 0);
+        /* The first result closes the breaker */
+        down.noteResult("i0", SERVICE, false, 1000000L);
+        Assert.assertFalse(down.isDown("i0"));
+        Assert.assertEquals(0, down.downUntil("i0"));
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(down.admit("i0"));
+        }
+    }
+
+    @Test
+    public void test_half_open_lost() throws Exception {
+        down.noteError("i0", SERVICE);
+        down.noteError("i0", SERVICE);
+        Thread.sleep(150);
+        Assert.assertTrue(down.admit("i0"));
+        Assert.assertTrue(down.admit("i0"));
+        Assert.assertFalse(down.admit("i0"));
+        /* Nothing told for a while, more go through */
+        Thread.sleep(150);
+        Assert.assertTrue(down.apply(instances.get(0)));
+        Assert.assertTrue(down.admit("i0"));
+        /* A failure opens it again */
+        down.noteResult("i0", SERVICE, true, -1);
+        Assert.assertTrue(down.isDown("i0"));
+        Assert.assertFalse(down.admit("i0"));
+    }
+
+    @Test
+    public void test_mark_down_capped() {
+        Assert.assertTrue(down.markDown("i0", SERVICE));
+        Assert.assertFalse(down.markDown("i0", SERVICE));
+        Assert.assertTrue(down.markDown("i1", SERVICE));
+        /* Half of the instances are down already */
+        Assert.assertFalse(down.markDown("i2", SERVICE));
+        Assert.assertFalse(down.isDown("i2"));
+        Assert.assertTrue(down.markUp("i1"));
+        Assert.assertTrue(down.markDown("i2", SERVICE));
+        Assert.assertTrue(down.isDown("i2"));
+    }
+
+}
@@ -1,17 +1,18 @@
 package outlinc.test;
 
 import org.apache.curator.test.TestingServer;
+import org.apache.curator.x.discovery.ServiceInstance;
 import org.junit.*;
 import org.junit.runners.MethodSorters;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import outlinc.discovery.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Properties;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertTrue;
 
@@ -72,6 +73,310 @@ public class ServiceDiscoveryTest {
         assertTrue(producer.reportError(entity));
     }
 
+    @Test
+    public void test_04_least_outstanding() throws Exception {
+        final String serviceName = "test.f";
+        final ServiceProducer.Strategy strategy = ServiceProducer.Strategy.LeastOutstanding;
+        ServiceRegistry<String> r = service.registry();
+        String a = r.register(serviceName, "Service Contents f1");
+        String b = r.register(serviceName, "Service Contents f2");
+        ServiceProducer<String> producer = service.producer();
+        awaitInstances(producer, serviceName, 2);
+        ServiceEntity<String> busy = producer.produce(serviceName, strategy);
+        Assert.assertNotNull(busy);
+        for (int i = 0; i < 3; i++) {
+            producer.reportStart(busy);
+        }
+        ServiceEntity<String> idle = producer.produce(serviceName, strategy);
+        Assert.assertNotNull(idle);
+        Assert.assertNotEquals(busy.getInstanceId(), idle.getInstanceId());
+        producer.reportStart(idle);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(idle.getInstanceId(), producer.produce(serviceName, strategy).getInstanceId());
+        }
+        for (int i = 0; i < 3; i++) {
+            producer.reportFinish(busy, 1000000L);
+        }
+        producer.reportFinish(idle, 50000000L);
+        Assert.assertEquals(busy.getInstanceId(), producer.produce(serviceName, strategy).getInstanceId());
+        r.unregister(a);
+        r.unregister(b);
+        /* Fast failures are no better than slow answers */
+        String c = r.register(serviceName + ".failed", "Service Contents f3");
+        String d = r.register(serviceName + ".failed", "Service Contents f4");
+        awaitInstances(producer, serviceName + ".failed", 2);
+        Map<String, ServiceEntity<String>> entities = new HashMap<String, ServiceEntity<String>>();
+        for (ServiceEntity<String> entity : producer.produceAll(serviceName + ".failed")) {
+            entities.put(entity.getInstanceId(), entity);
+        }
+        producer.reportStart(entities.get(c));
+        producer.reportFinish(entities.get(c), 100000L, true);
+        producer.reportStart(entities.get(d));
+        producer.reportFinish(entities.get(d), 20000000L, false);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(d, producer.produce(serviceName + ".failed", strategy).getInstanceId());
+        }
+        r.unregister(c);
+        r.unregister(d);
+    }
+
+    @Test
+    public void test_05_consistent_hash() throws Exception {
+        ConsistentHashStrategy<String> strategy = new ConsistentHashStrategy<String>(160);
+        List<ServiceInstance<String>> instances = new ArrayList<ServiceInstance<String>>();
+        for (int i = 0; i < 5; i++) {
+            instances.add(ServiceInstance.<String>builder().name("test.g").address("127.0.0.1").port(8000 + i).build());
+        }
+        Map<String, String> owners = new HashMap<String, String>();
+        for (int i = 0; i < 1000; i++) {
+            String key = "key-" + i;
+            owners.put(key, strategy.getInstance(instances, key).getId());
+            Assert.assertEquals(owners.get(key), strategy.getInstance(instances, key).getId());
+        }
+        Assert.assertEquals(5, new HashSet<String>(owners.values()).size());
+        String gone = instances.remove(2).getId();
+        for (Map.Entry<String, String> owner : owners.entrySet()) {
+            String id = strategy.getInstance(instances, owner.getKey()).getId();
+            Assert.assertNotEquals(gone, id);
+            if (!gone.equals(owner.getValue())) {
+                Assert.assertEquals(owner.getValue(), id);
+            }
+        }
+        final String serviceName = "test.h";
+        ServiceRegistry<String> r = service.registry();
+        String a = r.register(serviceName, "Service Contents h1");
+        String b = r.register(serviceName, "Service Contents h2");
+        ServiceProducer<String> producer = service.producer();
+        awaitInstances(producer, serviceName, 2);
+        ServiceProducer.Strategy hash = ServiceProducer.Strategy.ConsistentHash;
+        String id = producer.produce(serviceName, hash, "user-42").getInstanceId();
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(id, producer.produce(serviceName, hash, "user-42").getInstanceId());
+        }
+        /* The key moves while its instance is down, and only then */
+        assertTrue(producer.markDown(id));
+        String other = producer.produce(serviceName, hash, "user-42").getInstanceId();
+        Assert.assertNotEquals(id, other);
+        Assert.assertEquals(a.equals(id) ? b : a, other);
+        assertTrue(producer.markUp(id));
+        Assert.assertEquals(id, producer.produce(serviceName, hash, "user-42").getInstanceId());
+        /* Requests without a key still go to some instance */
+        Assert.assertNotNull(producer.produce(serviceName, hash, null));
+        Assert.assertNotNull(producer.produce(serviceName, hash));
+        r.unregister(a);
+        r.unregister(b);
+    }
+
+    @Test
+    public void test_06_mark_down() throws Exception {
+        final String serviceName = "test.i";
+        ServiceRegistry<String> r = service.registry();
+        String a = r.register(serviceName, "Service Contents i1");
+        String b = r.register(serviceName, "Service Contents i2");
+        ServiceProducer<String> producer = service.producer();
+        awaitInstances(producer, serviceName, 2);
+        Assert.assertEquals(2, producer.produceAll(serviceName).size());
+        assertTrue(producer.markDown(a));
+        Assert.assertFalse(producer.markDown(a));
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(b, producer.produce(serviceName).getInstanceId());
+        }
+        for (ServiceEntity<String> entity : producer.produceAll(serviceName)) {
+            Assert.assertEquals(b.equals(entity.getInstanceId()), entity.isEnabled());
+        }
+        assertTrue(producer.markUp(a));
+        Set<String> ids = new HashSet<String>();
+        for (int i = 0; i < 10; i++) {
+            ids.add(producer.produce(serviceName).getInstanceId());
+        }
+        Assert.assertEquals(2, ids.size());
+        r.unregister(a);
+        r.unregister(b);
+    }
+
+    @Test
+    public void test_07_breaker() throws Exception {
+        final String serviceName = "test.j";
+        ServiceRegistry<String> r = service.registry();
+        List<String> ids = new ArrayList<String>();
+        for (int i = 1; i <= 4; i++) {
+            ids.add(r.register(serviceName, "Service Contents j" + i));
+        }
+        ServiceProducer<String> producer = service.producer();
+        awaitInstances(producer, serviceName, 4);
+        Map<String, ServiceEntity<String>> entities = new HashMap<String, ServiceEntity<String>>();
+        for (int i = 0; i < 8; i++) {
+            ServiceEntity<String> entity = producer.produce(serviceName);
+            entities.put(entity.getInstanceId(), entity);
+        }
+        Assert.assertEquals(4, entities.size());
+        ServiceEntity<String> failing = entities.get(ids.get(0));
+        for (int i = 0; i < 5; i++) {
+            producer.reportFinish(failing, 1000000L, true);
+        }
+        ServiceEntity<String> slow = entities.get(ids.get(1));
+        for (int i = 0; i < 20; i++) {
+            for (String id : ids.subList(2, 4)) {
+                producer.reportFinish(entities.get(id), 1000000L, false);
+            }
+            producer.reportFinish(slow, 10000000L, false);
+        }
+        ServiceEntity<String> erring = entities.get(ids.get(2));
+        for (int i = 0; i < 5; i++) {
+            producer.reportFinish(erring, 1000000L, true);
+        }
+        Set<String> produced = new HashSet<String>();
+        for (int i = 0; i < 12; i++) {
+            produced.add(producer.produce(serviceName).getInstanceId());
+        }
+        /* Half of the instances at most are down */
+        Assert.assertEquals(new HashSet<String>(ids.subList(2, 4)), produced);
+        r.unregister(ids);
+    }
+
+    @Test
+    public void test_08_binary_instances() throws Exception {
+        final String serviceName = "test.k";
+        Properties props = new Properties();
+        props.setProperty("discovery.curator.connectString", connectString());
+        props.setProperty("discovery.curator.instanceSerializer", "Binary");
+        ServiceBroker<String> binary = new CuratorBroker<String>(props, String.class);
+        try {
+            String a = binary.registry().register(serviceName, "Service Contents k1");
+            String b = service.registry().register(serviceName, "Service Contents k2");
+            /* Each reads the form of the other */
+            for (ServiceBroker<String> broker : Arrays.asList(service, binary)) {
+                Map<String, String> contents = new HashMap<String, String>();
+                for (ServiceEntity<String> entity : broker.producer().produceAll(serviceName)) {
+                    contents.put(entity.getInstanceId(), entity.getContent());
+                }
+                Assert.assertEquals("Service Contents k1", contents.get(a));
+                Assert.assertEquals("Service Contents k2", contents.get(b));
+            }
+            binary.registry().unregister(a);
+            service.registry().unregister(b);
+        } finally {
+            binary.close();
+        }
+    }
+
+    @Test
+    public void test_09_watch() throws Exception {
+        final String serviceName = "test.l";
+        ServiceRegistry<String> r = service.registry();
+        String a = r.register(serviceName, "Service Contents l1");
+        ServiceProducer<String> producer = service.producer();
+        awaitInstances(producer, serviceName, 1);
+        String b = r.register(serviceName, "Service Contents l2");
+        awaitInstances(producer, serviceName, 2);
+        r.unregister(a);
+        awaitInstances(producer, serviceName, 1);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(b, producer.produce(serviceName).getInstanceId());
+        }
+        /* An instance of another broker is forgotten once it left the watch */
+        Properties props = new Properties();
+        props.setProperty("discovery.curator.connectString", connectString());
+        ServiceBroker<String> other = new CuratorBroker<String>(props, String.class);
+        try {
+            String c = other.registry().register(serviceName, "Service Contents l3");
+            awaitInstances(producer, serviceName, 2);
+            assertTrue(producer.markDown(c));
+            assertTrue(producer.markUp(c));
+            other.registry().unregister(c);
+            awaitInstances(producer, serviceName, 1);
+            Assert.assertFalse(producer.markDown(c));
+        } finally {
+            other.close();
+        }
+        r.unregister(b);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (producer.produce(serviceName) != null) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void test_10_snapshot() throws Exception {
+        final String serviceName = "test.m";
+        File file = File.createTempFile("outlinc-snapshot", ".bin");
+        Properties props = new Properties();
+        props.setProperty("discovery.curator.connectString", connectString());
+        props.setProperty("discovery.curator.snapshotPath", file.getPath());
+        try {
+            CuratorBroker<String> live = new CuratorBroker<String>(props, String.class);
+            String a = live.registry().register(serviceName, "Service Contents m1");
+            awaitInstances(live.producer(), serviceName, 1);
+            Assert.assertFalse(live.producer().isStale(serviceName));
+            /* Written a second after the watch gets the instance */
+            long deadline = System.currentTimeMillis() + 5000;
+            while (file.length() == 0) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            live.close();
+            /* Nothing listens there */
+            props.setProperty("discovery.curator.connectString", "127.0.0.1:1");
+            props.setProperty("discovery.curator.connectionTimeoutMs", "2000");
+            CuratorBroker<String> cold = new CuratorBroker<String>(props, String.class);
+            try {
+                ServiceProducer<String> producer = cold.producer();
+                ServiceEntity<String> entity = producer.produce(serviceName);
+                Assert.assertNotNull(entity);
+                Assert.assertEquals(a, entity.getInstanceId());
+                Assert.assertEquals("Service Contents m1", entity.getContent());
+                assertTrue(producer.isStale(serviceName));
+                Assert.assertNull(producer.produce("test.unknown"));
+            } finally {
+                cold.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void test_11_bulk_async() throws Exception {
+        final String serviceName = "test.n";
+        List<ServiceEntity<String>> nodes = new ArrayList<ServiceEntity<String>>();
+        for (int i = 1; i <= 20; i++) {
+            nodes.add(new ServiceEntity.Builder<String>().name(serviceName).content("Service test.n#" + i).build());
+        }
+        ServiceRegistry<String> r = service.registry();
+        List<String> ids = r.registerAsync(nodes).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(20, new HashSet<String>(ids).size());
+        Assert.assertFalse(ids.contains(""));
+        ServiceProducer<String> producer = service.producer();
+        awaitInstances(producer, serviceName, 20);
+        Map<String, String> contents = new HashMap<String, String>();
+        for (ServiceEntity<String> entity : producer.produceAll(serviceName)) {
+            contents.put(entity.getInstanceId(), entity.getContent());
+        }
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals(nodes.get(i).getContent(), contents.get(ids.get(i)));
+        }
+        List<String> gone = new ArrayList<String>(ids.subList(0, 10));
+        gone.add("no-such-instance");
+        List<Boolean> results = r.unregisterAsync(gone).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(Collections.nCopies(10, Boolean.TRUE), results.subList(0, 10));
+        Assert.assertEquals(Boolean.FALSE, results.get(10));
+        awaitInstances(producer, serviceName, 10);
+        Assert.assertEquals(Collections.nCopies(10, Boolean.TRUE), r.unregister(ids.subList(10, 20)));
+    }
+
+    /**
+     * Wait for the watch of a service to show its instances, produced once loaded
+     */
+    private static void awaitInstances(ServiceProducer<String> producer, String serviceName, int count)
+        throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (producer.produce(serviceName) == null || producer.produceAll(serviceName).size() != count) {
+            assertTrue("No " + count + " instance(s) of " + serviceName, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
     private ServiceBroker<String> service = null;
 
     @Before
@@ -0,0 +1,351 @@
+package outlinc.proxy;
+
+import io.netty.util.internal.LongCounter;
+import io.netty.util.internal.PlatformDependent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import outlinc.discovery.ServiceEntity;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log written by a thread of its own. The event loops copy each exchange into a slot of
+ * a bounded ring as a compact binary record, without locks nor allocation, and the writer formats
+ * the records in batches to a buffered file, rotated by size. When the ring is full the records
+ * are dropped and counted, the event loops never wait for the file.
+ */
+final class HttpProxyAccessLog implements Closeable {
+
+    private final static Logger log = LoggerFactory.getLogger(HttpProxyAccessLog.class);
+    /**
+     * Bytes of a record, longer uris are cut
+     */
+    private static final int RECORD = 512;
+    private static final int HEADER = 8 + 8 + 4 + 8 + 8 + 4;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final byte[] records;
+    /**
+     * Sequence of each slot: its position when free to write, position + 1 when written
+     */
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final LongCounter dropped = PlatformDependent.newLongCounter();
+    private final File file;
+    private final long fileMax;
+    private final int files;
+    private final Thread writer;
+    private volatile boolean closed;
+
+    HttpProxyAccessLog(HttpProxyConfig config) {
+        int size = Integer.highestOneBit(Math.max(2, Math.min(1 << 20, config.getAccessLogBufferSize())));
+        this.records = new byte[size * RECORD];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.file = new File(config.getAccessLogPath());
+        this.fileMax = Math.max(1, config.getAccessLogFileMaxMb()) * 1024L * 1024L;
+        this.files = Math.max(1, config.getAccessLogFiles());
+        this.writer = new Thread(new Writer(), "outlinc-proxy-access-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Log an exchange whose response is flushed or given up, called from its event loop
+     *
+     * @param remote address of the client, encoded once by connection
+     */
+    void append(HttpProxyExchange ex, int status, long done, byte[] remote) {
+        long position;
+        for (; ; ) {
+            position = tail.get();
+            long sequence = sequences.get((int) (position & mask));
+            if (sequence < position) {
+                dropped.increment();
+                return;
+            }
+            if (sequence == position && tail.compareAndSet(position, position + 1)) {
+                break;
+            }
+        }
+        int index = (int) (position & mask);
+        int offset = index * RECORD;
+        int end = offset + RECORD;
+        offset = putLong(records, offset, System.currentTimeMillis());
+        offset = putLong(records, offset, done - ex.since);
+        offset = putInt(records, offset, status);
+        offset = putLong(records, offset, ex.bytesIn);
+        offset = putLong(records, offset, ex.bytesOut);
+        ServiceEntity<String> entity = ex.entity;
+        offset = putInt(records, offset, entity != null && entity.getPort() != null ? entity.getPort() : 0);
+        offset = putBytes(records, offset, end, remote);
+        offset = putAscii(records, offset, end, entity != null ? entity.getAddress() : null);
+        offset = putAscii(records, offset, end, ex.request.method().name());
+        offset = putAscii(records, offset, end, ex.request.protocolVersion().text());
+        putAscii(records, offset, end, ex.request.uri());
+        sequences.set(index, position + 1);
+    }
+
+    static byte[] encode(SocketAddress address) {
+        String text = String.valueOf(address);
+        if (address instanceof InetSocketAddress) {
+            InetSocketAddress inet = (InetSocketAddress) address;
+            text = (inet.getAddress() != null ? inet.getAddress().getHostAddress() : inet.getHostName())
+                + ':' + inet.getPort();
+        }
+        try {
+            return text.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    long dropped() {
+        return dropped.value();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static int putLong(byte[] b, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            b[offset++] = (byte) (value >>> (i * 8));
+        }
+        return offset;
+    }
+
+    private static int putInt(byte[] b, int offset, int value) {
+        for (int i = 3; i >= 0; i--) {
+            b[offset++] = (byte) (value >>> (i * 8));
+        }
+        return offset;
+    }
+
+    /**
+     * A length byte then at most 255 bytes, as many as fit before the end
+     */
+    private static int putBytes(byte[] b, int offset, int end, byte[] value) {
+        int length = Math.max(0, Math.min(Math.min(255, value.length), end - offset - 1));
+        b[offset++] = (byte) length;
+        System.arraycopy(value, 0, b, offset, length);
+        return offset + length;
+    }
+
+    private static int putAscii(byte[] b, int offset, int end, String value) {
+        if (offset >= end) {
+            return offset;
+        }
+        int length = value == null ? 0 : Math.max(0, Math.min(Math.min(255, value.length()), end - offset - 1));
+        b[offset++] = (byte) length;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            b[offset++] = (byte) (c < 0x80 ? c : '?');
+        }
+        return offset;
+    }
+
+    /**
+     * Drains the ring into the file, formatting one line per record
+     */
+    private final class Writer implements Runnable {
+        private final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+        private final StringBuilder line = new StringBuilder(RECORD * 2);
+        private final byte[] bytes = new byte[RECORD * 2];
+        private final Date date = new Date();
+        private OutputStream out;
+        private long written;
+        private long head;
+        private long droppedLogged;
+        private long droppedAt = System.nanoTime();
+
+        @Override
+        public void run() {
+            try {
+                open();
+                for (; ; ) {
+                    int batch = drain();
+                    if (batch == 0) {
+                        out.flush();
+                        reportDropped();
+                        if (closed) {
+                            break;
+                        }
+                        LockSupport.parkNanos(IDLE_NANOS);
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Access log stopped: " + e.getMessage(), e);
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        private int drain() throws IOException {
+            int batch = 0;
+            for (; ; ) {
+                int index = (int) (head & mask);
+                if (sequences.get(index) != head + 1) {
+                    return batch;
+                }
+                format(index * RECORD);
+                sequences.set(index, head + mask + 1);
+                head++;
+                batch++;
+                int length = Math.min(line.length(), bytes.length);
+                for (int i = 0; i < length; i++) {
+                    bytes[i] = (byte) line.charAt(i);
+                }
+                out.write(bytes, 0, length);
+                written += length;
+                if (written >= fileMax) {
+                    rotate();
+                }
+            }
+        }
+
+        private void format(int offset) {
+            line.setLength(0);
+            date.setTime(getLong(offset));
+            long nanos = getLong(offset + 8);
+            int status = getInt(offset + 16);
+            long bytesIn = getLong(offset + 20);
+            long bytesOut = getLong(offset + 28);
+            int port = getInt(offset + 36);
+            int end = offset + RECORD;
+            int cursor = offset + HEADER;
+            line.append(format.format(date)).append(' ');
+            cursor = appendAscii(cursor, end);
+            line.append(" \"");
+            int upstream = cursor;
+            cursor = skip(cursor, end);
+            cursor = appendAscii(cursor, end);
+            line.append(' ');
+            int version = cursor;
+            cursor = skip(cursor, end);
+            appendAscii(cursor, end);
+            line.append(' ');
+            appendAscii(version, end);
+            line.append("\" ").append(status > 0 ? String.valueOf(status) : "-");
+            line.append(' ').append(bytesIn).append(' ').append(bytesOut).append(' ');
+            long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            line.append(micros / 1000).append('.');
+            long fraction = micros % 1000;
+            if (fraction < 100) {
+                line.append('0');
+            }
+            if (fraction < 10) {
+                line.append('0');
+            }
+            line.append(fraction).append("ms ");
+            if (port > 0) {
+                appendAscii(upstream, end);
+                line.append(':').append(port);
+            } else {
+                line.append('-');
+            }
+            line.append('\n');
+        }
+
+        private int appendAscii(int offset, int end) {
+            if (offset >= end) {
+                return offset;
+            }
+            int length = records[offset++] & 0xff;
+            for (int i = 0; i < length && offset < end; i++) {
+                line.append((char) records[offset++]);
+            }
+            return offset;
+        }
+
+        private int skip(int offset, int end) {
+            return offset >= end ? offset : offset + 1 + (records[offset] & 0xff);
+        }
+
+        private long getLong(int offset) {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (records[offset + i] & 0xff);
+            }
+            return value;
+        }
+
+        private int getInt(int offset) {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                value = (value << 8) | (records[offset + i] & 0xff);
+            }
+            return value;
+        }
+
+        private void reportDropped() {
+            long now = System.nanoTime();
+            if (now - droppedAt < TimeUnit.SECONDS.toNanos(1)) {
+                return;
+            }
+            droppedAt = now;
+            long total = dropped.value();
+            if (total > droppedLogged) {
+                log.warn("Access log dropped {} records, {} in total", total - droppedLogged, total);
+                droppedLogged = total;
+            }
+        }
+
+        private void open() throws IOException {
+            File dir = file.getAbsoluteFile().getParentFile();
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Can't create " + dir);
+            }
+            written = file.length();
+            out = new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024);
+        }
+
+        /**
+         * Shift the files, path.1 the latest one, and start a new one
+         */
+        private void rotate() throws IOException {
+            out.close();
+            for (int i = files - 1; i >= 1; i--) {
+                File from = new File(file.getPath() + '.' + i);
+                if (from.exists()) {
+                    File to = new File(file.getPath() + '.' + (i + 1));
+                    if (i + 1 > files - 1 || !from.renameTo(to)) {
+                        if (!from.delete()) {
+                            log.warn("Can't delete {}", from);
+                        }
+                    }
+                }
+            }
+            if (files > 1 && !file.renameTo(new File(file.getPath() + ".1"))) {
+                log.warn("Can't rotate {}", file);
+            }
+            written = 0;
+            out = new BufferedOutputStream(new FileOutputStream(file, files > 1), 64 * 1024);
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+package outlinc.proxy;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.*;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.CharsetUtil;
+
+import java.nio.CharBuffer;
+
+/**
+ * Endpoint of the proxy itself, on a port of its own apart from the proxied services
+ */
+final class HttpProxyAdmin extends SimpleChannelInboundHandler<FullHttpRequest> {
+
+    private final HttpProxyMetrics metrics;
+    private final HttpProxySlowLog slowLog;
+    private final HttpProxyAccessLog accessLog;
+
+    private HttpProxyAdmin(HttpProxyMetrics metrics, HttpProxySlowLog slowLog, HttpProxyAccessLog accessLog) {
+        this.metrics = metrics;
+        this.slowLog = slowLog;
+        this.accessLog = accessLog;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest req) throws Exception {
+        FullHttpResponse res;
+        String path = new QueryStringDecoder(req.uri()).path();
+        if (!HttpMethod.GET.equals(req.method())) {
+            res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.METHOD_NOT_ALLOWED);
+        } else if (path.equals("/metrics") && (metrics != null || accessLog != null)) {
+            res = text(ctx, prometheus(), "text/plain; version=0.0.4; charset=utf-8");
+        } else if (path.equals("/slow") && slowLog != null) {
+            res = text(ctx, slowLog.dump(), "text/plain; charset=utf-8");
+        } else {
+            res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND);
+        }
+        HttpUtil.setContentLength(res, res.content().readableBytes());
+        boolean keepAlive = HttpUtil.isKeepAlive(req);
+        HttpUtil.setKeepAlive(res, keepAlive);
+        ChannelFuture future = ctx.writeAndFlush(res);
+        if (!keepAlive) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        ctx.close();
+    }
+
+    private String prometheus() {
+        StringBuilder s = new StringBuilder();
+        if (metrics != null) {
+            s.append(metrics.prometheus());
+        }
+        if (accessLog != null) {
+            s.append("# HELP outlinc_proxy_access_log_dropped_total Access log records dropped, the writer lagging behind\n");
+            s.append("# TYPE outlinc_proxy_access_log_dropped_total counter\n");
+            s.append("outlinc_proxy_access_log_dropped_total ").append(accessLog.dropped()).append('\n');
+        }
+        return s.toString();
+    }
+
+    private static FullHttpResponse text(ChannelHandlerContext ctx, CharSequence text, String type) {
+        ByteBuf content = ByteBufUtil.encodeString(ctx.alloc(), CharBuffer.wrap(text), CharsetUtil.UTF_8);
+        FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
+        res.headers().set(HttpHeaderNames.CONTENT_TYPE, type);
+        return res;
+    }
+
+    static ServerBootstrap init(HttpProxyConfig config, final HttpProxyMetrics metrics,
+                                final HttpProxySlowLog slowLog, final HttpProxyAccessLog accessLog,
+                                HttpProxyTransport transport) {
+        ServerBootstrap boot = new ServerBootstrap();
+        transport.configure(boot, config);
+        boot.childHandler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) throws Exception {
+                ch.pipeline().addLast(new HttpServerCodec());
+                ch.pipeline().addLast(new HttpObjectAggregator(8192));
+                ch.pipeline().addLast(new HttpProxyAdmin(metrics, slowLog, accessLog));
+            }
+        });
+        return boot;
+    }
+
+}
@@ -0,0 +1,519 @@
+package outlinc.proxy;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.*;
+import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Shared cache of upstream responses to GET requests, keyed by service name, uri and the
+ * request headers named by the Vary of the response. Freshness follows Cache-Control and
+ * Expires, less the Age the response had already, stale entries with an ETag are revalidated
+ * with If-None-Match. Bodies are kept
+ * off-heap, each service has a byte quota of its own with least recently used eviction.
+ */
+final class HttpProxyCache {
+
+    /**
+     * Estimated bytes of an entry beside its body
+     */
+    private static final int ENTRY_OVERHEAD = 256;
+    private static final int VARY_MAX = 1024;
+    private static final String[] NO_VARY = new String[0];
+    /**
+     * Of HTTP/1.0 connections, the constant of Netty is deprecated
+     */
+    private static final AsciiString KEEP_ALIVE = new AsciiString("keep-alive");
+
+    private final ConcurrentMap<String, Segment> segments = new ConcurrentHashMap<String, Segment>();
+    private final Map<String, Long> quotas;
+    private final long quotaDefault;
+    private final int entryMax;
+
+    HttpProxyCache(HttpProxyConfig config) {
+        this.quotaDefault = Math.max(0, config.getCacheServiceKilobyteMax()) * 1024L;
+        this.entryMax = Math.max(0, config.getCacheEntryKilobyteMax()) * 1024;
+        this.quotas = new HashMap<String, Long>();
+        for (String quota : config.getCacheServiceQuotas().split(",")) {
+            int index = quota.indexOf(':');
+            if (index > 0) {
+                quotas.put(quota.substring(0, index).trim(),
+                    Long.parseLong(quota.substring(index + 1).trim()) * 1024L);
+            }
+        }
+    }
+
+    /**
+     * Look up the response to a request
+     *
+     * @param service name of the service of the request
+     * @return state of the exchange if its response may come from or go to the cache, otherwise null
+     */
+    Exchange lookup(String service, HttpRequest req) {
+        if (!HttpMethod.GET.equals(req.method()) || req.headers().contains(HttpHeaderNames.AUTHORIZATION)) {
+            return null;
+        }
+        String control = req.headers().get(HttpHeaderNames.CACHE_CONTROL);
+        if (control != null && control.contains(HttpHeaderValues.NO_STORE)) {
+            return null;
+        }
+        Segment segment = segment(service);
+        if (segment.quota <= 0) {
+            return null;
+        }
+        Exchange ex = new Exchange(segment, req.uri(), req);
+        boolean reload = (control != null && control.contains(HttpHeaderValues.NO_CACHE))
+            || req.headers().contains(HttpHeaderNames.PRAGMA, HttpHeaderValues.NO_CACHE, true);
+        if (!reload) {
+            segment.get(ex);
+        }
+        return ex;
+    }
+
+    private Segment segment(String service) {
+        Segment segment = segments.get(service);
+        if (segment == null) {
+            Long quota = quotas.get(service);
+            segment = new Segment(quota != null ? quota : quotaDefault);
+            Segment prior = segments.putIfAbsent(service, segment);
+            if (prior != null) {
+                segment = prior;
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * Seconds a response may be served from the cache, 0 to revalidate on each use, -1 if not storable
+     */
+    private static long freshness(HttpResponse res) {
+        HttpHeaders headers = res.headers();
+        if (isPrivate(headers)) {
+            return -1;
+        }
+        String control = headers.get(HttpHeaderNames.CACHE_CONTROL);
+        if (control != null) {
+            if (control.contains(HttpHeaderValues.NO_CACHE)) {
+                return 0;
+            }
+            long lifetime = directive(control, HttpHeaderValues.S_MAXAGE);
+            if (lifetime < 0) {
+                lifetime = directive(control, HttpHeaderValues.MAX_AGE);
+            }
+            if (lifetime >= 0) {
+                /* Already this old when it came, as from a cache upstream */
+                return Math.max(0, lifetime - age(headers));
+            }
+        }
+        String expires = headers.get(HttpHeaderNames.EXPIRES);
+        if (expires != null) {
+            Date date = DateFormatter.parseHttpDate(expires);
+            String served = headers.get(HttpHeaderNames.DATE);
+            Date now = served != null ? DateFormatter.parseHttpDate(served) : null;
+            long base = now != null ? now.getTime() : System.currentTimeMillis();
+            /* An invalid date means already expired */
+            return date == null ? 0 : Math.max(0, (date.getTime() - base) / 1000 - age(headers));
+        }
+        return -1;
+    }
+
+    /**
+     * Seconds of the Age of a response, 0 when missing or invalid
+     */
+    private static long age(HttpHeaders headers) {
+        String age = headers.get(HttpHeaderNames.AGE);
+        if (age == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(age.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Whether a response is only for the client that asked for it
+     */
+    static boolean isPrivate(HttpHeaders headers) {
+        if (headers.contains(HttpHeaderNames.SET_COOKIE) || headers.contains(HttpHeaderNames.VARY, "*", false)) {
+            return true;
+        }
+        for (String control : headers.getAll(HttpHeaderNames.CACHE_CONTROL)) {
+            if (control.contains(HttpHeaderValues.NO_STORE) || control.contains(HttpHeaderValues.PRIVATE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long directive(String control, CharSequence name) {
+        int index = control.indexOf(name.toString());
+        while (index >= 0) {
+            int start = index + name.length();
+            boolean separated = index == 0 || control.charAt(index - 1) == ',' || control.charAt(index - 1) == ' ';
+            if (separated && start < control.length() && control.charAt(start) == '=') {
+                int end = start + 1;
+                while (end < control.length() && Character.isDigit(control.charAt(end))) {
+                    end++;
+                }
+                try {
+                    return Long.parseLong(control.substring(start + 1, end));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+            index = control.indexOf(name.toString(), start);
+        }
+        return -1;
+    }
+
+    private static String[] varyNames(HttpHeaders headers) {
+        List<String> vary = headers.getAll(HttpHeaderNames.VARY);
+        if (vary.isEmpty()) {
+            return NO_VARY;
+        }
+        List<String> names = new ArrayList<String>();
+        for (String value : vary) {
+            for (String name : value.split(",")) {
+                name = name.trim();
+                if (name.length() > 0) {
+                    names.add(name.toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    private static String key(String uri, String[] varyNames, HttpHeaders headers) {
+        if (varyNames.length == 0) {
+            return uri;
+        }
+        StringBuilder key = new StringBuilder(uri);
+        for (String name : varyNames) {
+            key.append('\n');
+            List<String> values = headers.getAll(name);
+            for (int i = 0; i < values.size(); i++) {
+                key.append(i == 0 ? "" : ",").append(values.get(i));
+            }
+        }
+        return key.toString();
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null || etag == null) {
+            return false;
+        }
+        if (ifNoneMatch.trim().equals("*")) {
+            return true;
+        }
+        String strong = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(strong)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Response headers stored with the body, without those of the connection
+     */
+    private static HttpHeaders storedHeaders(HttpHeaders headers) {
+        HttpHeaders stored = new DefaultHttpHeaders(false).set(headers);
+        stored.remove(HttpHeaderNames.CONNECTION);
+        stored.remove(KEEP_ALIVE);
+        stored.remove(HttpHeaderNames.TRANSFER_ENCODING);
+        stored.remove(HttpHeaderNames.CONTENT_LENGTH);
+        stored.remove(HttpHeaderNames.AGE);
+        return stored;
+    }
+
+    /**
+     * A stored response, its body is released on eviction and only duplicated under the segment lock
+     */
+    private static final class Entry {
+        final String key;
+        final HttpResponseStatus status;
+        final ByteBuf body;
+        final long storedAt;
+        HttpHeaders headers;
+        String etag;
+        long expiresAt;
+
+        /**
+         * @param storedAt time the response was as old as it is, before it came with an Age
+         */
+        Entry(String key, HttpResponseStatus status, HttpHeaders headers, ByteBuf body, long freshness,
+              long storedAt) {
+            this.key = key;
+            this.status = status;
+            this.body = body;
+            this.storedAt = storedAt;
+            refresh(headers, freshness);
+        }
+
+        void refresh(HttpHeaders headers, long freshness) {
+            this.headers = headers;
+            this.etag = headers.get(HttpHeaderNames.ETAG);
+            this.expiresAt = System.currentTimeMillis() + freshness * 1000;
+        }
+
+        int size() {
+            return ENTRY_OVERHEAD + key.length() * 2 + body.capacity();
+        }
+    }
+
+    /**
+     * Entries of one service within its byte quota, shared by all event loops
+     */
+    private final class Segment {
+        final long quota;
+        long bytes;
+        final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+        /**
+         * Vary header names of the responses by uri, so a request knows its key before the response
+         */
+        final LinkedHashMap<String, String[]> vary = new LinkedHashMap<String, String[]>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+                return size() > VARY_MAX;
+            }
+        };
+
+        Segment(long quota) {
+            this.quota = quota;
+        }
+
+        synchronized void get(Exchange ex) {
+            String[] names = vary.get(ex.uri);
+            ex.key = key(ex.uri, names == null ? NO_VARY : names, ex.request);
+            Entry entry = entries.get(ex.key);
+            if (entry != null) {
+                ex.entry = entry;
+                ex.status = entry.status;
+                ex.headers = entry.headers;
+                ex.etag = entry.etag;
+                ex.storedAt = entry.storedAt;
+                ex.fresh = System.currentTimeMillis() < entry.expiresAt;
+                ex.body = entry.body.retainedDuplicate();
+            }
+        }
+
+        synchronized void put(Entry entry, String uri, String[] names) {
+            if (names.length > 0) {
+                vary.put(uri, names);
+            } else {
+                vary.remove(uri);
+            }
+            remove(entries.put(entry.key, entry));
+            bytes += entry.size();
+            Iterator<Entry> it = entries.values().iterator();
+            while (bytes > quota && it.hasNext()) {
+                Entry eldest = it.next();
+                it.remove();
+                remove(eldest);
+            }
+        }
+
+        synchronized void refresh(Exchange ex, HttpHeaders headers, long freshness) {
+            Entry entry = entries.get(ex.key);
+            if (entry == ex.entry) {
+                entry.refresh(headers, freshness);
+            }
+        }
+
+        private void remove(Entry entry) {
+            if (entry != null) {
+                bytes -= entry.size();
+                entry.body.release();
+            }
+        }
+    }
+
+    /**
+     * Cache state of one request/response exchange, only accessed from its event loop
+     */
+    final class Exchange {
+        private final Segment segment;
+        private final String uri;
+        private final HttpHeaders request;
+        private String key;
+        /**
+         * Entry found for the request, its body retained until the exchange ends
+         */
+        private Entry entry;
+        private ByteBuf body;
+        private HttpResponseStatus status;
+        private HttpHeaders headers;
+        private String etag;
+        private long storedAt;
+        private boolean fresh;
+        /**
+         * Whether the upstream is asked to revalidate the entry, and the client didn't ask itself
+         */
+        private boolean revalidating;
+        /**
+         * Response served from the entry once the upstream confirmed it
+         */
+        private FullHttpResponse revalidated;
+        private HttpResponse capturing;
+        private ByteBuf captured;
+        private long capturedFreshness;
+
+        private Exchange(Segment segment, String uri, HttpRequest req) {
+            this.segment = segment;
+            this.uri = uri;
+            this.request = req.headers();
+        }
+
+        /**
+         * Response of a fresh entry, a 304 Not Modified when the client holds it already
+         *
+         * @return null unless the request is answered by the cache
+         */
+        FullHttpResponse hit() {
+            if (body == null || !fresh) {
+                return null;
+            }
+            if (matches(request.get(HttpHeaderNames.IF_NONE_MATCH), etag)) {
+                return notModified();
+            }
+            return cached();
+        }
+
+        /**
+         * Ask the upstream for a stale entry only if it has changed
+         */
+        void revalidate(HttpRequest req) {
+            if (body != null && !fresh && etag != null && !req.headers().contains(HttpHeaderNames.IF_NONE_MATCH)) {
+                req.headers().set(HttpHeaderNames.IF_NONE_MATCH, etag);
+                revalidating = true;
+            }
+        }
+
+        /**
+         * Pass a part of the upstream response, stored as it goes if cacheable
+         *
+         * @return the part to write downstream, null if there is nothing to write
+         */
+        HttpObject onResponse(HttpObject msg, boolean last) {
+            if (msg instanceof HttpResponse) {
+                HttpResponse res = (HttpResponse) msg;
+                if (revalidating && res.status().code() == HttpResponseStatus.NOT_MODIFIED.code()) {
+                    long freshness = Math.max(0, freshness(res));
+                    HttpHeaders merged = new DefaultHttpHeaders(false).set(headers).setAll(storedHeaders(res.headers()));
+                    segment.refresh(this, merged, freshness);
+                    headers = merged;
+                    storedAt = System.currentTimeMillis() - age(res.headers()) * 1000;
+                    revalidated = cached();
+                } else {
+                    capture(res);
+                }
+            }
+            if (revalidated != null) {
+                ReferenceCountUtil.release(msg);
+                if (last) {
+                    FullHttpResponse res = revalidated;
+                    revalidated = null;
+                    return res;
+                }
+                return null;
+            }
+            if (captured != null && msg instanceof HttpContent) {
+                ByteBuf content = ((HttpContent) msg).content();
+                if (content.readableBytes() > captured.maxWritableBytes()) {
+                    /* Over the size of an entry, passed on without storing */
+                    captured.release();
+                    captured = null;
+                } else {
+                    captured.writeBytes(content, content.readerIndex(), content.readableBytes());
+                }
+            }
+            if (last && captured != null) {
+                ByteBuf stored = captured.capacity() == captured.readableBytes() ? captured : compact(captured);
+                captured = null;
+                String[] names = varyNames(capturing.headers());
+                segment.put(new Entry(key(uri, names, request), capturing.status(),
+                    storedHeaders(capturing.headers()), stored, capturedFreshness,
+                    System.currentTimeMillis() - age(capturing.headers()) * 1000), uri, names);
+            }
+            return msg;
+        }
+
+        /**
+         * Drop what the exchange holds, it ended or was aborted
+         */
+        void release() {
+            if (body != null) {
+                body.release();
+                body = null;
+            }
+            if (captured != null) {
+                captured.release();
+                captured = null;
+            }
+            if (revalidated != null) {
+                revalidated.release();
+                revalidated = null;
+            }
+        }
+
+        private void capture(HttpResponse res) {
+            if (res.status().code() != HttpResponseStatus.OK.code() || entryMax <= 0) {
+                return;
+            }
+            long freshness = freshness(res);
+            if (freshness < 0 || (freshness == 0 && !res.headers().contains(HttpHeaderNames.ETAG))) {
+                return;
+            }
+            long length = HttpUtil.getContentLength(res, -1L);
+            if (length > entryMax) {
+                return;
+            }
+            int initial = length >= 0 ? (int) length : Math.min(entryMax, 8192);
+            capturing = res;
+            capturedFreshness = freshness;
+            captured = PooledByteBufAllocator.DEFAULT.directBuffer(initial, entryMax);
+        }
+
+        private ByteBuf compact(ByteBuf buf) {
+            ByteBuf copy = PooledByteBufAllocator.DEFAULT.directBuffer(buf.readableBytes(), buf.readableBytes());
+            copy.writeBytes(buf);
+            buf.release();
+            return copy;
+        }
+
+        private FullHttpResponse cached() {
+            FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, body.retainedDuplicate());
+            res.headers().set(headers);
+            HttpUtil.setContentLength(res, body.readableBytes());
+            res.headers().set(HttpHeaderNames.AGE, Math.max(0, (System.currentTimeMillis() - storedAt) / 1000));
+            return res;
+        }
+
+        private FullHttpResponse notModified() {
+            FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+            for (CharSequence name : new CharSequence[]{HttpHeaderNames.ETAG, HttpHeaderNames.CACHE_CONTROL,
+                HttpHeaderNames.EXPIRES, HttpHeaderNames.DATE, HttpHeaderNames.VARY}) {
+                String value = headers.get(name);
+                if (value != null) {
+                    res.headers().set(name, value);
+                }
+            }
+            HttpUtil.setContentLength(res, 0);
+            return res;
+        }
+    }
+
+}
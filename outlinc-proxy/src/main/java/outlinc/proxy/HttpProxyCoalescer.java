@@ -0,0 +1,207 @@
+package outlinc.proxy;
+
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Single flight of identical GET and HEAD requests across all downstream connections.
+ * The first request goes to the upstream, the ones arriving before its response starts
+ * wait for it, and every part of the response is passed to them as a retained duplicate,
+ * unless the response is only for the client that asked for it. A client falling behind
+ * the response by more than its connection may buffer is disconnected.
+ */
+final class HttpProxyCoalescer {
+
+    /**
+     * Request headers that always tell responses apart
+     */
+    private static final CharSequence[] KEY_HEADERS = {
+        HttpHeaderNames.HOST, HttpHeaderNames.AUTHORIZATION, HttpHeaderNames.COOKIE, HttpHeaderNames.RANGE,
+        HttpHeaderNames.IF_NONE_MATCH, HttpHeaderNames.IF_MODIFIED_SINCE
+    };
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+    private final List<String> headers = new ArrayList<String>();
+
+    HttpProxyCoalescer(HttpProxyConfig config) {
+        for (CharSequence name : KEY_HEADERS) {
+            headers.add(name.toString());
+        }
+        for (String name : config.getCoalesceHeaders().split(",")) {
+            name = name.trim();
+            if (name.length() > 0) {
+                headers.add(name);
+            }
+        }
+    }
+
+    /**
+     * @return key of the requests sharing a response, null if the response of the request can't be shared
+     */
+    String key(String service, HttpRequest req) {
+        if (service == null || !HttpProxyHandler.isReplayable(req)) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(service).append(' ').append(req.method().name())
+            .append(' ').append(req.uri());
+        for (String name : headers) {
+            key.append('\n');
+            String value = req.headers().get(name);
+            if (value != null) {
+                key.append(value);
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Join the flight of an identical request in progress, otherwise lead a new one
+     *
+     * @return whether the exchange waits for the response of another one
+     */
+    boolean join(String key, HttpProxyExchange ex) {
+        Flight flight = null;
+        for (; ; ) {
+            Flight prior = flights.get(key);
+            if (prior != null && prior.add(ex)) {
+                ex.follower = true;
+                return true;
+            }
+            if (flight == null) {
+                flight = new Flight(key);
+            }
+            if (prior == null ? flights.putIfAbsent(key, flight) == null : flights.replace(key, prior, flight)) {
+                ex.flight = flight;
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Copy of a part of the response for one follower, its content a retained duplicate
+     */
+    private static HttpObject duplicate(HttpObject msg, HttpProxyExchange follower) {
+        if (msg instanceof FullHttpResponse) {
+            FullHttpResponse res = ((FullHttpResponse) msg).retainedDuplicate();
+            HttpUtil.setKeepAlive(res, follower.keepAlive);
+            return res;
+        }
+        if (msg instanceof HttpResponse) {
+            HttpResponse src = (HttpResponse) msg;
+            HttpResponse res = new DefaultHttpResponse(src.protocolVersion(), src.status());
+            res.headers().set(src.headers());
+            HttpUtil.setKeepAlive(res, follower.keepAlive);
+            return res;
+        }
+        if (msg instanceof HttpContent) {
+            return ((HttpContent) msg).retainedDuplicate();
+        }
+        return msg;
+    }
+
+    /**
+     * Run on the event loop of the connection of an exchange
+     */
+    private static void execute(HttpProxyExchange ex, Runnable task) {
+        EventLoop loop = ex.handler.eventLoop();
+        if (loop.inEventLoop()) {
+            task.run();
+        } else {
+            loop.execute(task);
+        }
+    }
+
+    /**
+     * One upstream exchange and the exchanges waiting for its response.
+     * Followers are only added until the response starts, then only the
+     * event loop of the leading exchange accesses it.
+     */
+    final class Flight {
+        private final String key;
+        private final List<HttpProxyExchange> followers = new ArrayList<HttpProxyExchange>(2);
+        private boolean started;
+
+        private Flight(String key) {
+            this.key = key;
+        }
+
+        private synchronized boolean add(HttpProxyExchange ex) {
+            if (started) {
+                return false;
+            }
+            followers.add(ex);
+            return true;
+        }
+
+        private boolean start() {
+            synchronized (this) {
+                if (started) {
+                    return false;
+                }
+                started = true;
+            }
+            flights.remove(key, this);
+            return true;
+        }
+
+        /**
+         * Pass a part of the response of the leading exchange to the followers. A response only
+         * for the client of the leader is not passed, the followers send their own requests instead
+         *
+         * @return whether the response is passed to the followers
+         */
+        boolean publish(HttpObject msg, final boolean last) {
+            if (start() && msg instanceof HttpResponse && HttpProxyCache.isPrivate(((HttpResponse) msg).headers())) {
+                for (final HttpProxyExchange follower : followers) {
+                    execute(follower, new Runnable() {
+                        public void run() {
+                            follower.handler.resume(follower, null);
+                        }
+                    });
+                }
+                followers.clear();
+                return false;
+            }
+            for (final HttpProxyExchange follower : followers) {
+                final HttpObject part = duplicate(msg, follower);
+                execute(follower, new Runnable() {
+                    public void run() {
+                        HttpProxyHandler handler = follower.handler;
+                        handler.respond(follower, part, last);
+                        /* The upstream doesn't wait for the slowest of the clients */
+                        if (!last && handler.isBehind(follower)) {
+                            handler.detach(follower);
+                        }
+                    }
+                });
+            }
+            return true;
+        }
+
+        /**
+         * The leading exchange was aborted, followers start over unless
+         * part of the response has been passed to them already
+         */
+        void abandon() {
+            final boolean resume = start();
+            for (final HttpProxyExchange follower : followers) {
+                execute(follower, new Runnable() {
+                    public void run() {
+                        if (resume) {
+                            follower.handler.resume(follower, key);
+                        } else {
+                            follower.handler.abortResponse(follower);
+                        }
+                    }
+                });
+            }
+            followers.clear();
+        }
+    }
+
+}
@@ -16,12 +16,348 @@ public interface HttpProxyConfig {
     @Default("8081")
     int getPort();
 
+    /**
+     * Properties file of more {@code proxy.route.*} rules, see {@link HttpProxyRoutes}
+     */
+    @Config("proxy.routes.file")
+    @Default("")
+    String getRoutesFile();
+
+    /**
+     * Use the native epoll transport when available (Linux only)
+     */
+    @Config("proxy.transport.native")
+    @Default("false")
+    boolean getTransportNative();
+
+    /**
+     * Listening sockets bound with SO_REUSEPORT, each accepted by its own thread.
+     * Only effective with the native transport
+     */
+    @Config("proxy.transport.acceptors")
+    @Default("1")
+    int getTransportAcceptors();
+
+    /**
+     * I/O threads serving downstream and upstream connections, 0 for twice the number of cores
+     */
+    @Config("proxy.transport.worker.threads")
+    @Default("0")
+    int getWorkerThreads();
+
+    @Config("proxy.tcp.nodelay")
+    @Default("true")
+    boolean getTcpNoDelay();
+
+    /**
+     * Only effective with the native transport
+     */
+    @Config("proxy.tcp.quickack")
+    @Default("false")
+    boolean getTcpQuickAck();
+
     @Config("proxy.upstream.retry.max")
     @Default("3")
     int getUpstreamRetryMax();
 
+    /**
+     * Delay before the first retry, doubled on each following retry
+     */
+    @Config("proxy.upstream.retry.backoff.ms")
+    @Default("50")
+    long getUpstreamRetryBackoffMs();
+
+    @Config("proxy.upstream.retry.backoff.max.ms")
+    @Default("2000")
+    long getUpstreamRetryBackoffMaxMs();
+
+    /**
+     * Fraction of each backoff delay that is randomized, between 0 and 1
+     */
+    @Config("proxy.upstream.retry.jitter")
+    @Default("0.5")
+    double getUpstreamRetryJitter();
+
+    /**
+     * Time for the upstream response to start once the whole request is written to the upstream,
+     * and deadline of the retries of a request from its arrival. Requests over either are answered
+     * with 504 Gateway Timeout
+     */
+    @Config("proxy.upstream.timeout.ms")
+    @Default("30000")
+    long getUpstreamTimeoutMs();
+
+    @Config("proxy.upstream.connect.timeout.ms")
+    @Default("3000")
+    int getUpstreamConnectTimeoutMs();
+
+    /**
+     * Connections (active and idle) to one upstream host:port per event loop
+     */
+    @Config("proxy.upstream.pool.max.per.host")
+    @Default("256")
+    int getUpstreamPoolMaxPerHost();
+
+    /**
+     * Idle keep-alive connections kept for one upstream host:port per event loop
+     */
+    @Config("proxy.upstream.pool.max.idle.per.host")
+    @Default("32")
+    int getUpstreamPoolMaxIdlePerHost();
+
+    @Config("proxy.upstream.pool.idle.timeout.ms")
+    @Default("60000")
+    long getUpstreamPoolIdleTimeoutMs();
+
+    /**
+     * Comma separated names of the services whose instances speak cleartext HTTP/2,
+     * their requests are multiplexed as streams over a few connections per instance
+     */
+    @Config("proxy.upstream.http2.services")
+    @Default("")
+    String getUpstreamHttp2Services();
+
+    /**
+     * Concurrent streams on one HTTP/2 upstream connection before another one is opened
+     */
+    @Config("proxy.upstream.http2.streams.max")
+    @Default("100")
+    int getUpstreamHttp2StreamsMax();
+
+    /**
+     * Key of the requests for the ConsistentHash provider strategy: header:name,
+     * cookie:name, query:name, path:n for the n-th path segment after the service name, or uri
+     */
+    @Config("proxy.upstream.hash.key")
+    @Default("")
+    String getUpstreamHashKey();
+
+    /**
+     * Send a second copy of a GET or HEAD request to another instance when its response
+     * is later than {@link #getHedgePercentile()} of the recent ones, the first response wins
+     */
+    @Config("proxy.upstream.hedge")
+    @Default("false")
+    boolean getHedge();
+
+    /**
+     * Percentile of the upstream latencies of a service after which its requests are hedged
+     */
+    @Config("proxy.upstream.hedge.percentile")
+    @Default("95")
+    double getHedgePercentile();
+
+    @Config("proxy.upstream.hedge.delay.min.ms")
+    @Default("5")
+    long getHedgeDelayMinMs();
+
+    /**
+     * Hedges as a percentage of the requests, beyond it requests are no longer hedged
+     */
+    @Config("proxy.upstream.hedge.budget.percent")
+    @Default("5")
+    double getHedgeBudgetPercent();
+
+    /**
+     * Period of the latencies the percentile is taken from
+     */
+    @Config("proxy.upstream.hedge.window.ms")
+    @Default("10000")
+    long getHedgeWindowMs();
+
+    /**
+     * Requests of one downstream connection in flight at the same time,
+     * their responses are returned in request order
+     */
+    @Config("proxy.http.pipelining.max")
+    @Default("16")
+    int getPipeliningMax();
+
     @Config("proxy.http.aggregated.kilobyte.max")
     @Default("512")
     int getAggregatedKilobyteMax();
 
+    /**
+     * Forward request and response chunks as they arrive instead of
+     * aggregating whole messages, so body size is no longer bounded by
+     * {@link #getAggregatedKilobyteMax()}
+     */
+    @Config("proxy.http.streaming")
+    @Default("false")
+    boolean getStreaming();
+
+    /**
+     * Pending outbound bytes of a channel above which the peer channel
+     * stops reading, only used in streaming mode
+     */
+    @Config("proxy.http.streaming.buffer.kilobyte.max")
+    @Default("64")
+    int getStreamingBufferKilobyteMax();
+
+    /**
+     * Accept cleartext HTTP/2 (h2c), by upgrade from HTTP/1.1 or with prior knowledge,
+     * each stream of a connection is proxied as a request of its own
+     */
+    @Config("proxy.http2")
+    @Default("false")
+    boolean getHttp2();
+
+    @Config("proxy.http2.streams.max")
+    @Default("128")
+    int getHttp2StreamsMax();
+
+    /**
+     * Serve cacheable GET responses from memory, following Cache-Control and Expires
+     */
+    @Config("proxy.cache")
+    @Default("false")
+    boolean getCache();
+
+    /**
+     * Bytes of cached responses kept for one service, least recently used ones are evicted over it
+     */
+    @Config("proxy.cache.service.kilobyte.max")
+    @Default("16384")
+    int getCacheServiceKilobyteMax();
+
+    /**
+     * Comma separated service:kilobytes pairs overriding {@link #getCacheServiceKilobyteMax()}, 0 disables a service
+     */
+    @Config("proxy.cache.service.quotas")
+    @Default("")
+    String getCacheServiceQuotas();
+
+    /**
+     * Larger responses are passed on without being cached
+     */
+    @Config("proxy.cache.entry.kilobyte.max")
+    @Default("512")
+    int getCacheEntryKilobyteMax();
+
+    /**
+     * Identical GET and HEAD requests in flight at the same time share one upstream exchange
+     */
+    @Config("proxy.coalesce")
+    @Default("false")
+    boolean getCoalesce();
+
+    /**
+     * Comma separated request headers telling identical requests apart, beside the uri,
+     * Host, Authorization, Cookie, Range and the conditional headers
+     */
+    @Config("proxy.coalesce.headers")
+    @Default("accept,accept-encoding")
+    String getCoalesceHeaders();
+
+    /**
+     * Probe the instances of proxied services in the background, taking the unhealthy
+     * ones out of the producer until a probe succeeds again
+     */
+    @Config("proxy.health.check")
+    @Default("false")
+    boolean getHealthCheck();
+
+    /**
+     * Path of an HTTP GET expecting a 2xx status, a TCP connect when empty
+     */
+    @Config("proxy.health.check.path")
+    @Default("")
+    String getHealthCheckPath();
+
+    @Config("proxy.health.check.interval.ms")
+    @Default("5000")
+    long getHealthCheckIntervalMs();
+
+    @Config("proxy.health.check.timeout.ms")
+    @Default("2000")
+    long getHealthCheckTimeoutMs();
+
+    /**
+     * Probes failed in a row before an instance is marked down
+     */
+    @Config("proxy.health.check.unhealthy.threshold")
+    @Default("2")
+    int getHealthCheckUnhealthyThreshold();
+
+    /**
+     * Record requests, bytes and latencies by service and instance
+     */
+    @Config("proxy.metrics")
+    @Default("true")
+    boolean getMetrics();
+
+    /**
+     * Period of the latency percentiles, those of the last complete window are reported
+     */
+    @Config("proxy.metrics.window.ms")
+    @Default("60000")
+    long getMetricsWindowMs();
+
+    /**
+     * Metrics of an instance without requests for this long are dropped, those of instances gone
+     * from their service, counted again from zero if it comes back
+     */
+    @Config("proxy.metrics.expire.ms")
+    @Default("600000")
+    long getMetricsExpireMs();
+
+    /**
+     * Requests slower than this are kept with the time of each of their phases, 0 to disable
+     */
+    @Config("proxy.slow.threshold.ms")
+    @Default("1000")
+    long getSlowThresholdMs();
+
+    /**
+     * Slow requests kept, the latest ones, rounded down to a power of two
+     */
+    @Config("proxy.slow.buffer.size")
+    @Default("256")
+    int getSlowBufferSize();
+
+    /**
+     * Log every request to {@link #getAccessLogPath()}, from a thread of its own
+     */
+    @Config("proxy.access.log")
+    @Default("false")
+    boolean getAccessLog();
+
+    @Config("proxy.access.log.path")
+    @Default("logs/outlinc-proxy-access.log")
+    String getAccessLogPath();
+
+    /**
+     * Records waiting for the access log writer, rounded down to a power of two,
+     * those beyond are dropped and counted
+     */
+    @Config("proxy.access.log.buffer.size")
+    @Default("16384")
+    int getAccessLogBufferSize();
+
+    /**
+     * Size over which the access log file is rotated
+     */
+    @Config("proxy.access.log.file.megabyte.max")
+    @Default("100")
+    int getAccessLogFileMaxMb();
+
+    /**
+     * Access log files kept, the current one included
+     */
+    @Config("proxy.access.log.files.max")
+    @Default("5")
+    int getAccessLogFiles();
+
+    @Config("proxy.admin.host")
+    @Default("127.0.0.1")
+    String getAdminHost();
+
+    /**
+     * Port of the admin endpoint serving {@code /metrics} in the Prometheus text format
+     * and {@code /slow} the slow requests, 0 to disable
+     */
+    @Config("proxy.admin.port")
+    @Default("0")
+    int getAdminPort();
+
 }
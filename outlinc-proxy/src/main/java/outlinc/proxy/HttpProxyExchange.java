@@ -0,0 +1,144 @@
+package outlinc.proxy;
+
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.ReferenceCountUtil;
+import outlinc.discovery.ServiceEntity;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * One request and its response on a downstream connection.
+ * Only accessed from the event loop of that connection.
+ */
+final class HttpProxyExchange {
+
+    final HttpProxyHandler handler;
+    final HttpRequest request;
+    /**
+     * {@link System#nanoTime()} the request arrived
+     */
+    final long since;
+    /**
+     * Deadline of {@link System#nanoTime()} for the retries of the request
+     */
+    final long deadline;
+    /**
+     * Whether the downstream client wants to keep its connection
+     */
+    boolean keepAlive;
+    /**
+     * Parts of the request received before the upstream is acquired
+     */
+    final Queue<HttpObject> pending = new ArrayDeque<HttpObject>(2);
+    /**
+     * Parts of the response received while an earlier exchange is still responding
+     */
+    final Queue<HttpObject> buffered = new ArrayDeque<HttpObject>(2);
+    /**
+     * Service the request is routed to, null when the uri names none
+     */
+    String service;
+    ServiceEntity<String> entity;
+    HttpProxyUpstream upstream;
+    /**
+     * Whether the request to {@link #entity} is reported as in flight, since {@link #upstreamSince}
+     */
+    boolean outstanding;
+    long upstreamSince;
+    /**
+     * Nanoseconds until the upstream response started, -1 before
+     */
+    long upstreamLatency = -1;
+    /**
+     * Whether the upstream response is a server error
+     */
+    boolean upstreamFailed;
+    /**
+     * Second copy of the request sent to another instance, until either response starts
+     */
+    HttpProxyUpstream hedge;
+    ServiceEntity<String> hedgeEntity;
+    long hedgeSince;
+    /**
+     * Cache state when the response may come from or go to the cache
+     */
+    HttpProxyCache.Exchange cache;
+    /**
+     * Flight led by this exchange, its response is passed to identical requests
+     */
+    HttpProxyCoalescer.Flight flight;
+    /**
+     * Waiting for the response of an identical request, the parts of its own request are kept
+     */
+    boolean follower;
+    boolean requestDone;
+    /**
+     * Whether the request was sent once more after a reused upstream closed on it
+     */
+    boolean staleRetried;
+    boolean responseStarted;
+    boolean responseDone;
+    /**
+     * Answered by the proxy itself, the rest of the request is discarded
+     */
+    boolean failed;
+    /**
+     * Finished or aborted, nothing more is written for it
+     */
+    boolean closed;
+    /**
+     * Status code of the response, and body bytes received and sent for the metrics
+     */
+    int status;
+    long bytesIn;
+    long bytesOut;
+    /**
+     * {@link System#nanoTime()} of the phases of the exchange for the slow log, 0 until reached:
+     * the request received, the instance looked up, the upstream acquired, the request written
+     * to it and its response started
+     */
+    long decoded;
+    long lookup;
+    long looked;
+    long acquired;
+    long written;
+    long firstByte;
+
+    HttpProxyExchange(HttpProxyHandler handler, HttpRequest request, boolean keepAlive, long since, long deadline) {
+        this.handler = handler;
+        this.request = request;
+        this.keepAlive = keepAlive;
+        this.since = since;
+        this.deadline = deadline;
+    }
+
+    void releasePending() {
+        release(pending);
+    }
+
+    void releaseBuffered() {
+        release(buffered);
+    }
+
+    void releaseCache() {
+        if (cache != null) {
+            cache.release();
+            cache = null;
+        }
+    }
+
+    private static void release(Queue<HttpObject> queue) {
+        HttpObject msg;
+        while ((msg = queue.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return request.method() + " " + request.uri();
+    }
+
+}
@@ -5,46 +5,172 @@ import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.ScheduledFuture;
+import io.netty.util.internal.PlatformDependent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import outlinc.discovery.ServiceBroker;
 import outlinc.discovery.ServiceEntity;
 import outlinc.discovery.ServiceProducer;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by wangkang on 19/06/2017
  */
-public class HttpProxyHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+public class HttpProxyHandler extends SimpleChannelInboundHandler<HttpObject> {
 
     private final static Logger log = LoggerFactory.getLogger(HttpProxyHandler.class);
     private final HttpProxyConfig config;
     private final ServiceProducer<String> service;
-    private final ConcurrentMap<String, Channel> upstreams;
+    private final HttpProxyPool.Group pools;
+    private final HttpProxyCache cache;
+    private final HttpProxyCoalescer coalescer;
+    private final HttpProxyHashKey hashKey;
+    private final HttpProxyHedging hedging;
+    private final HttpProxyHealth health;
+    private final HttpProxyMetrics metrics;
+    private final HttpProxySlowLog slowLog;
+    private final HttpProxyAccessLog accessLog;
+    private final HttpProxyRoutes routes;
+    /**
+     * Exchanges of pipelined requests in arrival order, responses are written in the same order
+     */
+    private final Queue<HttpProxyExchange> inflight;
+    private ChannelHandlerContext ctx;
+    private HttpProxyPool pool;
+    /**
+     * Exchange of the request being received, the last one of {@link #inflight}
+     */
+    private HttpProxyExchange current;
+    /**
+     * {@link System#nanoTime()} the connection was accepted, until its first exchange is done
+     */
+    private long accepted;
+    /**
+     * Address of the client, encoded for the access log
+     */
+    private byte[] remote;
 
-    private HttpProxyHandler(HttpProxyConfig config, ServiceProducer<String> service) {
+    private HttpProxyHandler(HttpProxyConfig config, ServiceProducer<String> service,
+                             HttpProxyPool.Group pools, HttpProxyCache cache, HttpProxyCoalescer coalescer,
+                             HttpProxyHashKey hashKey, HttpProxyHedging hedging, HttpProxyHealth health,
+                             HttpProxyMetrics metrics, HttpProxySlowLog slowLog,
+                             HttpProxyAccessLog accessLog, HttpProxyRoutes routes) {
         this.config = config;
         this.service = service;
-        this.upstreams = new ConcurrentHashMap<String, Channel>();
+        this.pools = pools;
+        this.cache = cache;
+        this.coalescer = coalescer;
+        this.hashKey = hashKey;
+        this.hedging = hedging;
+        this.health = health;
+        this.metrics = metrics;
+        this.slowLog = slowLog;
+        this.accessLog = accessLog;
+        this.routes = routes;
+        this.inflight = new ArrayDeque<HttpProxyExchange>();
     }
 
     @Override
-    public void channelRead0(final ChannelHandlerContext ctx, final FullHttpRequest msg) throws Exception {
-        log.debug(msg.toString());
-        sendToUpstream(0, ctx, msg);
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+        this.pool = pools.get(ctx.channel().eventLoop());
+        this.accepted = System.nanoTime();
+        if (accessLog != null) {
+            this.remote = HttpProxyAccessLog.encode(ctx.channel().remoteAddress());
+        }
+    }
+
+    @Override
+    public void channelRead0(final ChannelHandlerContext ctx, final HttpObject msg) throws Exception {
+        ReferenceCountUtil.retain(msg);
+        if (msg instanceof HttpRequest) {
+            log.debug("{}", msg);
+            HttpRequest req = (HttpRequest) msg;
+            long now = System.nanoTime();
+            long deadline = now + TimeUnit.MILLISECONDS.toNanos(config.getUpstreamTimeoutMs());
+            HttpProxyExchange ex = new HttpProxyExchange(this, req, HttpUtil.isKeepAlive(req), now, deadline);
+            /* Upstream connections are pooled, whatever the client asks for */
+            HttpUtil.setKeepAlive(req, true);
+            ex.requestDone = msg instanceof LastHttpContent;
+            if (ex.requestDone) {
+                ex.decoded = now;
+            }
+            if (msg instanceof HttpContent) {
+                ex.bytesIn += ((HttpContent) msg).content().readableBytes();
+            }
+            ex.pending.add(msg);
+            inflight.add(ex);
+            current = ex;
+            /* Routed once, before the uri is rewritten for the upstream */
+            ex.service = routes != null ? routes.route(req) : null;
+            if (ex.service == null) {
+                ex.service = HttpProxyRoutes.serviceName(req.uri());
+            }
+            /* Keyed before the cache adds a conditional header of its own */
+            String flightKey = coalescer != null ? coalescer.key(ex.service, req) : null;
+            if (cache != null && !fromCache(ex)) {
+                return;
+            }
+            if (flightKey != null && coalescer.join(flightKey, ex)) {
+                ex.releaseCache();
+                updateReadable();
+                return;
+            }
+            sendToUpstream(0, ctx, ex);
+        } else if (current == null || current.failed || current.responseDone) {
+            ReferenceCountUtil.release(msg);
+        } else {
+            HttpProxyExchange ex = current;
+            ex.requestDone = msg instanceof LastHttpContent;
+            ex.bytesIn += ((HttpContent) msg).content().readableBytes();
+            if (ex.requestDone && slowLog != null) {
+                ex.decoded = System.nanoTime();
+            }
+            if (ex.upstream != null) {
+                Channel ch = ex.upstream.channel();
+                ch.writeAndFlush(msg);
+                if (ex.requestDone) {
+                    ex.written = ex.decoded;
+                    requestSent(ex, ex.upstream);
+                    if (hedging != null) {
+                        scheduleHedge(ex);
+                    }
+                }
+            } else {
+                ex.pending.add(msg);
+            }
+        }
+        updateReadable();
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         super.channelInactive(ctx);
-        for (Channel ch : upstreams.values()) {
-            closeOnFlush(ch);
+        HttpProxyExchange ex;
+        while ((ex = inflight.poll()) != null) {
+            abort(ex);
         }
-        upstreams.clear();
+        current = null;
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            HttpProxyExchange head = inflight.peek();
+            if (head != null && head.upstream != null) {
+                head.upstream.channel().config().setAutoRead(true);
+            }
+        }
+        super.channelWritabilityChanged(ctx);
     }
 
     @Override
@@ -54,97 +180,752 @@ public class HttpProxyHandler extends SimpleChannelInboundHandler<FullHttpReques
         closeOnFlush(ctx.channel());
     }
 
-    private void sendToUpstream(final int retryCount, final ChannelHandlerContext ctx, final FullHttpRequest msg) {
-        if (retryCount >= config.getUpstreamRetryMax()) {
+    /**
+     * Deliver a part of the response of an exchange, written at once when all
+     * earlier exchanges have responded, otherwise buffered until they have
+     *
+     * @return whether the upstream may keep reading
+     */
+    boolean respond(HttpProxyExchange ex, HttpObject msg, boolean last) {
+        if (ex.closed) {
+            ReferenceCountUtil.release(msg);
+            return false;
+        }
+        if (msg instanceof HttpResponse && HttpProxyUpstream.isInformational((HttpResponse) msg)) {
+            /* Passed on as is, nothing is known of the response proper yet */
+            if (ex != inflight.peek()) {
+                ex.buffered.add(msg);
+                return false;
+            }
+            ctx.writeAndFlush(msg);
+            return ctx.channel().isWritable();
+        }
+        if (ex.cache != null) {
+            HttpObject passed = ex.cache.onResponse(msg, last);
+            if (passed == null) {
+                return true;
+            }
+            if (passed != msg) {
+                HttpUtil.setKeepAlive((HttpResponse) passed, ex.keepAlive);
+                msg = passed;
+            }
+        }
+        if (ex.flight != null && (!ex.flight.publish(msg, last) || last)) {
+            ex.flight = null;
+        }
+        if (msg instanceof HttpResponse) {
+            if (ex.outstanding && ex.upstreamLatency < 0) {
+                ex.upstreamLatency = System.nanoTime() - ex.upstreamSince;
+                ex.upstreamFailed = ((HttpResponse) msg).status().code() >= 500;
+                ex.firstByte = ex.upstreamSince + ex.upstreamLatency;
+                if (hedging != null) {
+                    hedging.record(ex.entity.getName(), ex.upstreamLatency);
+                }
+            }
+            ex.status = ((HttpResponse) msg).status().code();
+            ex.responseStarted = true;
+        }
+        if (msg instanceof HttpContent) {
+            ex.bytesOut += ((HttpContent) msg).content().readableBytes();
+        }
+        if (last) {
+            ex.responseDone = true;
+            ex.upstream = null;
+            finishUpstream(ex, ex.upstreamFailed);
+            record(ex, ex.status);
+        }
+        if (ex != inflight.peek()) {
+            ex.buffered.add(msg);
+            return false;
+        }
+        ChannelFuture future = ctx.writeAndFlush(msg);
+        if (last) {
+            complete(ex, future);
+        }
+        return ctx.channel().isWritable();
+    }
+
+    /**
+     * Whether the response of an exchange can be written right now
+     */
+    boolean isWritable(HttpProxyExchange ex) {
+        return ex == inflight.peek() && ctx.channel().isWritable();
+    }
+
+    /**
+     * Read the downstream only while the current request has somewhere to go
+     * and the number of pipelined requests is below the limit
+     */
+    void updateReadable() {
+        boolean readable = inflight.size() < Math.max(1, config.getPipeliningMax());
+        HttpProxyExchange ex = current;
+        if (ex != null && !ex.requestDone && !ex.failed && !ex.follower) {
+            readable &= ex.upstream != null && ex.upstream.channel().isWritable();
+        }
+        ctx.channel().config().setAutoRead(readable);
+    }
+
+    /**
+     * The upstream of an exchange closed before its response was complete
+     */
+    void abortResponse(HttpProxyExchange ex) {
+        if (ex.closed) {
+            return;
+        }
+        ex.upstream = null;
+        finishUpstream(ex, true);
+        if (!ex.responseStarted) {
+            failRequest(ex, HttpResponseStatus.BAD_GATEWAY);
+        } else {
+            /* Part of the response may be written already, the client can only tell by a close */
             closeOnFlush(ctx.channel());
+        }
+    }
+
+    /**
+     * An upstream of an exchange closed before its response was complete,
+     * a hedge of the request takes over when there is one
+     *
+     * @param stale whether the upstream was reused from the pool and closed before any response,
+     *              then a request that may be sent twice is sent once more on a new connection
+     */
+    void abortResponse(HttpProxyExchange ex, HttpProxyUpstream up, boolean stale) {
+        if (ex.hedge == up) {
+            cancelHedge(ex, true);
+            return;
+        }
+        if (ex.hedge != null && ex.upstream == up) {
+            promoteHedge(ex);
+            return;
+        }
+        if (stale && !ex.closed && !ex.staleRetried && !ex.responseStarted && ex.requestDone
+            && ex.upstream == up && isReplayable(ex.request)) {
+            resend(ex);
+            return;
+        }
+        abortResponse(ex);
+    }
+
+    /**
+     * The response of an upstream of an exchange started, a hedge racing with it is cancelled
+     */
+    void claim(HttpProxyExchange ex, HttpProxyUpstream up) {
+        if (ex.hedge == null) {
+            return;
+        }
+        if (ex.hedge == up) {
+            ex.upstream.unbind(ex);
+            hedging.record(ex.entity.getName(), System.nanoTime() - ex.upstreamSince);
+            promoteHedge(ex);
+        } else {
+            cancelHedge(ex, false);
+        }
+    }
+
+    /**
+     * The exchange an exchange waited for was aborted, it leads a flight of its own or joins another one,
+     * or its response was not for others, then it sends its request on its own
+     *
+     * @param flightKey null when the request may not follow another one
+     */
+    void resume(HttpProxyExchange ex, String flightKey) {
+        ex.follower = false;
+        if (ex.closed || flightKey != null && coalescer.join(flightKey, ex)) {
+            return;
+        }
+        sendToUpstream(0, ctx, ex);
+        updateReadable();
+    }
+
+    /**
+     * Whether more of the response of an exchange waits to be written than its connection may hold
+     */
+    boolean isBehind(HttpProxyExchange ex) {
+        if (ctx.channel().isWritable() && ex.buffered.isEmpty()) {
+            return false;
+        }
+        long held = 0;
+        for (HttpObject msg : ex.buffered) {
+            if (msg instanceof HttpContent) {
+                held += ((HttpContent) msg).content().readableBytes();
+            }
+        }
+        ChannelOutboundBuffer out = ctx.channel().unsafe().outboundBuffer();
+        if (out != null) {
+            held += out.totalPendingWriteBytes();
+        }
+        return held > ctx.channel().config().getWriteBufferHighWaterMark();
+    }
+
+    /**
+     * A follower fell behind the response passed to it, which is not paused for it, its connection is closed
+     */
+    void detach(HttpProxyExchange ex) {
+        log.warn("Closing a connection too slow for the response of {}", ex);
+        ex.closed = true;
+        ex.releaseBuffered();
+        ctx.channel().close();
+    }
+
+    EventLoop eventLoop() {
+        return ctx.channel().eventLoop();
+    }
+
+    private void complete(HttpProxyExchange ex, ChannelFuture future) {
+        while (ex != null) {
+            inflight.poll();
+            ex.closed = true;
+            ex.releasePending();
+            ex.releaseCache();
+            if (!ex.keepAlive) {
+                future.addListener(ChannelFutureListener.CLOSE);
+                return;
+            }
+            ex = inflight.peek();
+            if (ex == null) {
+                break;
+            }
+            HttpObject msg;
+            while ((msg = ex.buffered.poll()) != null) {
+                future = ctx.write(msg);
+            }
+            ctx.flush();
+            if (!ex.responseDone) {
+                if (ex.upstream != null) {
+                    ex.upstream.channel().config().setAutoRead(true);
+                }
+                break;
+            }
+        }
+        updateReadable();
+    }
+
+    private void abort(HttpProxyExchange ex) {
+        ex.closed = true;
+        ex.releasePending();
+        ex.releaseBuffered();
+        ex.releaseCache();
+        if (ex.flight != null) {
+            ex.flight.abandon();
+            ex.flight = null;
+        }
+        if (ex.upstream != null) {
+            ex.upstream.unbind(ex);
+            ex.upstream = null;
+        }
+        finishUpstream(ex, false);
+        cancelHedge(ex, false);
+        if (!ex.responseDone) {
+            record(ex, HttpProxyMetrics.NO_STATUS);
+        }
+    }
+
+    /**
+     * Report the end of the request to the upstream instance, with its latency until the response started
+     *
+     * @param failed whether the instance failed the request, not when the client gave up
+     */
+    private void finishUpstream(HttpProxyExchange ex, boolean failed) {
+        if (ex.outstanding) {
+            ex.outstanding = false;
+            long latency = ex.upstreamLatency >= 0 ? ex.upstreamLatency : System.nanoTime() - ex.upstreamSince;
+            service.reportFinish(ex.entity, latency, failed);
+            if (metrics != null) {
+                metrics.meter(ex.entity.getName(), ex.entity.getInstanceId()).finish();
+            }
+        }
+    }
+
+    /**
+     * The response of an exchange is flushed or given up, into the metrics, the slow log and the access log
+     */
+    private void record(HttpProxyExchange ex, int status) {
+        if (metrics == null && slowLog == null && accessLog == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (metrics != null) {
+            HttpProxyMetrics.Meter meter;
+            if (ex.entity != null) {
+                meter = metrics.meter(ex.entity.getName(), ex.entity.getInstanceId());
+            } else {
+                meter = metrics.meter(ex.service != null ? ex.service : "", HttpProxyMetrics.NO_INSTANCE);
+            }
+            meter.record(status, now - ex.since, ex.bytesIn, ex.bytesOut);
+        }
+        if (slowLog != null) {
+            slowLog.offer(ex, accepted, status, now);
+            accepted = 0;
+        }
+        if (accessLog != null) {
+            accessLog.append(ex, status, now, remote);
+        }
+    }
+
+    /**
+     * The hedge of an exchange replaces its first upstream, which is done with
+     */
+    private void promoteHedge(HttpProxyExchange ex) {
+        finishUpstream(ex, false);
+        ex.upstream = ex.hedge;
+        ex.entity = ex.hedgeEntity;
+        ex.outstanding = true;
+        ex.upstreamSince = ex.hedgeSince;
+        ex.upstreamLatency = -1;
+        ex.upstreamFailed = false;
+        ex.hedge = null;
+        ex.hedgeEntity = null;
+    }
+
+    private void cancelHedge(HttpProxyExchange ex, boolean failed) {
+        if (ex.hedge != null) {
+            ex.hedge.unbind(ex);
+            ex.hedge = null;
+            service.reportFinish(ex.hedgeEntity, System.nanoTime() - ex.hedgeSince, failed);
+            if (metrics != null) {
+                metrics.meter(ex.hedgeEntity.getName(), ex.hedgeEntity.getInstanceId()).finish();
+            }
+            ex.hedgeEntity = null;
+        }
+    }
+
+    /**
+     * Answer an exchange from the cache when it holds a fresh response,
+     * otherwise let the upstream revalidate a stale one
+     *
+     * @return whether the request still goes to the upstream
+     */
+    private boolean fromCache(HttpProxyExchange ex) {
+        if (ex.service == null || (ex.cache = cache.lookup(ex.service, ex.request)) == null) {
+            return true;
+        }
+        FullHttpResponse res = ex.cache.hit();
+        if (res == null) {
+            ex.cache.revalidate(ex.request);
+            return true;
+        }
+        ex.releaseCache();
+        ex.failed = true;
+        ex.releasePending();
+        HttpUtil.setKeepAlive(res, ex.keepAlive);
+        respond(ex, res, true);
+        updateReadable();
+        return false;
+    }
+
+    private void sendToUpstream(final int retryCount, final ChannelHandlerContext ctx, final HttpProxyExchange ex) {
+        if (ex.closed || ex.failed) {
+            return;
+        }
+        if (retryCount >= config.getUpstreamRetryMax()) {
+            failRequest(ex, HttpResponseStatus.BAD_GATEWAY);
             return;
         }
         try {
-            final ServiceEntity<String> entity = fetchService(msg, service);
+            if (slowLog != null) {
+                ex.lookup = System.nanoTime();
+            }
+            final ServiceEntity<String> entity = fetchService(ex.service, ex.request, service, hashKey);
+            if (slowLog != null) {
+                ex.looked = System.nanoTime();
+            }
             if (entity == null) {
-                closeOnFlush(ctx.channel());
+                failRequest(ex, HttpResponseStatus.SERVICE_UNAVAILABLE);
                 return;
             }
-            final String remoteHost = entity.getAddress();
-            final Integer remotePort = entity.getPort();
-            final String key = remoteHost + ':' + remotePort;
-            Channel upstream = upstreams.get(key);
-            msg.retain();
-            if (upstream != null) {
-                if (upstream.isActive()) {
-                    upstream.writeAndFlush(msg);
-                    return;
-                } else {
-                    upstreams.remove(key);
-                }
+            if (health != null) {
+                health.watch(entity.getName(), eventLoop(), pool.isHttp2(entity.getName()));
             }
-            Bootstrap client = initUpstreamHandler(config, ctx.channel());
-            client.connect(remoteHost, remotePort).addListener(new ChannelFutureListener() {
-                public void operationComplete(ChannelFuture future) throws Exception {
-                    if (future.isSuccess()) {
-                        Channel ch = future.channel();
-                        ch.writeAndFlush(msg);
-                        upstreams.put(ch.remoteAddress().toString().substring(1), ch);
+            final InetSocketAddress remote = entity.getSocketAddress();
+            Future<Channel> acquired = pool.acquire(remote, pool.isHttp2(entity.getName()));
+            if (acquired.isSuccess()) {
+                flushPending(ex, acquired.getNow(), entity);
+                return;
+            }
+            acquired.addListener(new FutureListener<Channel>() {
+                public void operationComplete(Future<Channel> future) throws Exception {
+                    if (ex.closed || ex.failed) {
+                        if (future.isSuccess()) {
+                            pool.releaseUnused(future.getNow());
+                        }
+                    } else if (future.isSuccess()) {
+                        flushPending(ex, future.getNow(), entity);
+                        updateReadable();
                     } else {
-                        log.error("Can't connect to upstream server {}:{}", remoteHost, remotePort);
+                        log.error("Can't connect to upstream server {}", remote);
                         service.reportError(entity);
-                        Thread.sleep(100);
-                        sendToUpstream(retryCount + 1, ctx, msg);
+                        retryLater(retryCount + 1, ctx, ex);
                     }
                 }
             });
         } catch (Throwable e) {
             log.error(e.getMessage(), e);
-            closeOnFlush(ctx.channel());
+            failRequest(ex, HttpResponseStatus.BAD_GATEWAY);
+        }
+    }
+
+    /**
+     * Send a request once more to the same instance on a new connection, the reused one closed on it
+     */
+    private void resend(final HttpProxyExchange ex) {
+        log.debug("Resend {} on a new connection to {}:{}", ex, ex.entity.getAddress(), ex.entity.getPort());
+        ex.staleRetried = true;
+        ex.upstream = null;
+        /* Not a failure of the instance, the connection was closed idle */
+        finishUpstream(ex, false);
+        ex.pending.add(copyOf(ex.request));
+        final ServiceEntity<String> entity = ex.entity;
+        pool.acquireNew(entity.getSocketAddress()).addListener(new FutureListener<Channel>() {
+            public void operationComplete(Future<Channel> future) throws Exception {
+                if (ex.closed || ex.failed) {
+                    if (future.isSuccess()) {
+                        pool.releaseUnused(future.getNow());
+                    }
+                } else if (future.isSuccess()) {
+                    flushPending(ex, future.getNow(), entity);
+                    updateReadable();
+                } else {
+                    log.error("Can't connect to upstream server {}", entity.getSocketAddress());
+                    service.reportError(entity);
+                    retryLater(1, ctx, ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Schedule a retry on the event loop with exponential backoff and jitter,
+     * the loop keeps serving other connections in the meantime
+     */
+    private void retryLater(final int retryCount, final ChannelHandlerContext ctx, final HttpProxyExchange ex) {
+        long delay = TimeUnit.MILLISECONDS.toNanos(config.getUpstreamRetryBackoffMs());
+        long delayMax = TimeUnit.MILLISECONDS.toNanos(config.getUpstreamRetryBackoffMaxMs());
+        delay = Math.min(delayMax, delay << Math.min(30, retryCount - 1));
+        double jitter = Math.min(1.0, Math.max(0.0, config.getUpstreamRetryJitter()));
+        delay -= (long) (delay * jitter * PlatformDependent.threadLocalRandom().nextDouble());
+        if (System.nanoTime() + delay - ex.deadline >= 0) {
+            failRequest(ex, HttpResponseStatus.GATEWAY_TIMEOUT);
+            return;
+        }
+        ctx.channel().eventLoop().schedule(new Runnable() {
+            public void run() {
+                sendToUpstream(retryCount, ctx, ex);
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Hedge a sent request once it is late by the latencies of its service, when it can be sent twice
+     */
+    private void scheduleHedge(final HttpProxyExchange ex) {
+        if (ex.hedge != null || !isReplayable(ex.request)) {
+            return;
+        }
+        long delay = hedging.delay(ex.entity.getName());
+        if (delay < 0 || System.nanoTime() + delay - ex.deadline >= 0) {
+            return;
+        }
+        final HttpProxyUpstream up = ex.upstream;
+        ctx.channel().eventLoop().schedule(new Runnable() {
+            public void run() {
+                if (!ex.closed && !ex.responseStarted && ex.upstream == up && ex.hedge == null
+                    && hedging.withdraw()) {
+                    hedge(ex);
+                }
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Send a copy of a request to another instance of its service
+     */
+    private void hedge(final HttpProxyExchange ex) {
+        ServiceEntity<String> other = null;
+        for (int i = 0; i < 3 && other == null; i++) {
+            ServiceEntity<String> entity = fetchService(ex.service, ex.request, service, hashKey);
+            if (entity != null && !entity.getInstanceId().equals(ex.entity.getInstanceId())) {
+                other = entity;
+            }
+        }
+        if (other == null) {
+            return;
+        }
+        final ServiceEntity<String> entity = other;
+        log.debug("Hedge {} to {}:{}", ex, entity.getAddress(), entity.getPort());
+        pool.acquire(entity.getSocketAddress(), pool.isHttp2(entity.getName()))
+            .addListener(new FutureListener<Channel>() {
+                public void operationComplete(Future<Channel> future) throws Exception {
+                    if (!future.isSuccess()) {
+                        return;
+                    }
+                    if (ex.closed || ex.responseStarted || ex.upstream == null || ex.hedge != null) {
+                        pool.releaseUnused(future.getNow());
+                        return;
+                    }
+                    Channel ch = future.getNow();
+                    HttpProxyUpstream up = ch.pipeline().get(HttpProxyUpstream.class);
+                    ex.hedge = up;
+                    ex.hedgeEntity = entity;
+                    ex.hedgeSince = System.nanoTime();
+                    service.reportStart(entity);
+                    if (metrics != null) {
+                        metrics.meter(entity.getName(), entity.getInstanceId()).start();
+                    }
+                    up.bind(ex);
+                    ch.writeAndFlush(copyOf(ex.request));
+                    requestSent(ex, up);
+                }
+            });
+    }
+
+    /**
+     * The whole request of an exchange was written to an upstream, its response is due within the timeout
+     */
+    private void requestSent(HttpProxyExchange ex, HttpProxyUpstream up) {
+        if (!ex.responseStarted) {
+            scheduleTimeout(ex, up);
+        }
+        up.requestSent();
+    }
+
+    /**
+     * Give up the upstream of an exchange when its response has not started in time after the
+     * request was written, however long the request took to arrive
+     */
+    private void scheduleTimeout(final HttpProxyExchange ex, final HttpProxyUpstream up) {
+        ScheduledFuture<?> timeout = ctx.channel().eventLoop().schedule(new Runnable() {
+            public void run() {
+                if (!ex.closed && !ex.responseStarted && ex.upstream == up) {
+                    log.error("Upstream response timeout from {}:{}", ex.entity.getAddress(), ex.entity.getPort());
+                    if (hedging != null) {
+                        hedging.record(ex.entity.getName(), System.nanoTime() - ex.upstreamSince);
+                    }
+                    up.unbind(ex);
+                    ex.upstream = null;
+                    finishUpstream(ex, true);
+                    failRequest(ex, HttpResponseStatus.GATEWAY_TIMEOUT);
+                }
+            }
+        }, config.getUpstreamTimeoutMs(), TimeUnit.MILLISECONDS);
+        up.responseTimeout(timeout);
+    }
+
+    /**
+     * Answer an exchange from the proxy itself and close the connection after it
+     */
+    private void failRequest(HttpProxyExchange ex, HttpResponseStatus status) {
+        ex.failed = true;
+        ex.keepAlive = false;
+        ex.releasePending();
+        cancelHedge(ex, false);
+        FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
+        HttpUtil.setContentLength(res, 0);
+        HttpUtil.setKeepAlive(res, false);
+        respond(ex, res, true);
+        updateReadable();
+    }
+
+    private void flushPending(HttpProxyExchange ex, Channel ch, ServiceEntity<String> entity) {
+        HttpProxyUpstream up = ch.pipeline().get(HttpProxyUpstream.class);
+        ex.entity = entity;
+        ex.upstream = up;
+        ex.outstanding = true;
+        ex.upstreamSince = ex.acquired = System.nanoTime();
+        service.reportStart(entity);
+        if (metrics != null) {
+            metrics.meter(entity.getName(), entity.getInstanceId()).start();
+        }
+        up.bind(ex);
+        HttpObject msg;
+        while ((msg = ex.pending.poll()) != null) {
+            ch.write(msg);
+        }
+        ch.flush();
+        if (hedging != null) {
+            hedging.deposit();
+        }
+        if (ex.requestDone) {
+            if (slowLog != null) {
+                ex.written = System.nanoTime();
+            }
+            requestSent(ex, up);
+            if (hedging != null) {
+                scheduleHedge(ex);
+            }
         }
     }
 
-    static ServerBootstrap init(final HttpProxyConfig config, final ServiceBroker<String> service) {
+    static ServerBootstrap init(final HttpProxyConfig config, final ServiceBroker<String> service,
+                                final HttpProxyTransport transport, final HttpProxyMetrics metrics,
+                                final HttpProxySlowLog slowLog, final HttpProxyAccessLog accessLog,
+                                final HttpProxyRoutes routes) {
         assert service != null;
+        final HttpProxyPool.Group pools = newPools(config, transport);
+        final HttpProxyCache cache = config.getCache() ? new HttpProxyCache(config) : null;
+        final HttpProxyCoalescer coalescer = config.getCoalesce() ? new HttpProxyCoalescer(config) : null;
+        final HttpProxyHashKey hashKey = HttpProxyHashKey.parse(config.getUpstreamHashKey());
+        final HttpProxyHedging hedging = config.getHedge() ? newHedging(config, service.producer()) : null;
+        final HttpProxyHealth health = config.getHealthCheck()
+            ? new HttpProxyHealth(config, service.producer(), transport) : null;
         ServerBootstrap boot = new ServerBootstrap();
-        boot.channel(NioServerSocketChannel.class);
+        transport.configure(boot, config);
+        if (config.getStreaming()) {
+            boot.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, waterMark(config));
+        }
+        final ChannelHandler streamInitializer = new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                ch.pipeline().addLast(new HttpProxyHttp2.Downgrader());
+                ch.pipeline().addLast(newHandlers(config, service, pools, cache, coalescer, hashKey, hedging,
+                    health, metrics, slowLog, accessLog, routes));
+            }
+        };
         boot.childHandler(new ChannelInitializer<SocketChannel>() {
             @Override
             protected void initChannel(SocketChannel ch) throws Exception {
-                final int maxLen = config.getAggregatedKilobyteMax() * 1024;
-                ch.pipeline()
-                    .addLast(new HttpServerCodec())
-                    .addLast(new HttpObjectAggregator(maxLen))
-                    .addLast(new HttpProxyHandler(config, service.producer()));
+                if (config.getHttp2()) {
+                    HttpProxyHttp2.initServer(ch.pipeline(), config, streamInitializer,
+                        newHandlers(config, service, pools, cache, coalescer, hashKey, hedging,
+                            health, metrics, slowLog, accessLog, routes));
+                } else {
+                    ch.pipeline().addLast(new HttpServerCodec());
+                    ch.pipeline().addLast(newHandlers(config, service, pools, cache, coalescer, hashKey, hedging,
+                    health, metrics, slowLog, accessLog, routes));
+                }
+            }
+        });
+        return boot;
+    }
+
+    /**
+     * Upstream connections of all the event loops
+     */
+    static HttpProxyPool.Group newPools(HttpProxyConfig config, HttpProxyTransport transport) {
+        return new HttpProxyPool.Group(config, initUpstreamHandler(config, transport),
+            initUpstreamHttp2(config, transport), initUpstreamStream(config));
+    }
+
+    /**
+     * Handlers of one HTTP/1.1 connection or of one HTTP/2 stream, after its codec
+     */
+    static ChannelHandler[] newHandlers(HttpProxyConfig config, ServiceBroker<String> service,
+                                        HttpProxyPool.Group pools, HttpProxyCache cache,
+                                        HttpProxyCoalescer coalescer, HttpProxyHashKey hashKey,
+                                        HttpProxyHedging hedging, HttpProxyHealth health,
+                                        HttpProxyMetrics metrics, HttpProxySlowLog slowLog,
+                                        HttpProxyAccessLog accessLog, HttpProxyRoutes routes) {
+        HttpProxyHandler handler = new HttpProxyHandler(config, service.producer(), pools,
+            cache, coalescer, hashKey, hedging, health, metrics, slowLog, accessLog, routes);
+        if (config.getStreaming()) {
+            return new ChannelHandler[]{handler};
+        }
+        final int maxLen = config.getAggregatedKilobyteMax() * 1024;
+        return new ChannelHandler[]{new HttpObjectAggregator(maxLen), handler};
+    }
+
+    /**
+     * Template of upstream connections, cloned onto each event loop by {@link HttpProxyPool}
+     */
+    private static Bootstrap initUpstreamHandler(final HttpProxyConfig config, final HttpProxyTransport transport) {
+        Bootstrap boot = new Bootstrap();
+        transport.configure(boot, config);
+        boot.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, config.getUpstreamConnectTimeoutMs());
+        if (config.getStreaming()) {
+            boot.option(ChannelOption.WRITE_BUFFER_WATER_MARK, waterMark(config));
+        }
+        boot.handler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) throws Exception {
+                ch.pipeline().addLast(new HttpClientCodec());
+                if (!config.getStreaming()) {
+                    final int maxLen = config.getAggregatedKilobyteMax() * 1024;
+                    ch.pipeline().addLast(new HttpObjectAggregator(maxLen));
+                }
+                ch.pipeline().addLast(new HttpProxyUpstream(HttpProxyPool.of(ch)));
             }
         });
         return boot;
     }
 
-    private static Bootstrap initUpstreamHandler(final HttpProxyConfig config, final Channel downstream) {
+    /**
+     * Template of multiplexed connections to HTTP/2 upstream instances
+     */
+    private static Bootstrap initUpstreamHttp2(final HttpProxyConfig config, final HttpProxyTransport transport) {
         Bootstrap boot = new Bootstrap();
-        boot.group(downstream.eventLoop());
-        boot.channel(downstream.getClass());
+        transport.configure(boot, config);
+        boot.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, config.getUpstreamConnectTimeoutMs());
         boot.handler(new ChannelInitializer<SocketChannel>() {
             @Override
             protected void initChannel(SocketChannel ch) throws Exception {
-                final int maxLen = config.getAggregatedKilobyteMax() * 1024;
-                ch.pipeline()
-                    .addLast(new HttpClientCodec())
-                    .addLast(new HttpObjectAggregator(maxLen))
-                    .addLast(new HttpProxyUpstream(downstream));
+                HttpProxyHttp2.initClient(ch.pipeline());
             }
         });
         return boot;
     }
 
-    private static ServiceEntity<String> fetchService(HttpRequest req, ServiceProducer<String> service) {
-        String uri = req.uri().substring(1);
-        int index = uri.indexOf('/');
-        if (index >= 0) {
-            uri = uri.substring(0, index);
+    /**
+     * Handler of the streams of HTTP/2 upstream connections, one exchange each
+     */
+    private static ChannelHandler initUpstreamStream(final HttpProxyConfig config) {
+        return new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                ch.pipeline().addLast(new HttpProxyHttp2.ClientCodec());
+                if (!config.getStreaming()) {
+                    final int maxLen = config.getAggregatedKilobyteMax() * 1024;
+                    ch.pipeline().addLast(new HttpObjectAggregator(maxLen));
+                }
+                ch.pipeline().addLast(new HttpProxyUpstream(HttpProxyPool.of(ch)));
+            }
+        };
+    }
+
+    private static WriteBufferWaterMark waterMark(HttpProxyConfig config) {
+        final int high = Math.max(2, config.getStreamingBufferKilobyteMax()) * 1024;
+        return new WriteBufferWaterMark(high / 2, high);
+    }
+
+    /**
+     * Whether a request is a GET or HEAD without a body, which may be sent twice or share a response
+     */
+    static boolean isReplayable(HttpRequest req) {
+        HttpMethod method = req.method();
+        if (!HttpMethod.GET.equals(method) && !HttpMethod.HEAD.equals(method)) {
+            return false;
         }
-        if (uri.length() <= 0) {
-            log.error("Bad uri: {}", uri);
+        return HttpUtil.getContentLength(req, 0L) == 0 && !HttpUtil.isTransferEncodingChunked(req);
+    }
+
+    /**
+     * Copy of a request without a body, to send it once more
+     */
+    private static FullHttpRequest copyOf(HttpRequest req) {
+        FullHttpRequest copy = new DefaultFullHttpRequest(req.protocolVersion(), req.method(), req.uri(),
+            Unpooled.EMPTY_BUFFER);
+        copy.headers().set(req.headers());
+        return copy;
+    }
+
+    /**
+     * Null when the strategy of the producer gives a request the same instance each time
+     */
+    private static HttpProxyHedging newHedging(HttpProxyConfig config, ServiceProducer<String> producer) {
+        ServiceProducer.Strategy strategy = producer.getConfig().getProviderStrategy();
+        if (!HttpProxyHedging.isSupported(strategy)) {
+            log.warn("No hedging with the {} strategy, it produces the same instance again", strategy);
+            return null;
+        }
+        return new HttpProxyHedging(config);
+    }
+
+    static ServiceEntity<String> fetchService(String serviceName, HttpRequest req,
+                                              ServiceProducer<String> service, HttpProxyHashKey hashKey) {
+        if (serviceName == null) {
+            log.error("Bad uri: {}", req.uri());
             return null;
         }
-        String serviceName = uri;
-        ServiceEntity<String> entity = service.produce(serviceName);
+        ServiceEntity<String> entity = hashKey == null ? service.produce(serviceName)
+            : service.produce(serviceName, service.getConfig().getProviderStrategy(), hashKey.of(req));
         if (entity == null) {
             log.error("No service instance: {}", service.getConfig().getBasePath() + '/' + serviceName);
         }
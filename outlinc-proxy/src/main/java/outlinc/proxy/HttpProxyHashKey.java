@@ -0,0 +1,108 @@
+package outlinc.proxy;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http.cookie.Cookie;
+import io.netty.handler.codec.http.cookie.ServerCookieDecoder;
+
+import java.util.List;
+
+/**
+ * Key of a request for consistent hashing over the instances of its service, taken from
+ * a header ({@code header:name}), a cookie ({@code cookie:name}), a query parameter
+ * ({@code query:name}), a path segment after the service name ({@code path:1} for the
+ * first one) or the whole uri ({@code uri})
+ */
+final class HttpProxyHashKey {
+
+    private enum Source {
+        HEADER, COOKIE, QUERY, PATH, URI
+    }
+
+    private final Source source;
+    private final String name;
+    private final int segment;
+
+    private HttpProxyHashKey(Source source, String name, int segment) {
+        this.source = source;
+        this.name = name;
+        this.segment = segment;
+    }
+
+    /**
+     * @return null when no key is configured
+     */
+    static HttpProxyHashKey parse(String spec) {
+        spec = spec.trim();
+        if (spec.length() == 0) {
+            return null;
+        }
+        if (spec.equalsIgnoreCase("uri")) {
+            return new HttpProxyHashKey(Source.URI, null, 0);
+        }
+        int index = spec.indexOf(':');
+        if (index <= 0 || index == spec.length() - 1) {
+            throw new IllegalArgumentException("Bad hash key: " + spec);
+        }
+        String type = spec.substring(0, index).trim();
+        String name = spec.substring(index + 1).trim();
+        if (type.equalsIgnoreCase("header")) {
+            return new HttpProxyHashKey(Source.HEADER, name, 0);
+        }
+        if (type.equalsIgnoreCase("cookie")) {
+            return new HttpProxyHashKey(Source.COOKIE, name, 0);
+        }
+        if (type.equalsIgnoreCase("query")) {
+            return new HttpProxyHashKey(Source.QUERY, name, 0);
+        }
+        if (type.equalsIgnoreCase("path")) {
+            return new HttpProxyHashKey(Source.PATH, null, Integer.parseInt(name));
+        }
+        throw new IllegalArgumentException("Bad hash key: " + spec);
+    }
+
+    /**
+     * @return null when the request has no such key
+     */
+    String of(HttpRequest req) {
+        switch (source) {
+            case HEADER:
+                return req.headers().get(name);
+            case COOKIE:
+                String header = req.headers().get(HttpHeaderNames.COOKIE);
+                if (header != null) {
+                    for (Cookie cookie : ServerCookieDecoder.LAX.decode(header)) {
+                        if (name.equals(cookie.name())) {
+                            return cookie.value();
+                        }
+                    }
+                }
+                return null;
+            case QUERY:
+                List<String> values = new QueryStringDecoder(req.uri()).parameters().get(name);
+                return values != null ? values.get(0) : null;
+            case PATH:
+                return pathSegment(req.uri(), segment);
+            default:
+                return req.uri();
+        }
+    }
+
+    private static String pathSegment(String uri, int segment) {
+        int end = uri.indexOf('?');
+        if (end < 0) {
+            end = uri.length();
+        }
+        int start = 1;
+        for (int i = 0; i < segment; i++) {
+            start = uri.indexOf('/', start) + 1;
+            if (start <= 0 || start >= end) {
+                return null;
+            }
+        }
+        int next = uri.indexOf('/', start);
+        return uri.substring(start, next < 0 || next > end ? end : next);
+    }
+
+}
@@ -0,0 +1,220 @@
+package outlinc.proxy;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.*;
+import io.netty.handler.codec.http.*;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import outlinc.discovery.ServiceEntity;
+import outlinc.discovery.ServiceProducer;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Active health checks of the instances of the services proxied so far, each service probed
+ * from the event loop that first proxied it. The instances are listed by a thread of its own,
+ * as listing them may ask ZooKeeper. Instances failing a number of probes in a row are
+ * marked down in the producer, and marked up again by their first successful probe
+ */
+final class HttpProxyHealth {
+
+    private final static Logger log = LoggerFactory.getLogger(HttpProxyHealth.class);
+    private final ConcurrentMap<String, Checker> checkers = new ConcurrentHashMap<String, Checker>();
+    private final ScheduledExecutorService lister = Executors.newSingleThreadScheduledExecutor(
+        new DefaultThreadFactory("outlinc-proxy-health", true));
+    private final ServiceProducer<String> service;
+    private final Bootstrap bootstrap;
+    private final String path;
+    private final long intervalMs;
+    private final long timeoutMs;
+    private final int threshold;
+
+    HttpProxyHealth(HttpProxyConfig config, ServiceProducer<String> service, HttpProxyTransport transport) {
+        this.service = service;
+        this.path = config.getHealthCheckPath().trim();
+        this.intervalMs = Math.max(1, config.getHealthCheckIntervalMs());
+        this.timeoutMs = Math.max(1, config.getHealthCheckTimeoutMs());
+        this.threshold = Math.max(1, config.getHealthCheckUnhealthyThreshold());
+        this.bootstrap = new Bootstrap();
+        transport.configure(bootstrap, config);
+        bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) Math.min(Integer.MAX_VALUE, timeoutMs));
+    }
+
+    /**
+     * Start checking the instances of a service, unless they are checked already
+     *
+     * @param http2 whether the instances speak HTTP/2 only, they are checked by TCP connects
+     */
+    void watch(String serviceName, EventLoop loop, boolean http2) {
+        if (checkers.containsKey(serviceName)) {
+            return;
+        }
+        Checker checker = new Checker(serviceName, loop, http2 || path.length() == 0);
+        if (checkers.putIfAbsent(serviceName, checker) == null) {
+            lister.scheduleWithFixedDelay(checker, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Probes of the instances of one service, its state confined to the event loop
+     */
+    private final class Checker implements Runnable {
+        private final String serviceName;
+        private final EventLoop loop;
+        private final boolean tcp;
+        /**
+         * Probes failed in a row by instance id
+         */
+        private final Map<String, Integer> failures = new HashMap<String, Integer>();
+        private final Set<String> probing = new HashSet<String>();
+
+        Checker(String serviceName, EventLoop loop, boolean tcp) {
+            this.serviceName = serviceName;
+            this.loop = loop;
+            this.tcp = tcp;
+        }
+
+        /**
+         * List the instances, then probe them on the event loop
+         */
+        @Override
+        public void run() {
+            final List<ServiceEntity<String>> entities = service.produceAll(serviceName);
+            /* Rejected once the loop shuts down, which ends the checks */
+            loop.execute(new Runnable() {
+                public void run() {
+                    check(entities);
+                }
+            });
+        }
+
+        private void check(List<ServiceEntity<String>> entities) {
+            Set<String> ids = new HashSet<String>();
+            for (ServiceEntity<String> entity : entities) {
+                ids.add(entity.getInstanceId());
+                /* A probe slower than the interval is not overlapped */
+                if (probing.add(entity.getInstanceId())) {
+                    probe(entity);
+                }
+            }
+            failures.keySet().retainAll(ids);
+        }
+
+        private void probe(final ServiceEntity<String> entity) {
+            Bootstrap boot = bootstrap.clone(loop);
+            final Probe probe = new Probe(this, entity);
+            if (tcp) {
+                boot.handler(new ChannelInboundHandlerAdapter());
+            } else {
+                boot.handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        ch.pipeline().addLast(new HttpClientCodec());
+                        ch.pipeline().addLast(probe);
+                    }
+                });
+            }
+            boot.connect(entity.getSocketAddress()).addListener(new ChannelFutureListener() {
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (!future.isSuccess()) {
+                        probe.done(false);
+                    } else if (tcp) {
+                        probe.done(true);
+                        future.channel().close();
+                    } else {
+                        probe.start(future.channel());
+                    }
+                }
+            });
+        }
+
+        void result(ServiceEntity<String> entity, boolean healthy) {
+            String id = entity.getInstanceId();
+            probing.remove(id);
+            Integer failed = failures.get(id);
+            if (healthy) {
+                failures.remove(id);
+                if ((failed != null || !entity.isEnabled()) && service.markUp(id)) {
+                    log.info("Instance {}:{} of {} is healthy again", entity.getAddress(), entity.getPort(), serviceName);
+                }
+                return;
+            }
+            failed = failed == null ? 1 : failed + 1;
+            failures.put(id, failed);
+            if (failed >= threshold && service.markDown(id)) {
+                log.warn("Instance {}:{} of {} is unhealthy, failed {} checks",
+                    entity.getAddress(), entity.getPort(), serviceName, failed);
+            }
+        }
+    }
+
+    /**
+     * One HTTP check of an instance, healthy when the response status is 2xx
+     */
+    private final class Probe extends SimpleChannelInboundHandler<HttpObject> {
+        private final Checker checker;
+        private final ServiceEntity<String> entity;
+        private ScheduledFuture<?> timeout;
+        private boolean done;
+
+        Probe(Checker checker, ServiceEntity<String> entity) {
+            this.checker = checker;
+            this.entity = entity;
+        }
+
+        void start(final Channel ch) {
+            timeout = ch.eventLoop().schedule(new Runnable() {
+                public void run() {
+                    done(false);
+                    ch.close();
+                }
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+            FullHttpRequest req = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, path);
+            req.headers().set(HttpHeaderNames.HOST, entity.getAddress() + ':' + entity.getPort());
+            HttpUtil.setContentLength(req, 0);
+            HttpUtil.setKeepAlive(req, false);
+            ch.writeAndFlush(req);
+        }
+
+        void done(boolean healthy) {
+            if (done) {
+                return;
+            }
+            done = true;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            checker.result(entity, healthy);
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) throws Exception {
+            if (msg instanceof HttpResponse) {
+                int code = ((HttpResponse) msg).status().code();
+                done(code >= 200 && code < 300);
+                ctx.close();
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            done(false);
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            log.debug("Check of {}:{} failed: {}", entity.getAddress(), entity.getPort(), cause.getMessage());
+            done(false);
+            ctx.close();
+        }
+    }
+
+}
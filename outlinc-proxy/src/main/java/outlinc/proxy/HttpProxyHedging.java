@@ -0,0 +1,179 @@
+package outlinc.proxy;
+
+import outlinc.discovery.ServiceProducer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * When to send a second copy of an idempotent request to another instance: after the
+ * configured percentile of the recent upstream latencies of its service, and only while
+ * the budget allows, each request earns a fraction of a hedge and each hedge spends one.
+ * <p>
+ * A request given up for its hedge or its deadline is recorded with the time it took until
+ * then, a lower bound of its latency, so that the percentile is not only of the responses
+ * fast enough to win. A hedge losing the race is not recorded, its bound is below the response.
+ */
+final class HttpProxyHedging {
+
+    /**
+     * Budget units of one hedge, a request earns the budget percentage in hundredths of a percent
+     */
+    private static final long HEDGE = 100 * 100;
+    /**
+     * Hedges that may be spent at once after a quiet period
+     */
+    private static final long BURST = 10;
+    /**
+     * Latency samples of a service in the window before it is hedged
+     */
+    private static final long SAMPLES_MIN = 20;
+
+    private final ConcurrentMap<String, Latency> latencies = new ConcurrentHashMap<String, Latency>();
+    private final AtomicLong credits = new AtomicLong();
+    private final double percentile;
+    private final long delayMinNanos;
+    private final long earned;
+    private final long windowNanos;
+
+    HttpProxyHedging(HttpProxyConfig config) {
+        this.percentile = Math.min(100, Math.max(0, config.getHedgePercentile()));
+        this.delayMinNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, config.getHedgeDelayMinMs()));
+        this.earned = Math.max(0, Math.round(config.getHedgeBudgetPercent() * 100));
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, config.getHedgeWindowMs()));
+    }
+
+    /**
+     * Whether a strategy can produce another instance for a request, not those giving the same one each time
+     */
+    static boolean isSupported(ServiceProducer.Strategy strategy) {
+        return strategy != ServiceProducer.Strategy.Sticky && strategy != ServiceProducer.Strategy.ConsistentHash;
+    }
+
+    /**
+     * A request went to the upstream, it earns part of a hedge
+     */
+    void deposit() {
+        long max = HEDGE * BURST;
+        for (; ; ) {
+            long current = credits.get();
+            if (current >= max || credits.compareAndSet(current, Math.min(max, current + earned))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Spend one hedge from the budget
+     *
+     * @return false when the budget is spent
+     */
+    boolean withdraw() {
+        for (; ; ) {
+            long current = credits.get();
+            if (current < HEDGE) {
+                return false;
+            }
+            if (credits.compareAndSet(current, current - HEDGE)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Time until the response started, of a request to an instance of a service
+     */
+    void record(String serviceName, long latencyNanos) {
+        Latency latency = latencies.get(serviceName);
+        if (latency == null) {
+            Latency prior = latencies.putIfAbsent(serviceName, latency = new Latency());
+            if (prior != null) {
+                latency = prior;
+            }
+        }
+        latency.record(TimeUnit.NANOSECONDS.toMicros(latencyNanos), System.nanoTime());
+    }
+
+    /**
+     * @return nanoseconds to wait for a response before hedging a request, -1 not to hedge
+     */
+    long delay(String serviceName) {
+        Latency latency = latencies.get(serviceName);
+        if (latency == null) {
+            return -1;
+        }
+        long micros = latency.percentile(percentile, System.nanoTime());
+        return micros < 0 ? -1 : Math.max(delayMinNanos, TimeUnit.MICROSECONDS.toNanos(micros));
+    }
+
+    /**
+     * Latency distribution of the last one or two windows, in buckets of a quarter of a power of two
+     */
+    private final class Latency {
+        private static final int BUCKETS = 64 * 4;
+        private volatile AtomicLongArray current = new AtomicLongArray(BUCKETS);
+        private volatile AtomicLongArray previous = new AtomicLongArray(BUCKETS);
+        private volatile long windowStart = System.nanoTime();
+
+        void record(long micros, long now) {
+            rotate(now);
+            current.incrementAndGet(bucket(Math.max(1, micros)));
+        }
+
+        long percentile(double percentile, long now) {
+            rotate(now);
+            AtomicLongArray a = current;
+            AtomicLongArray b = previous;
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += a.get(i) + b.get(i);
+            }
+            if (total < SAMPLES_MIN) {
+                return -1;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += a.get(i) + b.get(i);
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(BUCKETS - 1);
+        }
+
+        private void rotate(long now) {
+            if (now - windowStart < windowNanos) {
+                return;
+            }
+            synchronized (this) {
+                if (now - windowStart >= windowNanos) {
+                    /* A whole window without samples leaves nothing to keep */
+                    previous = now - windowStart < 2 * windowNanos ? current : new AtomicLongArray(BUCKETS);
+                    current = new AtomicLongArray(BUCKETS);
+                    windowStart = now;
+                }
+            }
+        }
+
+        private int bucket(long value) {
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            if (exp < 2) {
+                return (int) value;
+            }
+            return exp * 4 + (int) ((value >>> (exp - 2)) & 3);
+        }
+
+        private long upperBound(int bucket) {
+            int exp = bucket / 4;
+            if (exp < 2) {
+                return bucket + 1;
+            }
+            return (long) (4 + bucket % 4 + 1) << (exp - 2);
+        }
+    }
+
+}
@@ -0,0 +1,265 @@
+package outlinc.proxy;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.handler.codec.MessageToMessageCodec;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http2.*;
+import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.List;
+
+/**
+ * Cleartext HTTP/2 (h2c) of downstream connections. A connection starts with HTTP/1.1
+ * and switches to HTTP/2 on an h2c upgrade request or on the client connection preface,
+ * then every stream is a child channel of its own, reading and writing HTTP/1 objects.
+ * Upstream connections to HTTP/2 instances use prior knowledge and carry one exchange per stream.
+ */
+final class HttpProxyHttp2 {
+
+    private HttpProxyHttp2() {
+    }
+
+    /**
+     * @param streamInitializer initializer of the stream channels
+     * @param http1Handlers     handlers of the connection while it speaks HTTP/1.1
+     */
+    static void initServer(ChannelPipeline pipeline, HttpProxyConfig config,
+                           final ChannelHandler streamInitializer, final ChannelHandler... http1Handlers) {
+        final Http2Settings settings = Http2Settings.defaultSettings()
+            .maxConcurrentStreams(Math.max(1, config.getHttp2StreamsMax()));
+        final HttpServerCodec http1Codec = new HttpServerCodec();
+        final HttpServerUpgradeHandler.UpgradeCodecFactory upgradeFactory = new HttpServerUpgradeHandler.UpgradeCodecFactory() {
+            public HttpServerUpgradeHandler.UpgradeCodec newUpgradeCodec(CharSequence protocol) {
+                if (AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)) {
+                    return new Http2ServerUpgradeCodec(newCodec(settings, streamInitializer));
+                }
+                return null;
+            }
+        };
+        final int maxLen = config.getAggregatedKilobyteMax() * 1024;
+        pipeline.addLast(new CleartextHttp2ServerUpgradeHandler(http1Codec,
+            new HttpServerUpgradeHandler(http1Codec, upgradeFactory, maxLen),
+            new PriorKnowledge(settings, streamInitializer)));
+        pipeline.addLast(http1Handlers);
+        pipeline.addLast(new ProtocolSwitch(http1Handlers));
+    }
+
+    /**
+     * Codec of an upstream connection, its streams are opened by {@link HttpProxyPool}
+     */
+    static void initClient(ChannelPipeline pipeline) {
+        Http2Settings settings = Http2Settings.defaultSettings().pushEnabled(false);
+        pipeline.addLast(new Http2CodecBuilder(false, Refused.INSTANCE).initialSettings(settings).build());
+        pipeline.addBefore(pipeline.context(Http2MultiplexCodec.class).name(), null, new ConnectionState());
+    }
+
+    private static Http2Codec newCodec(Http2Settings settings, ChannelHandler streamInitializer) {
+        return new Http2CodecBuilder(true, streamInitializer).initialSettings(settings).build();
+    }
+
+    /**
+     * Creates the HTTP/2 codec only once the client sent the connection preface,
+     * so plain HTTP/1.1 connections don't pay for it. Stays in front of the codec
+     * until the preface is passed on, a codec replacing the preface decoder directly
+     * would be skipped by the bytes the decoder hands over on its removal.
+     */
+    private static final class PriorKnowledge extends ChannelInboundHandlerAdapter {
+
+        private final Http2Settings settings;
+        private final ChannelHandler streamInitializer;
+
+        private PriorKnowledge(Http2Settings settings, ChannelHandler streamInitializer) {
+            this.settings = settings;
+            this.streamInitializer = streamInitializer;
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+            ctx.pipeline().addAfter(ctx.name(), null, newCodec(settings, streamInitializer));
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            ctx.fireChannelRead(msg);
+            ctx.pipeline().remove(this);
+        }
+    }
+
+    /**
+     * Drops the HTTP/1.1 handlers once the connection speaks HTTP/2
+     */
+    private static final class ProtocolSwitch extends ChannelInboundHandlerAdapter {
+
+        private final ChannelHandler[] http1Handlers;
+
+        private ProtocolSwitch(ChannelHandler[] http1Handlers) {
+            this.http1Handlers = http1Handlers;
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof HttpServerUpgradeHandler.UpgradeEvent
+                || evt instanceof CleartextHttp2ServerUpgradeHandler.PriorKnowledgeUpgradeEvent) {
+                for (ChannelHandler handler : http1Handlers) {
+                    ctx.pipeline().remove(handler);
+                }
+                ctx.pipeline().remove(this);
+            }
+            ctx.fireUserEventTriggered(evt);
+        }
+    }
+
+    /**
+     * Frames of a stream from and to HTTP/1 objects, without the extension
+     * headers of the conversion which mean nothing to the upstream
+     */
+    static final class Downgrader extends Http2ServerDowngrader {
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, Http2StreamFrame frame, List<Object> out) throws Exception {
+            super.decode(ctx, frame, out);
+            for (Object msg : out) {
+                if (msg instanceof HttpRequest) {
+                    HttpHeaders headers = ((HttpRequest) msg).headers();
+                    for (HttpConversionUtil.ExtensionHeaderNames name : HttpConversionUtil.ExtensionHeaderNames.values()) {
+                        headers.remove(name.text());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Streams initiated by an upstream server, not expected with push disabled
+     */
+    @ChannelHandler.Sharable
+    private static final class Refused extends ChannelInboundHandlerAdapter {
+
+        private static final Refused INSTANCE = new Refused();
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            ctx.close();
+        }
+    }
+
+    /**
+     * Tells the pool when an upstream connection is ready for streams and when the server
+     * goes away, the multiplex codec only tells the streams beyond the last one processed
+     */
+    private static final class ConnectionState extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof Http2ConnectionPrefaceWrittenEvent) {
+                final Channel ch = ctx.channel();
+                /* Fired between the preface and the initial SETTINGS, streams must wait for both */
+                ch.eventLoop().execute(new Runnable() {
+                    public void run() {
+                        HttpProxyPool.of(ch).ready(ch);
+                    }
+                });
+            }
+            ctx.fireUserEventTriggered(evt);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof Http2GoAwayFrame) {
+                HttpProxyPool.of(ctx.channel()).drain(ctx.channel());
+            }
+            ctx.fireChannelRead(msg);
+        }
+    }
+
+    /**
+     * HTTP/1 objects of an upstream exchange to and from the frames of its stream
+     */
+    static final class ClientCodec extends MessageToMessageCodec<Http2StreamFrame, HttpObject> {
+
+        private boolean responded;
+
+        @Override
+        public boolean acceptInboundMessage(Object msg) throws Exception {
+            return (msg instanceof Http2HeadersFrame) || (msg instanceof Http2DataFrame);
+        }
+
+        @Override
+        protected void encode(ChannelHandlerContext ctx, HttpObject obj, List<Object> out) throws Exception {
+            if (obj instanceof HttpRequest) {
+                HttpRequest req = (HttpRequest) obj;
+                Http2Headers headers = HttpConversionUtil.toHttp2Headers(req.headers(), false);
+                headers.method(req.method().asciiName()).path(req.uri()).scheme(HttpScheme.HTTP.name());
+                String host = req.headers().get(HttpHeaderNames.HOST);
+                if (host != null) {
+                    headers.authority(host);
+                }
+                boolean endStream = false;
+                if (obj instanceof FullHttpRequest) {
+                    FullHttpRequest full = (FullHttpRequest) obj;
+                    endStream = !full.content().isReadable() && full.trailingHeaders().isEmpty();
+                }
+                out.add(new DefaultHttp2HeadersFrame(headers, endStream));
+                if (endStream) {
+                    return;
+                }
+            }
+            if (obj instanceof LastHttpContent) {
+                LastHttpContent last = (LastHttpContent) obj;
+                boolean trailers = !last.trailingHeaders().isEmpty();
+                if (last.content().isReadable() || !trailers) {
+                    out.add(new DefaultHttp2DataFrame(last.content().retain(), !trailers));
+                }
+                if (trailers) {
+                    out.add(new DefaultHttp2HeadersFrame(
+                        HttpConversionUtil.toHttp2Headers(last.trailingHeaders(), false), true));
+                }
+            } else if (obj instanceof HttpContent) {
+                out.add(new DefaultHttp2DataFrame(((HttpContent) obj).content().retain(), false));
+            }
+        }
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, Http2StreamFrame frame, List<Object> out) throws Exception {
+            if (frame instanceof Http2DataFrame) {
+                Http2DataFrame data = (Http2DataFrame) frame;
+                out.add(data.isEndStream()
+                    ? new DefaultLastHttpContent(data.content().retain())
+                    : new DefaultHttpContent(data.content().retain()));
+                return;
+            }
+            Http2HeadersFrame headersFrame = (Http2HeadersFrame) frame;
+            Http2Headers headers = headersFrame.headers();
+            if (responded || headers.status() == null) {
+                LastHttpContent last = new DefaultLastHttpContent(Unpooled.EMPTY_BUFFER);
+                HttpConversionUtil.addHttp2ToHttpHeaders(0, headers, last.trailingHeaders(),
+                    HttpVersion.HTTP_1_1, true, false);
+                out.add(last);
+                return;
+            }
+            HttpResponseStatus status = HttpConversionUtil.parseStatus(headers.status());
+            boolean informational = status.codeClass() == HttpStatusClass.INFORMATIONAL;
+            HttpResponse res = headersFrame.isEndStream() || informational
+                ? new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, Unpooled.EMPTY_BUFFER)
+                : new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
+            HttpConversionUtil.addHttp2ToHttpHeaders(0, headers, res.headers(), HttpVersion.HTTP_1_1, false, false);
+            res.headers().remove(HttpConversionUtil.ExtensionHeaderNames.STREAM_ID.text());
+            responded = !informational;
+            out.add(res);
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof Http2GoAwayFrame) {
+                /* Beyond the last stream the server processes, the exchange fails as its connection would */
+                ReferenceCountUtil.release(evt);
+                ctx.close();
+                return;
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+    }
+
+}
@@ -0,0 +1,318 @@
+package outlinc.proxy;
+
+import io.netty.util.internal.LongCounter;
+import io.netty.util.internal.PlatformDependent;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request metrics of the proxy by service and instance: responses by status class, bytes received
+ * and sent, upstream requests in flight and the latency distribution. Recorded without locks from
+ * the event loops, read by {@link #snapshot()} or in the Prometheus text format by {@link #prometheus()}.
+ * Latency percentiles are those of the last window of {@link HttpProxyConfig#getMetricsWindowMs()}.
+ * The metrics of an instance idle for {@link HttpProxyConfig#getMetricsExpireMs()} are dropped as they are read
+ */
+public final class HttpProxyMetrics {
+
+    /**
+     * Instance of the requests answered without an upstream instance,
+     * by the cache, by an identical request or by the proxy itself
+     */
+    public static final String NO_INSTANCE = "";
+    /**
+     * Status class of the requests given up before their response was complete
+     */
+    public static final int NO_STATUS = 0;
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] CODES = {"none", "1xx", "2xx", "3xx", "4xx", "5xx"};
+
+    private final ConcurrentMap<String, ConcurrentMap<String, Meter>> services
+        = new ConcurrentHashMap<String, ConcurrentMap<String, Meter>>();
+    private final long windowNanos;
+    private final long expireNanos;
+
+    HttpProxyMetrics(HttpProxyConfig config) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, config.getMetricsWindowMs()));
+        this.expireNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, config.getMetricsExpireMs()));
+    }
+
+    Meter meter(String serviceName, String instanceId) {
+        ConcurrentMap<String, Meter> instances = services.get(serviceName);
+        if (instances == null) {
+            ConcurrentMap<String, Meter> prior = services.putIfAbsent(serviceName,
+                instances = new ConcurrentHashMap<String, Meter>());
+            if (prior != null) {
+                instances = prior;
+            }
+        }
+        Meter meter = instances.get(instanceId);
+        if (meter == null) {
+            Meter prior = instances.putIfAbsent(instanceId, meter = new Meter(serviceName, instanceId));
+            if (prior != null) {
+                meter = prior;
+            }
+        }
+        return meter;
+    }
+
+    public List<Snapshot> snapshot() {
+        long now = System.nanoTime();
+        List<Snapshot> snapshots = new ArrayList<Snapshot>();
+        for (ConcurrentMap<String, Meter> instances : services.values()) {
+            for (Meter meter : instances.values()) {
+                if (meter.isIdle(now, expireNanos)) {
+                    /* A request meanwhile may be recorded by the meter removed, or start a new one */
+                    instances.remove(meter.instanceId, meter);
+                } else {
+                    snapshots.add(meter.snapshot(now, windowNanos));
+                }
+            }
+        }
+        return snapshots;
+    }
+
+    /**
+     * All the metrics in the Prometheus text exposition format
+     */
+    public String prometheus() {
+        List<Snapshot> snapshots = snapshot();
+        StringBuilder s = new StringBuilder(256 + snapshots.size() * 1024);
+        header(s, "outlinc_proxy_requests_total", "counter", "Requests by status class of their response");
+        for (Snapshot snapshot : snapshots) {
+            for (int i = 0; i < CODES.length; i++) {
+                if (snapshot.responses[i] > 0) {
+                    sample(s, "outlinc_proxy_requests_total", snapshot, "code", CODES[i], snapshot.responses[i]);
+                }
+            }
+        }
+        header(s, "outlinc_proxy_received_bytes_total", "counter", "Bytes of request bodies");
+        for (Snapshot snapshot : snapshots) {
+            sample(s, "outlinc_proxy_received_bytes_total", snapshot, null, null, snapshot.bytesIn);
+        }
+        header(s, "outlinc_proxy_sent_bytes_total", "counter", "Bytes of response bodies");
+        for (Snapshot snapshot : snapshots) {
+            sample(s, "outlinc_proxy_sent_bytes_total", snapshot, null, null, snapshot.bytesOut);
+        }
+        header(s, "outlinc_proxy_upstream_requests_in_flight", "gauge", "Requests sent to an instance and not finished");
+        for (Snapshot snapshot : snapshots) {
+            sample(s, "outlinc_proxy_upstream_requests_in_flight", snapshot, null, null, snapshot.inflight);
+        }
+        header(s, "outlinc_proxy_request_duration_seconds", "summary",
+            "Time from the request until the end of its response, quantiles of the last window");
+        for (Snapshot snapshot : snapshots) {
+            for (double quantile : QUANTILES) {
+                sample(s, "outlinc_proxy_request_duration_seconds", snapshot, "quantile", String.valueOf(quantile),
+                    snapshot.getLatencyMicros(quantile * 100) / 1e6);
+            }
+            sample(s, "outlinc_proxy_request_duration_seconds_sum", snapshot, null, null, snapshot.latencySum / 1e9);
+            sample(s, "outlinc_proxy_request_duration_seconds_count", snapshot, null, null, snapshot.getRequests());
+        }
+        return s.toString();
+    }
+
+    private static void header(StringBuilder s, String name, String type, String help) {
+        s.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        s.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder s, String name, Snapshot snapshot,
+                               String label, String labelValue, Object value) {
+        s.append(name).append("{service=\"");
+        escape(s, snapshot.service);
+        s.append("\",instance_id=\"");
+        escape(s, snapshot.instanceId);
+        s.append('"');
+        if (label != null) {
+            s.append(',').append(label).append("=\"");
+            escape(s, labelValue);
+            s.append('"');
+        }
+        s.append("} ").append(value).append('\n');
+    }
+
+    private static void escape(StringBuilder s, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                s.append('\\').append(c);
+            } else if (c == '\n') {
+                s.append("\\n");
+            } else {
+                s.append(c);
+            }
+        }
+    }
+
+    /**
+     * Metrics of one instance of a service
+     */
+    static final class Meter {
+        private final String service;
+        private final String instanceId;
+        private final LongCounter[] responses = new LongCounter[CODES.length];
+        private final LongCounter bytesIn = PlatformDependent.newLongCounter();
+        private final LongCounter bytesOut = PlatformDependent.newLongCounter();
+        private final LongCounter inflight = PlatformDependent.newLongCounter();
+        private final LongCounter latencySum = PlatformDependent.newLongCounter();
+        /**
+         * Latencies in microseconds
+         */
+        private final Recorder latency = new Recorder(2);
+        private Histogram window;
+        private long windowStart = System.nanoTime();
+        private volatile long lastUsed = windowStart;
+
+        private Meter(String service, String instanceId) {
+            this.service = service;
+            this.instanceId = instanceId;
+            for (int i = 0; i < responses.length; i++) {
+                responses[i] = PlatformDependent.newLongCounter();
+            }
+        }
+
+        /**
+         * A request was sent to the instance
+         */
+        void start() {
+            inflight.increment();
+            lastUsed = System.nanoTime();
+        }
+
+        void finish() {
+            inflight.decrement();
+        }
+
+        /**
+         * @param status status code of the response, {@link #NO_STATUS} when there was none
+         */
+        void record(int status, long latencyNanos, long bytesIn, long bytesOut) {
+            int code = status / 100;
+            responses[code > 0 && code < CODES.length ? code : NO_STATUS].increment();
+            this.bytesIn.add(bytesIn);
+            this.bytesOut.add(bytesOut);
+            latencySum.add(latencyNanos);
+            latency.recordValue(Math.max(0, TimeUnit.NANOSECONDS.toMicros(latencyNanos)));
+            lastUsed = System.nanoTime();
+        }
+
+        /**
+         * @return whether no request started or ended for a while, none in flight
+         */
+        boolean isIdle(long now, long idleNanos) {
+            return now - lastUsed >= idleNanos && inflight.value() == 0;
+        }
+
+        synchronized Snapshot snapshot(long now, long windowNanos) {
+            if (window == null || now - windowStart >= windowNanos) {
+                window = latency.getIntervalHistogram(window);
+                windowStart = now;
+            }
+            long[] counts = new long[responses.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = responses[i].value();
+            }
+            return new Snapshot(service, instanceId, counts, bytesIn.value(), bytesOut.value(),
+                inflight.value(), latencySum.value(), window.copy());
+        }
+    }
+
+    /**
+     * Metrics of one instance of a service at one time
+     */
+    public static final class Snapshot {
+        private final String service;
+        private final String instanceId;
+        private final long[] responses;
+        private final long bytesIn;
+        private final long bytesOut;
+        private final long inflight;
+        private final long latencySum;
+        private final Histogram window;
+
+        private Snapshot(String service, String instanceId, long[] responses, long bytesIn, long bytesOut,
+                         long inflight, long latencySum, Histogram window) {
+            this.service = service;
+            this.instanceId = instanceId;
+            this.responses = responses;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+            this.inflight = inflight;
+            this.latencySum = latencySum;
+            this.window = window;
+        }
+
+        public String getService() {
+            return service;
+        }
+
+        /**
+         * @return {@link #NO_INSTANCE} for the requests answered without an instance
+         */
+        public String getInstanceId() {
+            return instanceId;
+        }
+
+        public long getRequests() {
+            long total = 0;
+            for (long count : responses) {
+                total += count;
+            }
+            return total;
+        }
+
+        /**
+         * @param statusClass 1 to 5 for 1xx to 5xx, {@link #NO_STATUS} for the requests without a response
+         */
+        public long getResponses(int statusClass) {
+            return statusClass >= 0 && statusClass < responses.length ? responses[statusClass] : 0;
+        }
+
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        public long getInflight() {
+            return inflight;
+        }
+
+        public long getLatencySumNanos() {
+            return latencySum;
+        }
+
+        /**
+         * @return the latency at a percentile of the last window, 0 when it had no requests
+         */
+        public long getLatencyMicros(double percentile) {
+            return window.getValueAtPercentile(percentile);
+        }
+
+        public long getLatencyMaxMicros() {
+            return window.getMaxValue();
+        }
+
+        /**
+         * @return requests in the last window
+         */
+        public long getWindowRequests() {
+            return window.getTotalCount();
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{service='" + service + "', instanceId='" + instanceId + "', requests=" + getRequests() +
+                ", inflight=" + inflight + ", p50=" + getLatencyMicros(50) + "us, p99=" + getLatencyMicros(99) + "us}";
+        }
+    }
+
+}
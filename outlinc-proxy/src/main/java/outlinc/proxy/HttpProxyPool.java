@@ -0,0 +1,502 @@
+package outlinc.proxy;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.*;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keep-alive upstream connections of one event loop, keyed by the address of their host
+ * and shared by all the handlers running on that loop.
+ * Connections to HTTP/2 hosts are not checked out but multiplexed,
+ * each exchange gets a stream of its own.
+ * All methods must be called on the owning loop, so no locking is needed.
+ */
+class HttpProxyPool {
+
+    private final static AttributeKey<Long> IDLE_SINCE = AttributeKey.valueOf("outlinc.proxy.idleSince");
+    private final static AttributeKey<Host> HOST = AttributeKey.valueOf("outlinc.proxy.host");
+    private final static AttributeKey<HttpProxyPool> POOL = AttributeKey.valueOf("outlinc.proxy.pool");
+    private final static AttributeKey<Multiplexed> MULTIPLEXED = AttributeKey.valueOf("outlinc.proxy.multiplexed");
+    private final EventLoop loop;
+    private final Bootstrap bootstrap;
+    private final Bootstrap http2Bootstrap;
+    private final ChannelHandler http2StreamHandler;
+    private final Set<String> http2Services;
+    private final Map<InetSocketAddress, Host> hosts;
+    private final Map<InetSocketAddress, Host> http2Hosts;
+    private final int maxPerHost;
+    private final int maxIdlePerHost;
+    private final int maxStreams;
+    private final long idleTimeoutMs;
+    private final long acquireTimeoutMs;
+
+    private HttpProxyPool(HttpProxyConfig config, EventLoop loop, Group group) {
+        this.loop = loop;
+        this.bootstrap = group.bootstrap.clone(loop).attr(POOL, this);
+        this.http2Bootstrap = group.http2Bootstrap.clone(loop).attr(POOL, this);
+        this.http2StreamHandler = group.http2StreamHandler;
+        this.http2Services = group.http2Services;
+        this.hosts = new HashMap<InetSocketAddress, Host>();
+        this.http2Hosts = new HashMap<InetSocketAddress, Host>();
+        this.maxPerHost = Math.max(1, config.getUpstreamPoolMaxPerHost());
+        this.maxIdlePerHost = Math.max(0, config.getUpstreamPoolMaxIdlePerHost());
+        this.maxStreams = Math.max(1, config.getUpstreamHttp2StreamsMax());
+        this.idleTimeoutMs = Math.max(1000, config.getUpstreamPoolIdleTimeoutMs());
+        this.acquireTimeoutMs = Math.max(100, config.getUpstreamConnectTimeoutMs());
+        this.loop.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                evictIdle();
+            }
+        }, idleTimeoutMs, idleTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Pool owning an upstream connection, available once the connection is initialized
+     */
+    static HttpProxyPool of(Channel ch) {
+        return ch.attr(POOL).get();
+    }
+
+    /**
+     * Whether the instances of a service are reached over HTTP/2
+     */
+    boolean isHttp2(String service) {
+        return http2Services.contains(service);
+    }
+
+    /**
+     * Check out a healthy idle connection to a host, or open a new one
+     * when the host is below {@link HttpProxyConfig#getUpstreamPoolMaxPerHost()}.
+     * Otherwise wait for a connection to be released.
+     * For an HTTP/2 host the result is a new stream on a shared connection.
+     */
+    Future<Channel> acquire(InetSocketAddress remote, boolean http2) {
+        assert loop.inEventLoop();
+        Host host = host(remote, http2);
+        final Promise<Channel> promise = loop.newPromise();
+        if (http2) {
+            acquireStream(host, promise);
+            return promise;
+        }
+        Channel ch;
+        while ((ch = host.idle.pollLast()) != null) {
+            if (isHealthy(ch)) {
+                ch.attr(IDLE_SINCE).set(null);
+                return promise.setSuccess(ch);
+            }
+            ch.close();
+        }
+        if (host.total < maxPerHost) {
+            connect(host, promise);
+        } else {
+            waitFor(host, promise);
+        }
+        return promise;
+    }
+
+    /**
+     * Open a new HTTP/1 connection to a host past its idle ones, for a request a reused one closed on,
+     * or wait for a connection to be released when the host is at its maximum
+     */
+    Future<Channel> acquireNew(InetSocketAddress remote) {
+        assert loop.inEventLoop();
+        Host host = host(remote, false);
+        Promise<Channel> promise = loop.newPromise();
+        if (host.total < maxPerHost) {
+            connect(host, promise);
+        } else {
+            waitFor(host, promise);
+        }
+        return promise;
+    }
+
+    private Host host(InetSocketAddress remote, boolean http2) {
+        Map<InetSocketAddress, Host> hosts = http2 ? http2Hosts : this.hosts;
+        Host host = hosts.get(remote);
+        if (host == null) {
+            host = new Host(remote, http2);
+            hosts.put(remote, host);
+        }
+        return host;
+    }
+
+    /**
+     * Give back a connection acquired for an exchange that no longer needs it,
+     * a stream that carried nothing is closed right away
+     */
+    void releaseUnused(Channel ch) {
+        Host host = ch.attr(HOST).get();
+        if (host != null && host.http2) {
+            ch.close();
+            return;
+        }
+        release(ch);
+    }
+
+    /**
+     * Return a connection whose last exchange completed cleanly
+     */
+    void release(Channel ch) {
+        assert loop.inEventLoop();
+        Host host = ch.attr(HOST).get();
+        if (host != null && host.http2) {
+            /* A stream is never reused, it closes by itself once both sides ended it */
+            return;
+        }
+        if (host == null || !ch.isActive()) {
+            ch.close();
+            return;
+        }
+        Promise<Channel> waiter;
+        while ((waiter = host.waiters.poll()) != null) {
+            if (waiter.trySuccess(ch)) {
+                return;
+            }
+        }
+        if (host.idle.size() >= maxIdlePerHost) {
+            ch.close();
+            return;
+        }
+        ch.attr(IDLE_SINCE).set(System.currentTimeMillis());
+        host.idle.addLast(ch);
+    }
+
+    /**
+     * An HTTP/2 connection sent its preface and is ready to open streams
+     */
+    void ready(Channel ch) {
+        assert loop.inEventLoop();
+        Host host = ch.attr(HOST).get();
+        if (host == null || ch.attr(MULTIPLEXED).get() != null) {
+            return;
+        }
+        host.connecting--;
+        Multiplexed conn = new Multiplexed(ch);
+        ch.attr(MULTIPLEXED).set(conn);
+        host.multiplexed.add(conn);
+        serveWaiters(host);
+    }
+
+    /**
+     * Stop opening streams on an HTTP/2 connection the server is going away from,
+     * it is closed once its last stream is done
+     */
+    void drain(Channel ch) {
+        assert loop.inEventLoop();
+        Multiplexed conn = ch.attr(MULTIPLEXED).get();
+        Host host = ch.attr(HOST).get();
+        if (conn == null || host == null || conn.draining) {
+            return;
+        }
+        conn.draining = true;
+        host.multiplexed.remove(conn);
+        if (conn.streams == 0) {
+            ch.close();
+        }
+    }
+
+    private void connect(final Host host, final Promise<Channel> promise) {
+        if (host.http2) {
+            connectHttp2(host, promise);
+            return;
+        }
+        host.total++;
+        ChannelFuture future = bootstrap.connect(host.address);
+        final Channel ch = future.channel();
+        ch.attr(HOST).set(host);
+        ch.closeFuture().addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                host.total--;
+                host.idle.remove(ch);
+                Promise<Channel> waiter;
+                while ((waiter = host.waiters.poll()) != null) {
+                    if (!waiter.isDone()) {
+                        connect(host, waiter);
+                        break;
+                    }
+                }
+            }
+        });
+        future.addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    if (!promise.trySuccess(ch)) {
+                        release(ch);
+                    }
+                } else {
+                    promise.tryFailure(future.cause());
+                }
+            }
+        });
+    }
+
+    /**
+     * Open an HTTP/2 connection, the exchange gets its stream once the connection is {@link #ready(Channel)}
+     */
+    private void connectHttp2(final Host host, Promise<Channel> promise) {
+        host.total++;
+        host.connecting++;
+        host.waiters.addFirst(promise);
+        ChannelFuture future = http2Bootstrap.connect(host.address);
+        final Channel ch = future.channel();
+        ch.attr(HOST).set(host);
+        ch.closeFuture().addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                host.total--;
+                Multiplexed conn = ch.attr(MULTIPLEXED).get();
+                if (conn == null) {
+                    host.connecting--;
+                    failWaiters(host, new ConnectException("Connection closed before ready: " + ch));
+                } else {
+                    host.multiplexed.remove(conn);
+                }
+                serveWaiters(host);
+            }
+        });
+        future.addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    /* Waiting for the same connection, they would only fail one by one */
+                    failWaiters(host, future.cause());
+                }
+            }
+        });
+    }
+
+    private void failWaiters(Host host, Throwable cause) {
+        Promise<Channel> waiter;
+        while ((waiter = host.waiters.poll()) != null) {
+            waiter.tryFailure(cause);
+        }
+    }
+
+    private void acquireStream(Host host, Promise<Channel> promise) {
+        Multiplexed conn = available(host);
+        if (conn != null) {
+            openStream(host, conn, promise);
+        } else if (host.connecting == 0 && host.total < maxPerHost) {
+            connect(host, promise);
+        } else {
+            waitFor(host, promise);
+        }
+    }
+
+    private void openStream(final Host host, final Multiplexed conn, final Promise<Channel> promise) {
+        conn.streams++;
+        conn.idleSince = 0;
+        ChannelFuture future = conn.bootstrap.connect();
+        final Channel ch = future.channel();
+        ch.attr(HOST).set(host);
+        ch.closeFuture().addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (--conn.streams == 0) {
+                    conn.idleSince = System.currentTimeMillis();
+                    if (conn.draining) {
+                        conn.channel.close();
+                    }
+                }
+                serveWaiters(host);
+            }
+        });
+        future.addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    promise.tryFailure(future.cause());
+                } else if (!promise.trySuccess(ch)) {
+                    ch.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Hand out streams to waiting exchanges as long as an HTTP/2 connection has room
+     */
+    private void serveWaiters(Host host) {
+        Promise<Channel> waiter;
+        while ((waiter = host.waiters.peek()) != null) {
+            if (waiter.isDone()) {
+                host.waiters.poll();
+                continue;
+            }
+            Multiplexed conn = available(host);
+            if (conn != null) {
+                host.waiters.poll();
+                openStream(host, conn, waiter);
+            } else if (host.connecting == 0 && host.total < maxPerHost) {
+                host.waiters.poll();
+                connect(host, waiter);
+                return;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private Multiplexed available(Host host) {
+        for (Multiplexed conn : host.multiplexed) {
+            if (conn.streams < maxStreams && conn.channel.isActive()) {
+                return conn;
+            }
+        }
+        return null;
+    }
+
+    private void waitFor(Host host, final Promise<Channel> promise) {
+        host.waiters.add(promise);
+        final InetSocketAddress address = host.address;
+        loop.schedule(new Runnable() {
+            public void run() {
+                promise.tryFailure(new ConnectException("Pool exhausted for upstream " + address));
+            }
+        }, acquireTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean isHealthy(Channel ch) {
+        if (!ch.isActive() || !ch.isWritable()) {
+            return false;
+        }
+        Long since = ch.attr(IDLE_SINCE).get();
+        return since != null && System.currentTimeMillis() - since < idleTimeoutMs;
+    }
+
+    private void evictIdle() {
+        evictIdle(hosts);
+        evictIdle(http2Hosts);
+    }
+
+    /**
+     * Close the connections idle for too long, then forget the hosts left without any,
+     * so that instances gone from discovery do not stay in the pool
+     */
+    private void evictIdle(Map<InetSocketAddress, Host> hosts) {
+        final long now = System.currentTimeMillis();
+        Iterator<Host> all = hosts.values().iterator();
+        while (all.hasNext()) {
+            Host host = all.next();
+            Iterator<Channel> it = host.idle.iterator();
+            while (it.hasNext()) {
+                Channel ch = it.next();
+                if (!isHealthy(ch)) {
+                    it.remove();
+                    ch.close();
+                }
+            }
+            Iterator<Multiplexed> conns = host.multiplexed.iterator();
+            while (conns.hasNext()) {
+                Multiplexed conn = conns.next();
+                if (conn.streams == 0 && now - conn.idleSince >= idleTimeoutMs) {
+                    conns.remove();
+                    conn.channel.close();
+                }
+            }
+            if (host.isUnused()) {
+                all.remove();
+            }
+        }
+    }
+
+    private static class Host {
+        private final InetSocketAddress address;
+        private final boolean http2;
+        private final ArrayDeque<Channel> idle = new ArrayDeque<Channel>();
+        private final ArrayDeque<Promise<Channel>> waiters = new ArrayDeque<Promise<Channel>>();
+        /**
+         * Open HTTP/2 connections, busy or not
+         */
+        private final List<Multiplexed> multiplexed = new ArrayList<Multiplexed>(2);
+        private int total = 0;
+        private int connecting = 0;
+
+        private Host(InetSocketAddress address, boolean http2) {
+            this.address = address;
+            this.http2 = http2;
+        }
+
+        /**
+         * No connection open or opening, nor an exchange waiting for one
+         */
+        private boolean isUnused() {
+            if (total > 0 || connecting > 0) {
+                return false;
+            }
+            Promise<Channel> waiter;
+            while ((waiter = waiters.peek()) != null && waiter.isDone()) {
+                waiters.poll();
+            }
+            return waiters.isEmpty();
+        }
+    }
+
+    /**
+     * An HTTP/2 connection and the number of its streams in use
+     */
+    private class Multiplexed {
+        private final Channel channel;
+        private final Http2StreamChannelBootstrap bootstrap;
+        private int streams = 0;
+        private long idleSince = System.currentTimeMillis();
+        private boolean draining = false;
+
+        private Multiplexed(Channel channel) {
+            this.channel = channel;
+            this.bootstrap = new Http2StreamChannelBootstrap()
+                .parentChannel(channel).handler(http2StreamHandler).attr(POOL, HttpProxyPool.this);
+        }
+    }
+
+    /**
+     * One pool per event loop of a proxy server
+     */
+    static class Group {
+
+        private final HttpProxyConfig config;
+        private final Bootstrap bootstrap;
+        private final Bootstrap http2Bootstrap;
+        private final ChannelHandler http2StreamHandler;
+        private final Set<String> http2Services;
+        private final ConcurrentMap<EventLoop, HttpProxyPool> pools;
+
+        /**
+         * @param bootstrap          template of HTTP/1.1 connections
+         * @param http2Bootstrap     template of HTTP/2 connections
+         * @param http2StreamHandler handler of the streams opened on HTTP/2 connections
+         */
+        Group(HttpProxyConfig config, Bootstrap bootstrap, Bootstrap http2Bootstrap, ChannelHandler http2StreamHandler) {
+            this.config = config;
+            this.bootstrap = bootstrap;
+            this.http2Bootstrap = http2Bootstrap;
+            this.http2StreamHandler = http2StreamHandler;
+            this.http2Services = new HashSet<String>();
+            for (String name : config.getUpstreamHttp2Services().split(",")) {
+                if (name.trim().length() > 0) {
+                    http2Services.add(name.trim());
+                }
+            }
+            this.pools = new ConcurrentHashMap<EventLoop, HttpProxyPool>();
+        }
+
+        HttpProxyPool get(EventLoop loop) {
+            HttpProxyPool pool = pools.get(loop);
+            if (pool == null) {
+                pool = new HttpProxyPool(config, loop, this);
+                HttpProxyPool exists = pools.putIfAbsent(loop, pool);
+                if (exists != null) {
+                    pool = exists;
+                }
+            }
+            return pool;
+        }
+    }
+
+}
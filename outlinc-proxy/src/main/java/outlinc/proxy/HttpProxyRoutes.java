@@ -0,0 +1,470 @@
+package outlinc.proxy;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * Routing table of the proxy, compiled once into tries walked along the request without allocation.
+ * A rule {@code proxy.route.<name>} is made of
+ * <ul>
+ * <li>{@code .service} the service of the requests it matches, required</li>
+ * <li>{@code .host} a host name, or {@code *.domain} for any host under a domain, matched without
+ * case nor port</li>
+ * <li>{@code .path} a path prefix, {@code /} when missing, which makes the rule a default route.
+ * A prefix not ending with {@code /} only matches whole segments</li>
+ * <li>{@code .header.<name>} a header value the request must have, {@code *} for any value</li>
+ * <li>{@code .rewrite} what the matched path prefix is replaced with in the upstream request,
+ * possibly empty</li>
+ * </ul>
+ * The rules of the exact host come first, then those of the domains from the longest, then those
+ * without host. Among them the longest path prefix wins, then the rule with more headers, then
+ * the first by name. Requests matching no rule go to the service named by their first path segment,
+ * the names seen so far kept in a table looked up along the path, as for the rules.
+ * Host and path lookups walk one trie each, in time linear to the length of the host and the path.
+ */
+final class HttpProxyRoutes {
+
+    private final static Logger log = LoggerFactory.getLogger(HttpProxyRoutes.class);
+    private static final String PREFIX = "proxy.route.";
+    /**
+     * Names of the first path segments kept at most, others are taken out of their path each time
+     */
+    private static final int NAMES_MAX = 1024;
+    /**
+     * Open addressing table of the names of first path segments, copied on write
+     */
+    private static volatile String[] names = new String[NAMES_MAX * 2];
+    private static int namesSize;
+
+    /**
+     * Reversed host names, each pointing to the path trie of its rules
+     */
+    private final Node hosts = new Node(0);
+    /**
+     * Path trie of the rules without host
+     */
+    private Node paths;
+
+    private HttpProxyRoutes() {
+    }
+
+    /**
+     * Read the rules from the settings, then from a properties file of more rules when named
+     *
+     * @return null when no rule is configured
+     */
+    static HttpProxyRoutes load(Properties props, String file) {
+        Properties rules = new Properties();
+        for (String key : props.stringPropertyNames()) {
+            if (key.startsWith(PREFIX)) {
+                rules.setProperty(key, props.getProperty(key));
+            }
+        }
+        if (file != null && file.trim().length() > 0) {
+            InputStream inp = null;
+            try {
+                inp = new FileInputStream(file.trim());
+                rules.load(inp);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Can't read routes file " + file, e);
+            } finally {
+                if (inp != null) {
+                    try {
+                        inp.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+        return parse(rules);
+    }
+
+    /**
+     * @return null when no rule is configured
+     */
+    static HttpProxyRoutes parse(Properties props) {
+        Map<String, Rule> rules = new TreeMap<String, Rule>();
+        for (String key : props.stringPropertyNames()) {
+            if (!key.startsWith(PREFIX)) {
+                continue;
+            }
+            int index = key.indexOf('.', PREFIX.length());
+            if (index <= PREFIX.length() || index == key.length() - 1) {
+                throw new IllegalArgumentException("Bad route: " + key);
+            }
+            String name = key.substring(PREFIX.length(), index);
+            String field = key.substring(index + 1);
+            String value = props.getProperty(key).trim();
+            Rule rule = rules.get(name);
+            if (rule == null) {
+                rules.put(name, rule = new Rule(name));
+            }
+            if (field.equals("service")) {
+                rule.service = value;
+            } else if (field.equals("host")) {
+                rule.host = value.toLowerCase(Locale.ROOT);
+            } else if (field.equals("path")) {
+                rule.path = value;
+            } else if (field.equals("rewrite")) {
+                rule.rewrite = value;
+            } else if (field.startsWith("header.") && field.length() > "header.".length()) {
+                rule.headers.put(field.substring("header.".length()), value);
+            } else {
+                throw new IllegalArgumentException("Bad route: " + key);
+            }
+        }
+        if (rules.isEmpty()) {
+            return null;
+        }
+        HttpProxyRoutes routes = new HttpProxyRoutes();
+        for (Rule rule : rules.values()) {
+            routes.add(rule.compile());
+            log.info("Route {}", rule);
+        }
+        routes.hosts.link(null);
+        if (routes.paths != null) {
+            routes.paths.link(null);
+        }
+        return routes;
+    }
+
+    private void add(Rule rule) {
+        Node paths;
+        if (rule.host == null) {
+            paths = this.paths == null ? this.paths = new Node(0) : this.paths;
+        } else {
+            boolean wildcard = rule.host.startsWith("*.");
+            String host = wildcard ? rule.host.substring(1) : rule.host;
+            Node node = hosts;
+            for (int i = host.length() - 1; i >= 0; i--) {
+                node = node.child(host.charAt(i));
+            }
+            if (wildcard) {
+                paths = node.domainPaths == null ? node.domainPaths = new Node(0) : node.domainPaths;
+            } else {
+                paths = node.hostPaths == null ? node.hostPaths = new Node(0) : node.hostPaths;
+            }
+        }
+        Node node = paths;
+        for (int i = 0; i < rule.path.length(); i++) {
+            node = node.child(rule.path.charAt(i));
+        }
+        node.add(rule);
+    }
+
+    /**
+     * Find the rule of a request and rewrite its uri as the rule says
+     *
+     * @return the service of the request, null when no rule matches
+     */
+    String route(HttpRequest req) {
+        String uri = req.uri();
+        String host = req.headers().get(HttpHeaderNames.HOST);
+        Match match = null;
+        if (host != null) {
+            int end = host.length();
+            /* Strip the port, but not from an IPv6 literal */
+            for (int i = end - 1; i >= 0; i--) {
+                char c = host.charAt(i);
+                if (c == ':') {
+                    end = i;
+                    break;
+                }
+                if (c < '0' || c > '9') {
+                    break;
+                }
+            }
+            Node node = hosts;
+            Node domain = null;
+            int i = end - 1;
+            for (; i >= 0 && node != null; i--) {
+                node = node.next(lower(host.charAt(i)));
+                if (node != null && node.domainPaths != null && i > 0) {
+                    domain = node;
+                }
+            }
+            if (node != null && node.hostPaths != null) {
+                match = match(node.hostPaths, uri, req);
+            }
+            for (; match == null && domain != null; domain = domain.fallback) {
+                match = match(domain.domainPaths, uri, req);
+            }
+        }
+        if (match == null && paths != null) {
+            match = match(paths, uri, req);
+        }
+        if (match == null) {
+            return null;
+        }
+        Rule rule = match.rule;
+        if (rule.rewrite != null) {
+            String rewritten = rule.rewrite + uri.substring(match.depth);
+            req.setUri(rewritten.startsWith("/") ? rewritten : '/' + rewritten);
+        }
+        return rule.service;
+    }
+
+    /**
+     * The service named by the first segment of a path, the same instance each time
+     *
+     * @return null when the first segment is empty
+     */
+    static String serviceName(String uri) {
+        int end = uri.indexOf('/', 1);
+        if (end < 0) {
+            end = uri.length();
+        }
+        if (end <= 1) {
+            return null;
+        }
+        int hash = 0;
+        for (int i = 1; i < end; i++) {
+            hash = 31 * hash + uri.charAt(i);
+        }
+        String[] table = names;
+        int mask = table.length - 1;
+        for (int i = mix(hash) & mask; table[i] != null; i = (i + 1) & mask) {
+            String name = table[i];
+            if (name.length() == end - 1 && uri.regionMatches(1, name, 0, end - 1)) {
+                return name;
+            }
+        }
+        return addName(uri.substring(1, end));
+    }
+
+    private static synchronized String addName(String name) {
+        String[] table = names;
+        int mask = table.length - 1;
+        int i = mix(name.hashCode()) & mask;
+        for (; table[i] != null; i = (i + 1) & mask) {
+            if (table[i].equals(name)) {
+                return table[i];
+            }
+        }
+        if (namesSize < NAMES_MAX) {
+            table = table.clone();
+            table[i] = name;
+            namesSize++;
+            names = table;
+        }
+        return name;
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * The deepest rule of a path trie matching a request, then the rules of the shorter prefixes
+     */
+    private static Match match(Node paths, String uri, HttpRequest req) {
+        Node node = paths;
+        Node best = null;
+        for (int i = 0; node != null; i++) {
+            if (node.rules != null && boundary(node, uri)) {
+                best = node;
+            }
+            if (i >= uri.length() || uri.charAt(i) == '?') {
+                break;
+            }
+            node = node.next(uri.charAt(i));
+        }
+        for (; best != null; best = best.fallback) {
+            if (!boundary(best, uri)) {
+                continue;
+            }
+            for (Match match : best.rules) {
+                if (match.rule.matches(req)) {
+                    return match;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether the prefix of a node ends the path or one of its segments
+     */
+    private static boolean boundary(Node node, String uri) {
+        int depth = node.depth;
+        if (depth == 0 || depth >= uri.length() || uri.charAt(depth - 1) == '/') {
+            return true;
+        }
+        char c = uri.charAt(depth);
+        return c == '/' || c == '?';
+    }
+
+    private static char lower(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * Node of a trie, with its children by character, sorted for a binary search
+     */
+    private static final class Node {
+        final int depth;
+        char[] chars = new char[0];
+        Node[] children = new Node[0];
+        /**
+         * Rules of the path ending here, in order of precedence
+         */
+        Match[] rules;
+        /**
+         * Path trie of the rules of the host ending here
+         */
+        Node hostPaths;
+        /**
+         * Path trie of the rules of the domain ending here
+         */
+        Node domainPaths;
+        /**
+         * Nearest ancestor with rules, of the same kind as this node
+         */
+        Node fallback;
+
+        Node(int depth) {
+            this.depth = depth;
+        }
+
+        Node next(char c) {
+            int index = Arrays.binarySearch(chars, c);
+            return index >= 0 ? children[index] : null;
+        }
+
+        Node child(char c) {
+            int index = Arrays.binarySearch(chars, c);
+            if (index >= 0) {
+                return children[index];
+            }
+            index = -index - 1;
+            char[] chars = new char[this.chars.length + 1];
+            Node[] children = new Node[chars.length];
+            System.arraycopy(this.chars, 0, chars, 0, index);
+            System.arraycopy(this.children, 0, children, 0, index);
+            System.arraycopy(this.chars, index, chars, index + 1, this.chars.length - index);
+            System.arraycopy(this.children, index, children, index + 1, this.children.length - index);
+            chars[index] = c;
+            children[index] = new Node(depth + 1);
+            this.chars = chars;
+            this.children = children;
+            return children[index];
+        }
+
+        void add(Rule rule) {
+            List<Match> list = new ArrayList<Match>();
+            if (rules != null) {
+                list.addAll(Arrays.asList(rules));
+            }
+            list.add(new Match(rule, depth));
+            /* Stable, rules are added by name */
+            Collections.sort(list, new Comparator<Match>() {
+                @Override
+                public int compare(Match a, Match b) {
+                    return b.rule.headerNames.length - a.rule.headerNames.length;
+                }
+            });
+            rules = list.toArray(new Match[list.size()]);
+        }
+
+        /**
+         * Point each node to its nearest ancestor with rules, once all the rules are added
+         */
+        void link(Node ancestor) {
+            fallback = ancestor;
+            if (rules != null || domainPaths != null) {
+                ancestor = this;
+            }
+            if (hostPaths != null) {
+                hostPaths.link(null);
+            }
+            if (domainPaths != null) {
+                domainPaths.link(null);
+            }
+            for (Node child : children) {
+                child.link(ancestor);
+            }
+        }
+    }
+
+    private static final class Match {
+        final Rule rule;
+        /**
+         * Length of the path prefix matched
+         */
+        final int depth;
+
+        Match(Rule rule, int depth) {
+            this.rule = rule;
+            this.depth = depth;
+        }
+    }
+
+    private static final class Rule {
+        final String name;
+        String service;
+        String host;
+        String path;
+        String rewrite;
+        final Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        String[] headerNames;
+        String[] headerValues;
+
+        Rule(String name) {
+            this.name = name;
+        }
+
+        Rule compile() {
+            if (service == null || service.length() == 0) {
+                throw new IllegalArgumentException("No service of route: " + name);
+            }
+            if (host != null && (host.length() == 0 || host.equals("*") || host.indexOf('*', 1) >= 0
+                || (host.startsWith("*") && !host.startsWith("*.")))) {
+                throw new IllegalArgumentException("Bad host of route " + name + ": " + host);
+            }
+            if (path == null || path.length() == 0) {
+                path = "/";
+            }
+            if (!path.startsWith("/") || path.indexOf('?') >= 0) {
+                throw new IllegalArgumentException("Bad path of route " + name + ": " + path);
+            }
+            if (rewrite != null && rewrite.length() > 0 && !rewrite.startsWith("/")) {
+                throw new IllegalArgumentException("Bad rewrite of route " + name + ": " + rewrite);
+            }
+            headerNames = headers.keySet().toArray(new String[headers.size()]);
+            headerValues = headers.values().toArray(new String[headers.size()]);
+            return this;
+        }
+
+        boolean matches(HttpRequest req) {
+            for (int i = 0; i < headerNames.length; i++) {
+                String value = req.headers().get(headerNames[i]);
+                if (value == null || (!headerValues[i].equals("*") && !headerValues[i].equals(value))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder s = new StringBuilder(name).append(": ");
+            s.append(host != null ? host : "*").append(path);
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                s.append(' ').append(header.getKey()).append('=').append(header.getValue());
+            }
+            s.append(" -> ").append(service);
+            if (rewrite != null) {
+                s.append(" as ").append(rewrite.length() > 0 ? rewrite : "/");
+            }
+            return s.toString();
+        }
+    }
+
+}
@@ -2,7 +2,6 @@ package outlinc.proxy;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import org.skife.config.ConfigurationObjectFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,9 +25,13 @@ public class HttpProxyServer {
     private static final Logger log = LoggerFactory.getLogger(HttpProxyServer.class);
     private final Properties props;
     private final ServiceBroker<String> service;
+    private HttpProxyMetrics metrics;
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workGroup;
+    private HttpProxyAccessLog accessLog;
 
     public HttpProxyServer() {
-        this(null);
+        this((String) null);
     }
 
     public HttpProxyServer(String configPath) {
@@ -45,6 +48,14 @@ public class HttpProxyServer {
         this.service = new CuratorBroker<String>(props, String.class);
     }
 
+    /**
+     * @param props settings of the proxy and of its discovery, as in {@code outlinc-proxy.properties}
+     */
+    public HttpProxyServer(Properties props) {
+        this.props = props;
+        this.service = new CuratorBroker<String>(props, String.class);
+    }
+
     public void start() {
         HttpProxyConfig config = new ConfigurationObjectFactory(props).build(HttpProxyConfig.class);
         start(config);
@@ -53,28 +64,65 @@ public class HttpProxyServer {
     public void start(HttpProxyConfig config) {
         final String inetHost = config.getHost();
         final int inetPort = config.getPort();
-        final EventLoopGroup bossGroup = new NioEventLoopGroup(1);
-        final EventLoopGroup workGroup = new NioEventLoopGroup();
-        ServerBootstrap boot = HttpProxyHandler.init(config, service);
+        final HttpProxyTransport transport = HttpProxyTransport.of(config);
+        final int acceptors = transport.acceptors(config);
+        bossGroup = transport.newGroup(acceptors, "outlinc-proxy-boss");
+        workGroup = transport.newGroup(config.getWorkerThreads(), "outlinc-proxy-work");
+        metrics = config.getMetrics() ? new HttpProxyMetrics(config) : null;
+        HttpProxySlowLog slowLog = config.getSlowThresholdMs() > 0 ? new HttpProxySlowLog(config) : null;
+        accessLog = config.getAccessLog() ? new HttpProxyAccessLog(config) : null;
+        HttpProxyRoutes routes = HttpProxyRoutes.load(props, config.getRoutesFile());
+        ServerBootstrap boot = HttpProxyHandler.init(config, service, transport, metrics, slowLog, accessLog,
+            routes);
         boot.group(bossGroup, workGroup);
         try {
-            log.info("Server is going to start ({}:{})", inetHost, inetPort);
-            boot.bind(inetHost, inetPort).sync();
-            log.info("Server is listening on {}:{}", inetHost, inetPort);
+            log.info("Server is going to start ({}:{}) with {} transport", inetHost, inetPort, transport);
+            for (int i = 0; i < acceptors; i++) {
+                boot.bind(inetHost, inetPort).sync();
+            }
+            log.info("Server is listening on {}:{} with {} acceptor(s)", inetHost, inetPort, acceptors);
+            if (config.getAdminPort() > 0) {
+                ServerBootstrap admin = HttpProxyAdmin.init(config, metrics, slowLog, accessLog, transport);
+                admin.group(bossGroup, workGroup);
+                admin.bind(config.getAdminHost(), config.getAdminPort()).sync();
+                log.info("Admin is listening on {}:{}", config.getAdminHost(), config.getAdminPort());
+            }
         } catch (Throwable e) {
             log.error(String.format("Failed to bind %s:%d", inetHost, inetPort), e);
             System.exit(80);
         } finally {
             Runtime.getRuntime().addShutdownHook(new Thread("ShutdownHook") {
                 public void run() {
-                    log.info("Server is going to stop");
-                    bossGroup.shutdownGracefully();
-                    workGroup.shutdownGracefully();
-                    service.stop();
-                    log.info("Server is stopped");
+                    HttpProxyServer.this.stop();
                 }
             });
         }
     }
 
+    /**
+     * Close the listening and the open connections, then the discovery. Called at exit otherwise
+     */
+    public synchronized void stop() {
+        if (workGroup == null) {
+            return;
+        }
+        log.info("Server is going to stop");
+        bossGroup.shutdownGracefully();
+        workGroup.shutdownGracefully();
+        workGroup.terminationFuture().awaitUninterruptibly();
+        if (accessLog != null) {
+            accessLog.close();
+        }
+        service.stop();
+        bossGroup = workGroup = null;
+        log.info("Server is stopped");
+    }
+
+    /**
+     * @return null before the server starts, or when {@link HttpProxyConfig#getMetrics()} is off
+     */
+    public HttpProxyMetrics getMetrics() {
+        return metrics;
+    }
+
 }
@@ -0,0 +1,139 @@
+package outlinc.proxy;
+
+import io.netty.handler.codec.http.HttpMethod;
+import outlinc.discovery.ServiceEntity;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The latest requests slower than {@link HttpProxyConfig#getSlowThresholdMs()}, with the time spent
+ * in each phase of their exchange. Kept in a ring of slots allocated once, each written under its
+ * own lock, which is only contended when the ring wraps around while a slot is being read or written
+ */
+final class HttpProxySlowLog {
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong sequence = new AtomicLong();
+    private final long thresholdNanos;
+
+    HttpProxySlowLog(HttpProxyConfig config) {
+        int size = Integer.highestOneBit(Math.max(1, Math.min(1 << 16, config.getSlowBufferSize())));
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        this.mask = size - 1;
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(config.getSlowThresholdMs());
+    }
+
+    /**
+     * Keep an exchange when it took longer than the threshold
+     *
+     * @param accepted {@link System#nanoTime()} the connection was accepted, 0 when the exchange
+     *                 is not the first one of its connection
+     * @param done     {@link System#nanoTime()} the response was flushed or the exchange given up
+     */
+    void offer(HttpProxyExchange ex, long accepted, int status, long done) {
+        if (done - ex.since < thresholdNanos) {
+            return;
+        }
+        Slot slot = slots[(int) (sequence.getAndIncrement() & mask)];
+        synchronized (slot) {
+            slot.time = System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(done - ex.since);
+            slot.method = ex.request.method();
+            slot.uri = ex.request.uri();
+            slot.entity = ex.entity;
+            slot.status = status;
+            slot.accepted = accepted;
+            slot.since = ex.since;
+            slot.decoded = ex.decoded;
+            slot.lookup = ex.lookup;
+            slot.looked = ex.looked;
+            slot.acquired = ex.acquired;
+            slot.written = ex.written;
+            slot.firstByte = ex.firstByte;
+            slot.done = done;
+        }
+    }
+
+    /**
+     * @return the requests kept, latest first, one per line with the milliseconds of their phases:
+     * from the connection accepted to the request started, to the request received, looking up
+     * the instance, acquiring the upstream connection, writing the request to it, waiting for
+     * its response to start and passing the response on. When streaming, the request is received
+     * while the instance is looked up and connected, so these phases overlap
+     */
+    String dump() {
+        StringBuilder s = new StringBuilder();
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        long last = sequence.get();
+        for (long i = last - 1; i >= 0 && i >= last - slots.length; i--) {
+            Slot slot = slots[(int) (i & mask)];
+            synchronized (slot) {
+                if (slot.method == null) {
+                    continue;
+                }
+                s.append(format.format(new Date(slot.time))).append(' ');
+                millis(s, slot.done - slot.since).append("ms ");
+                s.append(slot.method).append(' ').append(slot.uri).append(' ');
+                s.append(slot.status > 0 ? String.valueOf(slot.status) : "-");
+                if (slot.entity != null) {
+                    s.append(' ').append(slot.entity.getAddress()).append(':').append(slot.entity.getPort());
+                }
+                phase(s, "accept", slot.accepted, slot.since);
+                phase(s, "decode", slot.since, slot.decoded);
+                phase(s, "lookup", slot.lookup, slot.looked);
+                phase(s, "connect", slot.looked, slot.acquired);
+                phase(s, "write", slot.acquired, slot.written);
+                phase(s, "upstream", slot.written, slot.firstByte);
+                phase(s, "response", slot.firstByte, slot.done);
+                s.append('\n');
+            }
+        }
+        return s.toString();
+    }
+
+    /**
+     * Milliseconds between two phases, when both were reached
+     */
+    private static void phase(StringBuilder s, String name, long from, long to) {
+        if (from != 0 && to != 0) {
+            millis(s.append(' ').append(name).append('='), to - from);
+        }
+    }
+
+    private static StringBuilder millis(StringBuilder s, long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        s.append(micros / 1000).append('.');
+        long fraction = micros % 1000;
+        if (fraction < 100) {
+            s.append('0');
+        }
+        if (fraction < 10) {
+            s.append('0');
+        }
+        return s.append(fraction);
+    }
+
+    private static final class Slot {
+        long time;
+        HttpMethod method;
+        String uri;
+        ServiceEntity<String> entity;
+        int status;
+        long accepted;
+        long since;
+        long decoded;
+        long lookup;
+        long looked;
+        long acquired;
+        long written;
+        long firstByte;
+        long done;
+    }
+
+}
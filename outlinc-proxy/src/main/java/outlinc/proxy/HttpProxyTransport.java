@@ -0,0 +1,118 @@
+package outlinc.proxy;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Socket transport of the proxy server, NIO everywhere or native epoll on Linux
+ */
+enum HttpProxyTransport {
+
+    NIO {
+        @Override
+        EventLoopGroup newGroup(int threads, String name) {
+            return new NioEventLoopGroup(threads, new DefaultThreadFactory(name));
+        }
+
+        @Override
+        Class<? extends ServerChannel> serverChannelClass() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        Class<? extends SocketChannel> channelClass() {
+            return NioSocketChannel.class;
+        }
+    },
+
+    EPOLL {
+        @Override
+        EventLoopGroup newGroup(int threads, String name) {
+            return new EpollEventLoopGroup(threads, new DefaultThreadFactory(name));
+        }
+
+        @Override
+        Class<? extends ServerChannel> serverChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        Class<? extends SocketChannel> channelClass() {
+            return EpollSocketChannel.class;
+        }
+
+        @Override
+        void configure(ServerBootstrap boot, HttpProxyConfig config) {
+            super.configure(boot, config);
+            boot.option(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED);
+            boot.childOption(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED);
+            if (config.getTransportAcceptors() > 1) {
+                boot.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
+            if (config.getTcpQuickAck()) {
+                boot.childOption(EpollChannelOption.TCP_QUICKACK, true);
+            }
+        }
+
+        @Override
+        void configure(Bootstrap boot, HttpProxyConfig config) {
+            super.configure(boot, config);
+            boot.option(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED);
+            if (config.getTcpQuickAck()) {
+                boot.option(EpollChannelOption.TCP_QUICKACK, true);
+            }
+        }
+    };
+
+    private final static Logger log = LoggerFactory.getLogger(HttpProxyTransport.class);
+
+    /**
+     * @param threads 0 for the netty default, twice the number of cores
+     */
+    abstract EventLoopGroup newGroup(int threads, String name);
+
+    abstract Class<? extends ServerChannel> serverChannelClass();
+
+    abstract Class<? extends SocketChannel> channelClass();
+
+    /**
+     * Listening sockets bound on the same address, only more than one with SO_REUSEPORT
+     */
+    int acceptors(HttpProxyConfig config) {
+        return this == EPOLL ? Math.max(1, config.getTransportAcceptors()) : 1;
+    }
+
+    void configure(ServerBootstrap boot, HttpProxyConfig config) {
+        boot.channel(serverChannelClass());
+        boot.childOption(ChannelOption.TCP_NODELAY, config.getTcpNoDelay());
+    }
+
+    void configure(Bootstrap boot, HttpProxyConfig config) {
+        boot.channel(channelClass());
+        boot.option(ChannelOption.TCP_NODELAY, config.getTcpNoDelay());
+    }
+
+    static HttpProxyTransport of(HttpProxyConfig config) {
+        if (!config.getTransportNative()) {
+            return NIO;
+        }
+        if (Epoll.isAvailable()) {
+            return EPOLL;
+        }
+        log.warn("Native epoll transport is unavailable, fall back to NIO: {}",
+            String.valueOf(Epoll.unavailabilityCause()));
+        return NIO;
+    }
+
+}
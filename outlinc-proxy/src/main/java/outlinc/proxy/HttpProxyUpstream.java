@@ -2,37 +2,154 @@ package outlinc.proxy;
 
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
-import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Created by wangkang on 19/06/2017
  */
-public class HttpProxyUpstream extends SimpleChannelInboundHandler<FullHttpResponse> {
+public class HttpProxyUpstream extends SimpleChannelInboundHandler<HttpObject> {
 
     private final static Logger log = LoggerFactory.getLogger(HttpProxyUpstream.class);
-    private final Channel downstream;
+    private final HttpProxyPool pool;
+    private ChannelHandlerContext ctx;
+    /**
+     * Exchange in progress, null while idle in the pool
+     */
+    private HttpProxyExchange exchange;
+    /**
+     * Exchanges bound to this connection so far, more than one once taken back from the pool
+     */
+    private int exchanges;
+    /**
+     * Whether any part of a response was read for the exchange
+     */
+    private boolean responded;
+    private boolean reusable;
+    private boolean informational;
+    private boolean requestSent;
+    private boolean responseDone;
+    private Future<?> responseTimeout;
 
-    HttpProxyUpstream(Channel downstream) {
-        this.downstream = downstream;
+    HttpProxyUpstream(HttpProxyPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Attach this connection to one request/response exchange
+     */
+    void bind(HttpProxyExchange exchange) {
+        this.exchange = exchange;
+        this.exchanges++;
+        this.responded = false;
+        this.reusable = false;
+        this.informational = false;
+        this.requestSent = false;
+        this.responseDone = false;
+        this.responseTimeout = null;
+    }
+
+    /**
+     * Cancelled as soon as the response starts
+     */
+    void responseTimeout(Future<?> timeout) {
+        this.responseTimeout = timeout;
+    }
+
+    /**
+     * Detach from an aborted exchange, dropping the connection since its response is unfinished
+     */
+    void unbind(HttpProxyExchange exchange) {
+        if (this.exchange == exchange) {
+            this.exchange = null;
+            cancelTimeout();
+            ctx.close();
+        }
+    }
+
+    Channel channel() {
+        return ctx.channel();
+    }
+
+    /**
+     * The last part of the request was written to this connection
+     */
+    void requestSent() {
+        requestSent = true;
+        if (responseDone) {
+            recycle();
+        }
     }
 
     @Override
-    public void channelRead0(final ChannelHandlerContext ctx, final FullHttpResponse msg) throws Exception {
-        if (downstream == null) {
-            throw new Exception("frontChannel is null");
-        }
-        msg.retain();
-        downstream.writeAndFlush(msg).addListener(new ChannelFutureListener() {
-            public void operationComplete(ChannelFuture future) throws Exception {
-                if (future.isSuccess()) {
-                    log.debug(msg.toString());
-                } else {
-                    closeOnFlush(future.channel());
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void channelRead0(final ChannelHandlerContext ctx, final HttpObject msg) throws Exception {
+        final HttpProxyExchange ex = exchange;
+        if (ex == null) {
+            log.debug("Unsolicited upstream message from {}", ctx.channel().remoteAddress());
+            ctx.close();
+            return;
+        }
+        responded = true;
+        if (msg instanceof HttpResponse) {
+            HttpResponse res = (HttpResponse) msg;
+            int code = res.status().code();
+            informational = isInformational(res);
+            if (!informational) {
+                /* Only the response proper stops the timeout, not an interim one */
+                cancelTimeout();
+                ex.handler.claim(ex, this);
+                reusable = code != 101 && HttpUtil.isKeepAlive(res);
+                if (!HttpUtil.isContentLengthSet(res) && !HttpUtil.isTransferEncodingChunked(res)
+                    && !(res instanceof FullHttpResponse)) {
+                    /* Close-delimited upstream body, chunk it to keep the downstream alive */
+                    HttpUtil.setTransferEncodingChunked(res, true);
                 }
+                HttpUtil.setKeepAlive(res, ex.keepAlive);
+            }
+            log.debug("{}", msg);
+        }
+        final boolean last = msg instanceof LastHttpContent && !informational;
+        if (last) {
+            responseDone = true;
+            if (!requestSent) {
+                /* Responded before the whole request was sent, can't be reused */
+                reusable = false;
             }
-        });
+            recycle();
+        }
+        ReferenceCountUtil.retain(msg);
+        if (!ex.handler.respond(ex, msg, last) && !last) {
+            /* Resumed once the downstream is writable and all earlier responses are written */
+            ctx.channel().config().setAutoRead(false);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        HttpProxyExchange ex = exchange;
+        exchange = null;
+        cancelTimeout();
+        if (ex != null && !responseDone) {
+            /* A reused connection closing before any response was likely closed idle by the server */
+            ex.handler.abortResponse(ex, this, exchanges > 1 && !responded);
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (exchange != null) {
+            exchange.handler.updateReadable();
+        }
+        super.channelWritabilityChanged(ctx);
     }
 
     @Override
@@ -42,6 +159,32 @@ public class HttpProxyUpstream extends SimpleChannelInboundHandler<FullHttpRespo
         closeOnFlush(ctx.channel());
     }
 
+    /**
+     * Whether a response is an interim one, followed by the response proper
+     */
+    static boolean isInformational(HttpResponse res) {
+        int code = res.status().code();
+        return code >= 100 && code < 200 && code != 101;
+    }
+
+    private void cancelTimeout() {
+        if (responseTimeout != null) {
+            responseTimeout.cancel(false);
+            responseTimeout = null;
+        }
+    }
+
+    private void recycle() {
+        exchange = null;
+        Channel ch = ctx.channel();
+        ch.config().setAutoRead(true);
+        if (reusable) {
+            pool.release(ch);
+        } else {
+            ch.close();
+        }
+    }
+
     private static void closeOnFlush(Channel ch) {
         if (ch.isActive()) {
             ch.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
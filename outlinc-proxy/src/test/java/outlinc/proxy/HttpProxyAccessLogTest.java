@@ -0,0 +1,97 @@
+package outlinc.proxy;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.config.ConfigurationObjectFactory;
+import outlinc.discovery.ServiceEntity;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+public class HttpProxyAccessLogTest {
+
+    private static final byte[] REMOTE = HttpProxyAccessLog.encode(new InetSocketAddress("127.0.0.1", 40000));
+
+    private File file;
+
+    @Before
+    public void beforeEach() throws IOException {
+        file = File.createTempFile("outlinc-access", ".log");
+        Assert.assertTrue(file.delete());
+    }
+
+    @After
+    public void afterEach() {
+        file.delete();
+    }
+
+    @Test
+    public void test_records() throws IOException {
+        HttpProxyAccessLog accessLog = accessLog(16);
+        HttpProxyExchange ex = exchange("/test/a?x=1");
+        ex.entity = new ServiceEntity.Builder<String>().name("test").host("10.0.0.1").port(8080).build();
+        ex.bytesIn = 3;
+        ex.bytesOut = 42;
+        accessLog.append(ex, 200, ex.since + TimeUnit.MICROSECONDS.toNanos(1500), REMOTE);
+        accessLog.append(exchange("/none"), HttpProxyMetrics.NO_STATUS, System.nanoTime(), REMOTE);
+        accessLog.close();
+        List<String> lines = lines();
+        Assert.assertEquals(2, lines.size());
+        Assert.assertTrue(lines.get(0),
+            lines.get(0).endsWith(" 127.0.0.1:40000 \"GET /test/a?x=1 HTTP/1.1\" 200 3 42 1.500ms 10.0.0.1:8080"));
+        Assert.assertTrue(lines.get(1), lines.get(1).contains(" \"GET /none HTTP/1.1\" - 0 0 "));
+        Assert.assertTrue(lines.get(1), lines.get(1).endsWith("ms -"));
+        Assert.assertEquals(0, accessLog.dropped());
+    }
+
+    @Test
+    public void test_dropped() throws IOException {
+        HttpProxyAccessLog accessLog = accessLog(2);
+        int count = 10000;
+        for (int i = 0; i < count; i++) {
+            accessLog.append(exchange("/test/" + i), 200, System.nanoTime(), REMOTE);
+        }
+        accessLog.close();
+        /* The event loop never waits for the writer, what doesn't fit is counted */
+        long dropped = accessLog.dropped();
+        Assert.assertTrue(dropped > 0);
+        Assert.assertEquals(count, lines().size() + dropped);
+    }
+
+    private HttpProxyAccessLog accessLog(int size) {
+        Properties props = new Properties();
+        props.setProperty("proxy.access.log.path", file.getPath());
+        props.setProperty("proxy.access.log.buffer.size", String.valueOf(size));
+        return new HttpProxyAccessLog(new ConfigurationObjectFactory(props).build(HttpProxyConfig.class));
+    }
+
+    private List<String> lines() throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "US-ASCII"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            in.close();
+        }
+        return lines;
+    }
+
+    private static HttpProxyExchange exchange(String uri) {
+        long now = System.nanoTime();
+        return new HttpProxyExchange(null, new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri),
+            true, now, now);
+    }
+
+}
@@ -0,0 +1,300 @@
+package outlinc.proxy;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.*;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.config.ConfigurationObjectFactory;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Properties;
+
+public class HttpProxyCacheTest {
+
+    private static final String SERVICE = "test";
+
+    private HttpProxyCache cache;
+
+    @Before
+    public void beforeEach() {
+        cache = cache(new Properties());
+    }
+
+    @Test
+    public void test_max_age() {
+        store("/a", "A", HttpHeaderNames.CACHE_CONTROL, "max-age=60");
+        FullHttpResponse res = hit("/a");
+        Assert.assertNotNull(res);
+        Assert.assertEquals(HttpResponseStatus.OK, res.status());
+        Assert.assertEquals("A", res.content().toString(CharsetUtil.UTF_8));
+        Assert.assertEquals("1", res.headers().get(HttpHeaderNames.CONTENT_LENGTH));
+        Assert.assertEquals("0", res.headers().get(HttpHeaderNames.AGE));
+        res.release();
+        Assert.assertNull(hit("/b"));
+        store("/zero", "Z", HttpHeaderNames.CACHE_CONTROL, "max-age=0");
+        Assert.assertNull(hit("/zero"));
+    }
+
+    @Test
+    public void test_s_maxage() {
+        store("/shared", "S", HttpHeaderNames.CACHE_CONTROL, "max-age=0, s-maxage=60");
+        assertHit("/shared", "S");
+        store("/private", "P", HttpHeaderNames.CACHE_CONTROL, "s-maxage=0, max-age=60");
+        Assert.assertNull(hit("/private"));
+    }
+
+    @Test
+    public void test_not_stored() {
+        store("/no-store", "N", HttpHeaderNames.CACHE_CONTROL, "no-store, max-age=60");
+        Assert.assertNull(hit("/no-store"));
+        store("/private", "P", HttpHeaderNames.CACHE_CONTROL, "private, max-age=60");
+        Assert.assertNull(hit("/private"));
+        store("/cookie", "C", HttpHeaderNames.CACHE_CONTROL, "max-age=60", HttpHeaderNames.SET_COOKIE, "a=1");
+        Assert.assertNull(hit("/cookie"));
+        store("/none", "X");
+        Assert.assertNull(hit("/none"));
+    }
+
+    @Test
+    public void test_not_looked_up() {
+        store("/a", "A", HttpHeaderNames.CACHE_CONTROL, "max-age=60");
+        HttpRequest req = request("/a");
+        req.setMethod(HttpMethod.POST);
+        Assert.assertNull(cache.lookup(SERVICE, req));
+        req = request("/a");
+        req.headers().set(HttpHeaderNames.AUTHORIZATION, "Basic eDp5");
+        Assert.assertNull(cache.lookup(SERVICE, req));
+        req = request("/a");
+        req.headers().set(HttpHeaderNames.CACHE_CONTROL, "no-store");
+        Assert.assertNull(cache.lookup(SERVICE, req));
+        /* Reloaded, but the response is stored again */
+        req = request("/a");
+        req.headers().set(HttpHeaderNames.CACHE_CONTROL, "no-cache");
+        HttpProxyCache.Exchange ex = cache.lookup(SERVICE, req);
+        Assert.assertNull(ex.hit());
+        ex.release();
+    }
+
+    @Test
+    public void test_no_cache() {
+        store("/a", "A", HttpHeaderNames.CACHE_CONTROL, "no-cache", HttpHeaderNames.ETAG, "\"v1\"");
+        HttpRequest req = request("/a");
+        HttpProxyCache.Exchange ex = cache.lookup(SERVICE, req);
+        Assert.assertNull(ex.hit());
+        ex.revalidate(req);
+        Assert.assertEquals("\"v1\"", req.headers().get(HttpHeaderNames.IF_NONE_MATCH));
+        ex.release();
+        store("/b", "B", HttpHeaderNames.CACHE_CONTROL, "no-cache");
+        Assert.assertNull(hit("/b"));
+    }
+
+    @Test
+    public void test_expires() {
+        long now = System.currentTimeMillis();
+        /* The clock of the upstream is an hour late, the response is fresh for a minute */
+        store("/date", "D",
+            HttpHeaderNames.DATE, DateFormatter.format(new Date(now - 3600 * 1000)),
+            HttpHeaderNames.EXPIRES, DateFormatter.format(new Date(now - 3540 * 1000)));
+        assertHit("/date", "D");
+        store("/no-date", "N",
+            HttpHeaderNames.EXPIRES, DateFormatter.format(new Date(now - 3540 * 1000)));
+        Assert.assertNull(hit("/no-date"));
+        store("/future", "F",
+            HttpHeaderNames.EXPIRES, DateFormatter.format(new Date(now + 60 * 1000)));
+        assertHit("/future", "F");
+        store("/invalid", "I", HttpHeaderNames.EXPIRES, "0");
+        Assert.assertNull(hit("/invalid"));
+        /* Cache-Control comes before Expires */
+        store("/both", "B", HttpHeaderNames.CACHE_CONTROL, "max-age=0",
+            HttpHeaderNames.EXPIRES, DateFormatter.format(new Date(now + 60 * 1000)));
+        Assert.assertNull(hit("/both"));
+    }
+
+    @Test
+    public void test_age() {
+        /* From a cache upstream, part of its lifetime is gone already */
+        store("/old", "O", HttpHeaderNames.CACHE_CONTROL, "max-age=60", HttpHeaderNames.AGE, "50");
+        FullHttpResponse res = hit("/old");
+        Assert.assertNotNull(res);
+        Assert.assertEquals("50", res.headers().get(HttpHeaderNames.AGE));
+        res.release();
+        store("/stale", "S", HttpHeaderNames.CACHE_CONTROL, "max-age=60", HttpHeaderNames.AGE, "60");
+        Assert.assertNull(hit("/stale"));
+        long now = System.currentTimeMillis();
+        store("/expires", "E", HttpHeaderNames.AGE, "120",
+            HttpHeaderNames.EXPIRES, DateFormatter.format(new Date(now + 60 * 1000)));
+        Assert.assertNull(hit("/expires"));
+        store("/invalid", "I", HttpHeaderNames.CACHE_CONTROL, "max-age=60", HttpHeaderNames.AGE, "x");
+        assertHit("/invalid", "I");
+    }
+
+    @Test
+    public void test_revalidated() {
+        store("/a", "A", HttpHeaderNames.CACHE_CONTROL, "max-age=0", HttpHeaderNames.ETAG, "\"v1\"",
+            HttpHeaderNames.CONTENT_TYPE, "text/plain");
+        HttpRequest req = request("/a");
+        HttpProxyCache.Exchange ex = cache.lookup(SERVICE, req);
+        Assert.assertNull(ex.hit());
+        ex.revalidate(req);
+        HttpResponse notModified = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+        notModified.headers().set(HttpHeaderNames.CACHE_CONTROL, "max-age=60");
+        notModified.headers().set(HttpHeaderNames.ETAG, "\"v1\"");
+        Assert.assertNull(ex.onResponse(notModified, false));
+        LastHttpContent last = new DefaultLastHttpContent(Unpooled.buffer(0));
+        FullHttpResponse res = (FullHttpResponse) ex.onResponse(last, true);
+        Assert.assertEquals(0, last.refCnt());
+        Assert.assertEquals(HttpResponseStatus.OK, res.status());
+        Assert.assertEquals("A", res.content().toString(CharsetUtil.UTF_8));
+        Assert.assertEquals("max-age=60", res.headers().get(HttpHeaderNames.CACHE_CONTROL));
+        Assert.assertEquals("text/plain", res.headers().get(HttpHeaderNames.CONTENT_TYPE));
+        res.release();
+        ex.release();
+        assertHit("/a", "A");
+        /* The client holds it already */
+        req = request("/a");
+        req.headers().set(HttpHeaderNames.IF_NONE_MATCH, "W/\"v1\"");
+        ex = cache.lookup(SERVICE, req);
+        res = ex.hit();
+        Assert.assertEquals(HttpResponseStatus.NOT_MODIFIED, res.status());
+        Assert.assertEquals("\"v1\"", res.headers().get(HttpHeaderNames.ETAG));
+        res.release();
+        ex.release();
+    }
+
+    @Test
+    public void test_vary() {
+        HttpRequest req = request("/a");
+        req.headers().set(HttpHeaderNames.ACCEPT, "text/plain");
+        store(req, "T", HttpHeaderNames.CACHE_CONTROL, "max-age=60", HttpHeaderNames.VARY, "Accept");
+        req = request("/a");
+        req.headers().set(HttpHeaderNames.ACCEPT, "text/html");
+        HttpProxyCache.Exchange ex = cache.lookup(SERVICE, req);
+        Assert.assertNull(ex.hit());
+        ex.release();
+        req.headers().set(HttpHeaderNames.ACCEPT, "text/plain");
+        ex = cache.lookup(SERVICE, req);
+        FullHttpResponse res = ex.hit();
+        Assert.assertEquals("T", res.content().toString(CharsetUtil.UTF_8));
+        res.release();
+        ex.release();
+        store("/star", "S", HttpHeaderNames.CACHE_CONTROL, "max-age=60", HttpHeaderNames.VARY, "*");
+        Assert.assertNull(hit("/star"));
+    }
+
+    @Test
+    public void test_entry_max() {
+        Properties props = new Properties();
+        props.setProperty("proxy.cache.entry.kilobyte.max", "1");
+        cache = cache(props);
+        store("/fits", body(1024), HttpHeaderNames.CACHE_CONTROL, "max-age=60");
+        assertHit("/fits", body(1024));
+        store("/large", body(1025), HttpHeaderNames.CACHE_CONTROL, "max-age=60");
+        Assert.assertNull(hit("/large"));
+        /* Without a length it is only found too large on the way */
+        HttpProxyCache.Exchange ex = cache.lookup(SERVICE, request("/chunked"));
+        ex.onResponse(response(HttpHeaderNames.CACHE_CONTROL, "max-age=60"), false);
+        ReferenceCountUtil.release(ex.onResponse(new DefaultHttpContent(Unpooled.copiedBuffer(body(700), CharsetUtil.UTF_8)), false));
+        ReferenceCountUtil.release(ex.onResponse(new DefaultLastHttpContent(Unpooled.copiedBuffer(body(700), CharsetUtil.UTF_8)), true));
+        ex.release();
+        Assert.assertNull(hit("/chunked"));
+    }
+
+    @Test
+    public void test_quota() {
+        Properties props = new Properties();
+        props.setProperty("proxy.cache.service.quotas", SERVICE + ":4, off:0");
+        cache = cache(props);
+        Assert.assertNull(cache.lookup("off", request("/a")));
+        ByteBuf a = store("/a", body(1500), HttpHeaderNames.CACHE_CONTROL, "max-age=60");
+        ByteBuf b = store("/b", body(1500), HttpHeaderNames.CACHE_CONTROL, "max-age=60");
+        Assert.assertEquals(1, a.refCnt());
+        Assert.assertEquals(1, b.refCnt());
+        /* Used last, b is evicted before a */
+        assertHit("/a", body(1500));
+        ByteBuf c = store("/c", body(1500), HttpHeaderNames.CACHE_CONTROL, "max-age=60");
+        Assert.assertEquals(0, b.refCnt());
+        Assert.assertEquals(1, a.refCnt());
+        Assert.assertEquals(1, c.refCnt());
+        Assert.assertNull(hit("/b"));
+        assertHit("/a", body(1500));
+        assertHit("/c", body(1500));
+        /* Replaced, the former body is released */
+        ByteBuf a2 = store("/a", "A", HttpHeaderNames.CACHE_CONTROL, "max-age=60");
+        Assert.assertEquals(0, a.refCnt());
+        Assert.assertEquals(1, a2.refCnt());
+        assertHit("/a", "A");
+    }
+
+    private static HttpProxyCache cache(Properties props) {
+        return new HttpProxyCache(new ConfigurationObjectFactory(props).build(HttpProxyConfig.class));
+    }
+
+    /**
+     * Pass a response through the exchange of a request
+     *
+     * @return the body as kept by the cache, null when it is not
+     */
+    private ByteBuf store(HttpRequest req, String body, CharSequence... headers) {
+        HttpProxyCache.Exchange ex = cache.lookup(SERVICE, req);
+        HttpResponse res = response(headers);
+        byte[] bytes = body.getBytes(CharsetUtil.UTF_8);
+        HttpUtil.setContentLength(res, bytes.length);
+        Assert.assertSame(res, ex.onResponse(res, false));
+        LastHttpContent last = new DefaultLastHttpContent(Unpooled.wrappedBuffer(bytes));
+        Assert.assertSame(last, ex.onResponse(last, true));
+        last.release();
+        ex.release();
+        ex = cache.lookup(SERVICE, req);
+        FullHttpResponse hit = ex.hit();
+        ex.release();
+        if (hit == null) {
+            return null;
+        }
+        ByteBuf stored = hit.content().unwrap();
+        hit.release();
+        return stored;
+    }
+
+    private ByteBuf store(String uri, String body, CharSequence... headers) {
+        return store(request(uri), body, headers);
+    }
+
+    private FullHttpResponse hit(String uri) {
+        HttpProxyCache.Exchange ex = cache.lookup(SERVICE, request(uri));
+        FullHttpResponse res = ex.hit();
+        ex.release();
+        return res;
+    }
+
+    private void assertHit(String uri, String body) {
+        FullHttpResponse res = hit(uri);
+        Assert.assertNotNull(uri, res);
+        Assert.assertEquals(body, res.content().toString(CharsetUtil.UTF_8));
+        res.release();
+    }
+
+    private static HttpRequest request(String uri) {
+        return new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+    }
+
+    private static HttpResponse response(CharSequence... headers) {
+        HttpResponse res = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        for (int i = 0; i < headers.length; i += 2) {
+            res.headers().add(headers[i], headers[i + 1]);
+        }
+        return res;
+    }
+
+    private static String body(int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, 'x');
+        return new String(chars);
+    }
+
+}
@@ -0,0 +1,242 @@
+package outlinc.proxy;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.config.ConfigurationObjectFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Downstream connections in {@link EmbeddedChannel}s sharing one coalescer, their loops run
+ * the tasks of each other inline
+ */
+public class HttpProxyCoalescerTest {
+
+    private final List<Upstream> upstreams = new ArrayList<Upstream>();
+    private final List<EmbeddedChannel> channels = new ArrayList<EmbeddedChannel>();
+
+    @Before
+    public void beforeEach() {
+        HttpProxyConfig config = new ConfigurationObjectFactory(new Properties()).build(HttpProxyConfig.class);
+        HttpProxyPool.Group pools = Upstream.pools(config, upstreams);
+        HttpProxyCoalescer coalescer = new HttpProxyCoalescer(config);
+        for (int i = 0; i < 4; i++) {
+            channels.add(new EmbeddedChannel(HttpProxyHandler.newHandlers(config, new StaticBroker(), pools,
+                null, coalescer, null, null, null, null, null, null, null)));
+        }
+    }
+
+    @After
+    public void afterEach() {
+        for (EmbeddedChannel channel : channels) {
+            channel.finishAndReleaseAll();
+        }
+        for (Upstream up : upstreams) {
+            up.close();
+            up.releaseAll();
+        }
+    }
+
+    @Test
+    public void test_key() {
+        HttpProxyConfig config = new ConfigurationObjectFactory(new Properties()).build(HttpProxyConfig.class);
+        HttpProxyCoalescer coalescer = new HttpProxyCoalescer(config);
+        HttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/test/x");
+        String key = coalescer.key("test", req);
+        Assert.assertNotNull(key);
+        Assert.assertNull(coalescer.key(null, req));
+        Assert.assertFalse(key.equals(coalescer.key("other", req)));
+        req.headers().set(HttpHeaderNames.AUTHORIZATION, "Basic dGVzdA==");
+        Assert.assertFalse(key.equals(coalescer.key("test", req)));
+        req = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/test/x");
+        Assert.assertNull(coalescer.key("test", req));
+    }
+
+    @Test
+    public void test_followers() {
+        send("/test/x");
+        /* Only the leader goes to the upstream */
+        Assert.assertEquals(1, upstreams.size());
+        Upstream up = upstreams.get(0);
+        Assert.assertEquals("/test/x", up.request().uri());
+        Assert.assertTrue(up.written.isEmpty());
+        ByteBuf content = up.respond("R").content();
+        for (EmbeddedChannel channel : channels) {
+            assertResponse(HttpResponseStatus.OK, "R", channel.readOutbound());
+            Assert.assertNull(channel.readOutbound());
+        }
+        /* Every follower got a duplicate of the same buffer */
+        Assert.assertEquals(0, content.refCnt());
+        /* The flight ended with the response, the next request leads a new one */
+        channels.get(1).writeInbound(request("/test/x"));
+        channels.get(1).runPendingTasks();
+        Assert.assertEquals(2, upstreams.size());
+        up = upstreams.get(1);
+        Assert.assertEquals("/test/x", up.request().uri());
+        up.respond("S");
+        assertResponse(HttpResponseStatus.OK, "S", channels.get(1).readOutbound());
+        for (EmbeddedChannel channel : channels) {
+            Assert.assertNull(channel.readOutbound());
+        }
+    }
+
+    @Test
+    public void test_leader_closed_before_response() {
+        send("/test/x");
+        channels.get(0).close();
+        for (EmbeddedChannel channel : channels) {
+            channel.runPendingTasks();
+        }
+        /* A follower leads again, the others follow it */
+        Assert.assertEquals(2, upstreams.size());
+        Upstream up = upstreams.get(1);
+        Assert.assertEquals("/test/x", up.request().uri());
+        Assert.assertTrue(up.written.isEmpty());
+        ByteBuf content = up.respond("R").content();
+        for (EmbeddedChannel channel : channels.subList(1, channels.size())) {
+            assertResponse(HttpResponseStatus.OK, "R", channel.readOutbound());
+            Assert.assertTrue(channel.isOpen());
+        }
+        Assert.assertEquals(0, content.refCnt());
+    }
+
+    @Test
+    public void test_leader_closed_during_response() {
+        send("/test/x");
+        Upstream up = upstreams.get(0);
+        up.request();
+        HttpResponse head = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        HttpUtil.setContentLength(head, 8);
+        up.pipeline().fireChannelRead(head);
+        channels.get(0).close();
+        channels.get(0).runPendingTasks();
+        /* The followers got part of the response already, they can only be told by a close */
+        for (EmbeddedChannel channel : channels.subList(1, channels.size())) {
+            channel.runPendingTasks();
+            Object res = channel.readOutbound();
+            Assert.assertTrue(String.valueOf(res), res instanceof HttpResponse);
+            ReferenceCountUtil.release(res);
+            Assert.assertFalse(channel.isOpen());
+        }
+        Assert.assertEquals(1, upstreams.size());
+    }
+
+    @Test
+    public void test_leader_upstream_failed() {
+        send("/test/x");
+        Upstream up = upstreams.get(0);
+        up.request();
+        up.close();
+        for (EmbeddedChannel channel : channels) {
+            channel.runPendingTasks();
+        }
+        /* The leader's failure is shared, the request is not sent again */
+        for (EmbeddedChannel channel : channels) {
+            Object res = channel.readOutbound();
+            Assert.assertTrue(String.valueOf(res), res instanceof HttpResponse);
+            Assert.assertEquals(HttpResponseStatus.BAD_GATEWAY, ((HttpResponse) res).status());
+            ReferenceCountUtil.release(res);
+        }
+        Assert.assertEquals(1, upstreams.size());
+    }
+
+    @Test
+    public void test_private_response() {
+        send("/test/x");
+        Upstream up = upstreams.get(0);
+        up.request();
+        FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+            Unpooled.copiedBuffer("mine", CharsetUtil.UTF_8));
+        HttpUtil.setContentLength(res, res.content().readableBytes());
+        res.headers().set(HttpHeaderNames.SET_COOKIE, "session=s0");
+        up.pipeline().fireChannelRead(res);
+        assertResponse(HttpResponseStatus.OK, "mine", channels.get(0).readOutbound());
+        for (EmbeddedChannel channel : channels) {
+            channel.runPendingTasks();
+        }
+        /* Each follower sends its own request instead */
+        Assert.assertEquals(4, upstreams.size());
+        for (int i = 1; i < 4; i++) {
+            Assert.assertEquals("/test/x", upstreams.get(i).request().uri());
+            upstreams.get(i).respond("R" + i);
+            assertResponse(HttpResponseStatus.OK, "R" + i, channels.get(i).readOutbound());
+        }
+        for (EmbeddedChannel channel : channels) {
+            Assert.assertNull(channel.readOutbound());
+        }
+    }
+
+    @Test
+    public void test_slow_follower() {
+        /* The first follower still waits for a response of its own before, it buffers the one it follows */
+        channels.get(1).writeInbound(request("/test/before"));
+        channels.get(1).runPendingTasks();
+        send("/test/x");
+        Upstream up = upstreams.get(1);
+        Assert.assertEquals("/test/x", up.request().uri());
+        HttpResponse head = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        HttpUtil.setTransferEncodingChunked(head, true);
+        up.pipeline().fireChannelRead(head);
+        int chunk = 16 * 1024;
+        int chunks = channels.get(1).config().getWriteBufferHighWaterMark() / chunk + 2;
+        for (int i = 0; i < chunks; i++) {
+            up.pipeline().fireChannelRead(new DefaultHttpContent(Unpooled.wrappedBuffer(new byte[chunk])));
+        }
+        up.pipeline().fireChannelRead(LastHttpContent.EMPTY_LAST_CONTENT);
+        for (EmbeddedChannel channel : channels) {
+            channel.runPendingTasks();
+        }
+        Assert.assertFalse(channels.get(1).isOpen());
+        /* The others get the whole response */
+        for (int i = 0; i < 4; i++) {
+            if (i == 1) {
+                continue;
+            }
+            EmbeddedChannel channel = channels.get(i);
+            Assert.assertTrue(channel.isOpen());
+            Object msg = channel.readOutbound();
+            Assert.assertTrue(String.valueOf(msg), msg instanceof HttpResponse);
+            long bytes = 0;
+            while ((msg = channel.readOutbound()) != null) {
+                bytes += ((HttpContent) msg).content().readableBytes();
+                ReferenceCountUtil.release(msg);
+            }
+            Assert.assertEquals((long) chunk * chunks, bytes);
+        }
+    }
+
+    /**
+     * The same request on every downstream connection, the first one leads
+     */
+    private void send(String uri) {
+        for (EmbeddedChannel channel : channels) {
+            channel.writeInbound(request(uri));
+            channel.runPendingTasks();
+        }
+    }
+
+    private static FullHttpRequest request(String uri) {
+        FullHttpRequest req = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        HttpUtil.setContentLength(req, 0);
+        return req;
+    }
+
+    private static void assertResponse(HttpResponseStatus status, String body, Object msg) {
+        Assert.assertTrue(String.valueOf(msg), msg instanceof FullHttpResponse);
+        FullHttpResponse res = (FullHttpResponse) msg;
+        Assert.assertEquals(status, res.status());
+        Assert.assertEquals(body, res.content().toString(CharsetUtil.UTF_8));
+        res.release();
+    }
+
+}
@@ -0,0 +1,357 @@
+package outlinc.proxy;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.config.ConfigurationObjectFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A downstream connection in an {@link EmbeddedChannel}, its upstream connections are kept in memory
+ * and answered by the tests
+ */
+public class HttpProxyHandlerTest {
+
+    private final List<Upstream> upstreams = new ArrayList<Upstream>();
+    private EmbeddedChannel channel;
+
+    @Before
+    public void beforeEach() {
+        channel = open(new Properties());
+    }
+
+    @After
+    public void afterEach() {
+        channel.finishAndReleaseAll();
+        for (Upstream up : upstreams) {
+            up.close();
+            up.releaseAll();
+        }
+    }
+
+    @Test
+    public void test_pipelined_in_order() {
+        channel.writeInbound(request("/test/a"));
+        channel.writeInbound(request("/test/b"));
+        channel.runPendingTasks();
+        Assert.assertEquals(2, upstreams.size());
+        Upstream a = upstreams.get(0);
+        Upstream b = upstreams.get(1);
+        Assert.assertEquals("/test/a", a.request().uri());
+        Assert.assertEquals("/test/b", b.request().uri());
+        /* The second response comes first, it waits for the first one */
+        b.respond("B");
+        Assert.assertNull(channel.readOutbound());
+        a.respond("A");
+        assertResponse("A", channel.readOutbound());
+        assertResponse("B", channel.readOutbound());
+        Assert.assertNull(channel.readOutbound());
+        /* Both connections are kept alive for the next requests */
+        channel.writeInbound(request("/test/c"));
+        channel.runPendingTasks();
+        Assert.assertEquals(2, upstreams.size());
+        Upstream c = a.written.isEmpty() ? b : a;
+        Assert.assertEquals("/test/c", c.request().uri());
+        c.respond("C");
+        assertResponse("C", channel.readOutbound());
+    }
+
+    @Test
+    public void test_pipelined_failure_first() {
+        channel.writeInbound(request("/test/a"));
+        channel.writeInbound(request("/test/b"));
+        channel.runPendingTasks();
+        Upstream a = upstreams.get(0);
+        Upstream b = upstreams.get(1);
+        a.request();
+        b.request();
+        b.respond("B");
+        a.close();
+        channel.runPendingTasks();
+        /* The first exchange fails and closes the connection, the second response never overtakes it */
+        Object res = channel.readOutbound();
+        Assert.assertTrue(String.valueOf(res), res instanceof HttpResponse);
+        Assert.assertEquals(HttpResponseStatus.BAD_GATEWAY, ((HttpResponse) res).status());
+        ReferenceCountUtil.release(res);
+        Assert.assertNull(channel.readOutbound());
+        Assert.assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void test_slow_upload() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("proxy.http.streaming", "true");
+        props.setProperty("proxy.upstream.timeout.ms", "50");
+        channel.finishAndReleaseAll();
+        channel = open(props);
+        HttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/test/upload");
+        HttpUtil.setContentLength(req, 2);
+        channel.writeInbound(req);
+        channel.runPendingTasks();
+        Upstream up = upstreams.get(0);
+        Assert.assertEquals("/test/upload", up.request().uri());
+        /* The upload takes longer than the timeout, which only starts once it is written */
+        Thread.sleep(100);
+        channel.writeInbound(new DefaultHttpContent(Unpooled.copiedBuffer("a", CharsetUtil.UTF_8)));
+        channel.runPendingTasks();
+        Thread.sleep(100);
+        channel.writeInbound(new DefaultLastHttpContent(Unpooled.copiedBuffer("b", CharsetUtil.UTF_8)));
+        channel.runPendingTasks();
+        Assert.assertNull(channel.readOutbound());
+        Assert.assertTrue(up.isOpen());
+        Thread.sleep(100);
+        channel.runPendingTasks();
+        Object res = channel.readOutbound();
+        Assert.assertTrue(String.valueOf(res), res instanceof HttpResponse);
+        Assert.assertEquals(HttpResponseStatus.GATEWAY_TIMEOUT, ((HttpResponse) res).status());
+        ReferenceCountUtil.release(res);
+    }
+
+    @Test
+    public void test_streamed_upload_bounded() {
+        Properties props = new Properties();
+        props.setProperty("proxy.http.streaming", "true");
+        props.setProperty("proxy.http.streaming.buffer.kilobyte.max", "64");
+        channel.finishAndReleaseAll();
+        channel = open(props);
+        int chunk = 8 * 1024;
+        int chunks = 128;
+        HttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/test/upload");
+        HttpUtil.setContentLength(req, (long) chunk * chunks);
+        channel.writeInbound(req);
+        channel.runPendingTasks();
+        Upstream up = upstreams.get(0);
+        Assert.assertEquals("/test/upload", up.request().uri());
+        /* The upstream takes nothing, the downstream stops being read once the bound is reached */
+        up.hold(true);
+        int sent = 0;
+        while (channel.config().isAutoRead()) {
+            channel.writeInbound(new DefaultHttpContent(Unpooled.wrappedBuffer(new byte[chunk])));
+            channel.runPendingTasks();
+            sent++;
+            Assert.assertTrue(sent < chunks);
+        }
+        Assert.assertTrue(String.valueOf(up.heldBytes()), up.heldBytes() <= 64 * 1024 + chunk);
+        /* The upstream takes it all, the downstream is read again */
+        up.hold(false);
+        channel.runPendingTasks();
+        Assert.assertTrue(channel.config().isAutoRead());
+        long received = 0;
+        while (sent < chunks) {
+            channel.writeInbound(sent == chunks - 1
+                ? new DefaultLastHttpContent(Unpooled.wrappedBuffer(new byte[chunk]))
+                : new DefaultHttpContent(Unpooled.wrappedBuffer(new byte[chunk])));
+            channel.runPendingTasks();
+            sent++;
+        }
+        Object msg;
+        while ((msg = up.written.poll()) != null) {
+            received += ((HttpContent) msg).content().readableBytes();
+            ReferenceCountUtil.release(msg);
+        }
+        Assert.assertEquals((long) chunk * chunks, received);
+        up.respond("A");
+        assertResponse("A", channel.readOutbound());
+    }
+
+    @Test
+    public void test_informational() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("proxy.upstream.timeout.ms", "50");
+        channel.finishAndReleaseAll();
+        channel = open(props);
+        channel.writeInbound(request("/test/a"));
+        channel.runPendingTasks();
+        Upstream up = upstreams.get(0);
+        up.request();
+        up.pipeline().fireChannelRead(new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE));
+        Object res = channel.readOutbound();
+        Assert.assertTrue(String.valueOf(res), res instanceof HttpResponse);
+        Assert.assertEquals(HttpResponseStatus.CONTINUE, ((HttpResponse) res).status());
+        ReferenceCountUtil.release(res);
+        /* The response proper is still timed */
+        Thread.sleep(100);
+        channel.runPendingTasks();
+        res = channel.readOutbound();
+        Assert.assertTrue(String.valueOf(res), res instanceof HttpResponse);
+        Assert.assertEquals(HttpResponseStatus.GATEWAY_TIMEOUT, ((HttpResponse) res).status());
+        ReferenceCountUtil.release(res);
+    }
+
+    @Test
+    public void test_stale_connection() {
+        channel.writeInbound(request("/test/a"));
+        channel.runPendingTasks();
+        Upstream a = upstreams.get(0);
+        a.request();
+        a.respond("A");
+        assertResponse("A", channel.readOutbound());
+        /* The server closes the idle connection as it is reused, the request goes on a new one */
+        channel.writeInbound(request("/test/b"));
+        channel.runPendingTasks();
+        Assert.assertEquals(1, upstreams.size());
+        Assert.assertEquals("/test/b", a.request().uri());
+        a.close();
+        channel.runPendingTasks();
+        Assert.assertEquals(2, upstreams.size());
+        Upstream b = upstreams.get(1);
+        Assert.assertEquals("/test/b", b.request().uri());
+        b.respond("B");
+        assertResponse("B", channel.readOutbound());
+        Assert.assertTrue(channel.isOpen());
+        /* A request that can't be sent twice fails */
+        FullHttpRequest post = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/test/c",
+            Unpooled.copiedBuffer("c", CharsetUtil.UTF_8));
+        HttpUtil.setContentLength(post, 1);
+        channel.writeInbound(post);
+        channel.runPendingTasks();
+        Assert.assertEquals(2, upstreams.size());
+        Assert.assertEquals("/test/c", b.request().uri());
+        b.close();
+        channel.runPendingTasks();
+        Object res = channel.readOutbound();
+        Assert.assertTrue(String.valueOf(res), res instanceof HttpResponse);
+        Assert.assertEquals(HttpResponseStatus.BAD_GATEWAY, ((HttpResponse) res).status());
+        ReferenceCountUtil.release(res);
+        Assert.assertEquals(2, upstreams.size());
+    }
+
+    @Test
+    public void test_idle_evicted() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("proxy.upstream.pool.idle.timeout.ms", "1000");
+        channel.finishAndReleaseAll();
+        channel = open(props);
+        channel.writeInbound(request("/test/a"));
+        channel.runPendingTasks();
+        Upstream a = upstreams.get(0);
+        Assert.assertEquals("/test/a", a.request().uri());
+        a.respond("A");
+        assertResponse("A", channel.readOutbound());
+        /* Reused while fresh */
+        channel.writeInbound(request("/test/b"));
+        channel.runPendingTasks();
+        Assert.assertEquals(1, upstreams.size());
+        Assert.assertEquals("/test/b", a.request().uri());
+        a.respond("B");
+        assertResponse("B", channel.readOutbound());
+        /* Closed by the sweep once idle for the timeout, the next request opens a new one */
+        Thread.sleep(1100);
+        channel.runPendingTasks();
+        Assert.assertFalse(a.isOpen());
+        channel.writeInbound(request("/test/c"));
+        channel.runPendingTasks();
+        Assert.assertEquals(2, upstreams.size());
+        Upstream c = upstreams.get(1);
+        Assert.assertEquals("/test/c", c.request().uri());
+        c.respond("C");
+        assertResponse("C", channel.readOutbound());
+    }
+
+    @Test
+    public void test_retry_deadline() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("proxy.upstream.timeout.ms", "200");
+        props.setProperty("proxy.upstream.retry.max", "1000");
+        props.setProperty("proxy.upstream.retry.backoff.ms", "20");
+        props.setProperty("proxy.upstream.retry.backoff.max.ms", "20");
+        props.setProperty("proxy.upstream.retry.jitter", "0");
+        HttpProxyConfig config = new ConfigurationObjectFactory(props).build(HttpProxyConfig.class);
+        channel.finishAndReleaseAll();
+        channel = new EmbeddedChannel(HttpProxyHandler.newHandlers(config, new StaticBroker(Upstream.REFUSED),
+            Upstream.pools(config, upstreams), null, null, null, null, null, null, null, null, null));
+        long since = System.nanoTime();
+        channel.writeInbound(request("/test/a"));
+        Object res = null;
+        while (res == null && System.nanoTime() - since < TimeUnit.SECONDS.toNanos(5)) {
+            Thread.sleep(5);
+            channel.runPendingTasks();
+            res = channel.readOutbound();
+        }
+        /* Retried until the next one would be past the deadline, well below the maximum */
+        Assert.assertTrue(String.valueOf(res), res instanceof HttpResponse);
+        Assert.assertEquals(HttpResponseStatus.GATEWAY_TIMEOUT, ((HttpResponse) res).status());
+        ReferenceCountUtil.release(res);
+        Assert.assertTrue(System.nanoTime() - since < TimeUnit.MILLISECONDS.toNanos(1000));
+        int connects = upstreams.size();
+        Assert.assertTrue(String.valueOf(connects), connects > 1 && connects <= 11);
+        Thread.sleep(50);
+        channel.runPendingTasks();
+        Assert.assertEquals(connects, upstreams.size());
+    }
+
+    @Test
+    public void test_hedge_budget() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("proxy.upstream.hedge", "true");
+        props.setProperty("proxy.upstream.hedge.percentile", "50");
+        props.setProperty("proxy.upstream.hedge.delay.min.ms", "10");
+        /* Two requests earn one hedge */
+        props.setProperty("proxy.upstream.hedge.budget.percent", "50");
+        HttpProxyConfig config = new ConfigurationObjectFactory(props).build(HttpProxyConfig.class);
+        HttpProxyHedging hedging = new HttpProxyHedging(config);
+        for (int i = 0; i < 20; i++) {
+            hedging.record("test", 1000000L);
+        }
+        StaticBroker broker = new StaticBroker(new InetSocketAddress("127.0.0.1", 1),
+            new InetSocketAddress("127.0.0.1", 2));
+        channel.finishAndReleaseAll();
+        channel = new EmbeddedChannel(HttpProxyHandler.newHandlers(config, broker, Upstream.pools(config, upstreams),
+            null, null, null, hedging, null, null, null, null, null));
+        int hedges = 0;
+        for (int i = 0; i < 6; i++) {
+            channel.writeInbound(request("/test/" + i));
+            channel.runPendingTasks();
+            Thread.sleep(30);
+            channel.runPendingTasks();
+            /* Late, the request is sent again when the budget allows, the last one sent answers */
+            Upstream answering = null;
+            int sent = 0;
+            for (Upstream up : upstreams) {
+                if (!up.written.isEmpty()) {
+                    Assert.assertEquals("/test/" + i, up.request().uri());
+                    answering = up;
+                    sent++;
+                }
+            }
+            Assert.assertTrue(sent == 1 || sent == 2);
+            hedges += sent - 1;
+            answering.respond("R" + i);
+            assertResponse("R" + i, channel.readOutbound());
+        }
+        Assert.assertEquals(3, hedges);
+    }
+
+    private EmbeddedChannel open(Properties props) {
+        HttpProxyConfig config = new ConfigurationObjectFactory(props).build(HttpProxyConfig.class);
+        HttpProxyPool.Group pools = Upstream.pools(config, upstreams);
+        return new EmbeddedChannel(HttpProxyHandler.newHandlers(config, new StaticBroker(), pools,
+            null, null, null, null, null, null, null, null, null));
+    }
+
+    private static FullHttpRequest request(String uri) {
+        FullHttpRequest req = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        HttpUtil.setContentLength(req, 0);
+        return req;
+    }
+
+    private static void assertResponse(String body, Object msg) {
+        Assert.assertTrue(String.valueOf(msg), msg instanceof FullHttpResponse);
+        FullHttpResponse res = (FullHttpResponse) msg;
+        Assert.assertEquals(HttpResponseStatus.OK, res.status());
+        Assert.assertEquals(body, res.content().toString(CharsetUtil.UTF_8));
+        res.release();
+    }
+
+}
@@ -0,0 +1,85 @@
+package outlinc.proxy;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HttpProxyHashKeyTest {
+
+    @Test
+    public void test_header() {
+        HttpProxyHashKey key = HttpProxyHashKey.parse(" header: X-User ");
+        HttpRequest req = request("/test/x");
+        Assert.assertNull(key.of(req));
+        req.headers().set("x-user", "u1");
+        Assert.assertEquals("u1", key.of(req));
+    }
+
+    @Test
+    public void test_cookie() {
+        HttpProxyHashKey key = HttpProxyHashKey.parse("cookie:session");
+        HttpRequest req = request("/test/x");
+        Assert.assertNull(key.of(req));
+        req.headers().set(HttpHeaderNames.COOKIE, "theme=dark");
+        Assert.assertNull(key.of(req));
+        req.headers().set(HttpHeaderNames.COOKIE, "theme=dark; session=s1");
+        Assert.assertEquals("s1", key.of(req));
+        /* Cookie names are case sensitive */
+        req.headers().set(HttpHeaderNames.COOKIE, "Session=s2");
+        Assert.assertNull(key.of(req));
+    }
+
+    @Test
+    public void test_query() {
+        HttpProxyHashKey key = HttpProxyHashKey.parse("query:user");
+        Assert.assertNull(key.of(request("/test/x")));
+        Assert.assertNull(key.of(request("/test/x?users=u0")));
+        Assert.assertEquals("u1", key.of(request("/test/x?a=1&user=u1&user=u2")));
+        Assert.assertEquals("u 1", key.of(request("/test/x?user=u%201")));
+        Assert.assertEquals("", key.of(request("/test/x?user")));
+    }
+
+    @Test
+    public void test_path() {
+        HttpProxyHashKey first = HttpProxyHashKey.parse("path:1");
+        HttpProxyHashKey second = HttpProxyHashKey.parse("PATH:2");
+        Assert.assertEquals("u1", first.of(request("/test/u1")));
+        Assert.assertEquals("u1", first.of(request("/test/u1/orders/7")));
+        Assert.assertEquals("u1", first.of(request("/test/u1?x=/y/z")));
+        Assert.assertEquals("orders", second.of(request("/test/u1/orders?x=1")));
+        Assert.assertNull(first.of(request("/test/")));
+        Assert.assertNull(first.of(request("/test")));
+        Assert.assertNull(first.of(request("/test?x=/y")));
+        Assert.assertNull(second.of(request("/test/u1")));
+        Assert.assertNull(second.of(request("/test/u1?x=/y/z")));
+    }
+
+    @Test
+    public void test_uri() {
+        HttpProxyHashKey key = HttpProxyHashKey.parse("URI");
+        Assert.assertEquals("/test/u1?x=1", key.of(request("/test/u1?x=1")));
+    }
+
+    @Test
+    public void test_parse() {
+        Assert.assertNull(HttpProxyHashKey.parse(""));
+        Assert.assertNull(HttpProxyHashKey.parse("  "));
+        String[] bad = {"header", "header:", ":x", "params:x", "path:x"};
+        for (String spec : bad) {
+            try {
+                HttpProxyHashKey.parse(spec);
+                Assert.fail(spec);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    private static HttpRequest request(String uri) {
+        return new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+    }
+
+}
@@ -0,0 +1,97 @@
+package outlinc.proxy;
+
+import io.netty.channel.EventLoopGroup;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.config.ConfigurationObjectFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Properties;
+
+/**
+ * Probes of a backend on a local socket, answering the status set by the tests
+ */
+public class HttpProxyHealthTest {
+
+    private volatile int status = 503;
+    private ServerSocket server;
+    private EventLoopGroup group;
+
+    @Before
+    public void beforeEach() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread backend = new Thread(new Runnable() {
+            public void run() {
+                serve();
+            }
+        }, "health-backend");
+        backend.setDaemon(true);
+        backend.start();
+        group = HttpProxyTransport.NIO.newGroup(1, "health-test");
+    }
+
+    @After
+    public void afterEach() throws IOException {
+        group.shutdownGracefully();
+        server.close();
+    }
+
+    @Test
+    public void test_mark_down_and_up() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("proxy.health.check.path", "/health");
+        props.setProperty("proxy.health.check.interval.ms", "20");
+        props.setProperty("proxy.health.check.timeout.ms", "1000");
+        props.setProperty("proxy.health.check.unhealthy.threshold", "2");
+        HttpProxyConfig config = new ConfigurationObjectFactory(props).build(HttpProxyConfig.class);
+        StaticBroker broker = new StaticBroker(new InetSocketAddress(server.getInetAddress(), server.getLocalPort()));
+        HttpProxyHealth health = new HttpProxyHealth(config, broker, HttpProxyTransport.NIO);
+        health.watch("test", group.next(), false);
+        /* Failing probes in a row take the instance out */
+        Assert.assertTrue(await(broker, true));
+        /* The first probe succeeding again takes it back */
+        status = 200;
+        Assert.assertTrue(await(broker, false));
+    }
+
+    private static boolean await(StaticBroker broker, boolean down) throws InterruptedException {
+        long until = System.currentTimeMillis() + 5000;
+        while (broker.down.contains("test-1") != down) {
+            if (System.currentTimeMillis() > until) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private void serve() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                try {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+                    String line = in.readLine();
+                    while (line != null && line.length() > 0) {
+                        line = in.readLine();
+                    }
+                    OutputStream out = socket.getOutputStream();
+                    out.write(("HTTP/1.1 " + status + " Test\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                        .getBytes("US-ASCII"));
+                    out.flush();
+                } finally {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                /* Closed */
+            }
+        }
+    }
+
+}
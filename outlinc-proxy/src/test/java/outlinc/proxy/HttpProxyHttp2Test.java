@@ -0,0 +1,157 @@
+package outlinc.proxy;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http2.*;
+import io.netty.util.CharsetUtil;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.skife.config.ConfigurationObjectFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * HTTP/2 clients in an {@link EmbeddedChannel}, their bytes handed to the proxy connection by the tests,
+ * and the frames of upstream streams
+ */
+public class HttpProxyHttp2Test {
+
+    private final List<Upstream> upstreams = new ArrayList<Upstream>();
+    private EmbeddedChannel channel;
+    private EmbeddedChannel client;
+
+    @After
+    public void afterEach() {
+        if (client != null) {
+            client.finishAndReleaseAll();
+        }
+        channel.finishAndReleaseAll();
+        for (Upstream up : upstreams) {
+            up.close();
+            up.releaseAll();
+        }
+    }
+
+    @Test
+    public void test_prior_knowledge() {
+        Properties props = new Properties();
+        props.setProperty("proxy.http2", "true");
+        channel = open(props);
+        client = newClient();
+        /* The client starts with the connection preface, no upgrade */
+        FullHttpRequest req = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/test/a");
+        req.headers().set(HttpHeaderNames.HOST, "localhost");
+        req.headers().set(HttpConversionUtil.ExtensionHeaderNames.SCHEME.text(), HttpScheme.HTTP.name());
+        client.writeOutbound(req);
+        transfer();
+        Assert.assertEquals(1, upstreams.size());
+        Upstream up = upstreams.get(0);
+        HttpRequest proxied = up.request();
+        Assert.assertEquals("/test/a", proxied.uri());
+        Assert.assertEquals(HttpVersion.HTTP_1_1, proxied.protocolVersion());
+        Assert.assertFalse(proxied.headers().contains(HttpConversionUtil.ExtensionHeaderNames.STREAM_ID.text()));
+        up.respond("A");
+        transfer();
+        Object res = client.readInbound();
+        Assert.assertTrue(String.valueOf(res), res instanceof FullHttpResponse);
+        FullHttpResponse full = (FullHttpResponse) res;
+        Assert.assertEquals(HttpResponseStatus.OK, full.status());
+        Assert.assertEquals("A", full.content().toString(CharsetUtil.UTF_8));
+        full.release();
+    }
+
+    @Test
+    public void test_upstream_stream() {
+        channel = new EmbeddedChannel(new HttpProxyHttp2.ClientCodec());
+        FullHttpRequest req = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/test/a");
+        req.headers().set(HttpHeaderNames.HOST, "localhost:8080");
+        channel.writeOutbound(req);
+        Object frame = channel.readOutbound();
+        Assert.assertTrue(String.valueOf(frame), frame instanceof Http2HeadersFrame);
+        Http2HeadersFrame headers = (Http2HeadersFrame) frame;
+        Assert.assertEquals("GET", headers.headers().method().toString());
+        Assert.assertEquals("/test/a", headers.headers().path().toString());
+        Assert.assertEquals("localhost:8080", headers.headers().authority().toString());
+        /* Without a body the request ends with its headers */
+        Assert.assertTrue(headers.isEndStream());
+        Assert.assertNull(channel.readOutbound());
+        /* An interim response, the response, its body and trailers */
+        channel.writeInbound(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().status("100"), false));
+        channel.writeInbound(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().status("200"), false));
+        channel.writeInbound(new DefaultHttp2DataFrame(Unpooled.copiedBuffer("A", CharsetUtil.UTF_8), false));
+        channel.writeInbound(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().set("x-check", "1"), true));
+        Object res = channel.readInbound();
+        Assert.assertTrue(String.valueOf(res), res instanceof FullHttpResponse);
+        Assert.assertEquals(HttpResponseStatus.CONTINUE, ((HttpResponse) res).status());
+        ((FullHttpResponse) res).release();
+        res = channel.readInbound();
+        Assert.assertTrue(String.valueOf(res), res instanceof HttpResponse && !(res instanceof FullHttpResponse));
+        Assert.assertEquals(HttpResponseStatus.OK, ((HttpResponse) res).status());
+        Object content = channel.readInbound();
+        Assert.assertTrue(String.valueOf(content), content instanceof HttpContent);
+        Assert.assertEquals("A", ((HttpContent) content).content().toString(CharsetUtil.UTF_8));
+        ((HttpContent) content).release();
+        Object last = channel.readInbound();
+        Assert.assertTrue(String.valueOf(last), last instanceof LastHttpContent);
+        Assert.assertEquals("1", ((LastHttpContent) last).trailingHeaders().get("x-check"));
+        ((LastHttpContent) last).release();
+    }
+
+    /**
+     * Hand the bytes written by each side to the other until neither writes any more
+     */
+    private void transfer() {
+        boolean moved = true;
+        while (moved) {
+            moved = false;
+            Object msg;
+            while ((msg = client.readOutbound()) != null) {
+                channel.writeInbound(msg);
+                moved = true;
+            }
+            channel.runPendingTasks();
+            while ((msg = channel.readOutbound()) != null) {
+                client.writeInbound(msg);
+                moved = true;
+            }
+            client.runPendingTasks();
+        }
+    }
+
+    private EmbeddedChannel open(Properties props) {
+        final HttpProxyConfig config = new ConfigurationObjectFactory(props).build(HttpProxyConfig.class);
+        final HttpProxyPool.Group pools = Upstream.pools(config, upstreams);
+        final StaticBroker broker = new StaticBroker();
+        final ChannelInitializer<Channel> streamInitializer = new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                ch.pipeline().addLast(new HttpProxyHttp2.Downgrader());
+                ch.pipeline().addLast(HttpProxyHandler.newHandlers(config, broker, pools,
+                    null, null, null, null, null, null, null, null, null));
+            }
+        };
+        return new EmbeddedChannel(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                HttpProxyHttp2.initServer(ch.pipeline(), config, streamInitializer,
+                    HttpProxyHandler.newHandlers(config, broker, pools,
+                        null, null, null, null, null, null, null, null, null));
+            }
+        });
+    }
+
+    private static EmbeddedChannel newClient() {
+        Http2Connection connection = new DefaultHttp2Connection(false);
+        return new EmbeddedChannel(new HttpToHttp2ConnectionHandlerBuilder()
+            .connection(connection)
+            .frameListener(new InboundHttp2ToHttpAdapterBuilder(connection).maxContentLength(64 * 1024).build())
+            .build());
+    }
+
+}
@@ -0,0 +1,109 @@
+package outlinc.proxy;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.skife.config.ConfigurationObjectFactory;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+public class HttpProxyMetricsTest {
+
+    @Test
+    public void test_snapshot() {
+        HttpProxyMetrics metrics = metrics(new Properties());
+        HttpProxyMetrics.Meter a = metrics.meter("test", "a");
+        a.start();
+        a.record(200, TimeUnit.MILLISECONDS.toNanos(10), 5, 100);
+        a.record(204, TimeUnit.MILLISECONDS.toNanos(20), 0, 0);
+        a.record(503, TimeUnit.MILLISECONDS.toNanos(1), 0, 10);
+        metrics.meter("test", "b").record(HttpProxyMetrics.NO_STATUS, 0, 0, 0);
+        metrics.meter("other", HttpProxyMetrics.NO_INSTANCE).record(304, 0, 0, 0);
+        Map<String, HttpProxyMetrics.Snapshot> snapshots = byInstance(metrics.snapshot());
+        Assert.assertEquals(3, snapshots.size());
+        HttpProxyMetrics.Snapshot s = snapshots.get("test/a");
+        Assert.assertEquals(3, s.getRequests());
+        Assert.assertEquals(2, s.getResponses(2));
+        Assert.assertEquals(1, s.getResponses(5));
+        Assert.assertEquals(0, s.getResponses(HttpProxyMetrics.NO_STATUS));
+        Assert.assertEquals(5, s.getBytesIn());
+        Assert.assertEquals(110, s.getBytesOut());
+        Assert.assertEquals(1, s.getInflight());
+        Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(31), s.getLatencySumNanos());
+        Assert.assertEquals(3, s.getWindowRequests());
+        Assert.assertTrue(s.getLatencyMaxMicros() >= 20000);
+        Assert.assertEquals(1, snapshots.get("test/b").getResponses(HttpProxyMetrics.NO_STATUS));
+        Assert.assertEquals(1, snapshots.get("other/").getResponses(3));
+        /* The window is kept until the next one is complete */
+        a.record(200, 0, 0, 0);
+        s = byInstance(metrics.snapshot()).get("test/a");
+        Assert.assertEquals(4, s.getRequests());
+        Assert.assertEquals(3, s.getWindowRequests());
+    }
+
+    @Test
+    public void test_prometheus() {
+        HttpProxyMetrics metrics = metrics(new Properties());
+        Assert.assertTrue(metrics.prometheus().contains("# TYPE outlinc_proxy_requests_total counter\n"));
+        HttpProxyMetrics.Meter a = metrics.meter("test", "a\"1");
+        a.start();
+        a.record(200, TimeUnit.MILLISECONDS.toNanos(500), 7, 9);
+        String text = metrics.prometheus();
+        Assert.assertTrue(text, text.contains(
+            "outlinc_proxy_requests_total{service=\"test\",instance_id=\"a\\\"1\",code=\"2xx\"} 1\n"));
+        Assert.assertFalse(text, text.contains("code=\"5xx\""));
+        Assert.assertTrue(text, text.contains(
+            "outlinc_proxy_received_bytes_total{service=\"test\",instance_id=\"a\\\"1\"} 7\n"));
+        Assert.assertTrue(text, text.contains(
+            "outlinc_proxy_sent_bytes_total{service=\"test\",instance_id=\"a\\\"1\"} 9\n"));
+        Assert.assertTrue(text, text.contains(
+            "outlinc_proxy_upstream_requests_in_flight{service=\"test\",instance_id=\"a\\\"1\"} 1\n"));
+        Assert.assertTrue(text, text.contains(
+            "outlinc_proxy_request_duration_seconds_sum{service=\"test\",instance_id=\"a\\\"1\"} 0.5\n"));
+        Assert.assertTrue(text, text.contains(
+            "outlinc_proxy_request_duration_seconds_count{service=\"test\",instance_id=\"a\\\"1\"} 1\n"));
+        Assert.assertTrue(text, text.contains(
+            "outlinc_proxy_request_duration_seconds{service=\"test\",instance_id=\"a\\\"1\",quantile=\"0.99\"} 0.5"));
+    }
+
+    @Test
+    public void test_expire() throws InterruptedException {
+        Properties props = new Properties();
+        props.setProperty("proxy.metrics.expire.ms", "50");
+        HttpProxyMetrics metrics = metrics(props);
+        HttpProxyMetrics.Meter busy = metrics.meter("test", "busy");
+        busy.start();
+        metrics.meter("test", "gone").record(200, 0, 0, 0);
+        Assert.assertEquals(2, metrics.snapshot().size());
+        Thread.sleep(100);
+        /* Only the instance with a request in flight is kept */
+        List<HttpProxyMetrics.Snapshot> snapshots = metrics.snapshot();
+        Assert.assertEquals(1, snapshots.size());
+        Assert.assertEquals("busy", snapshots.get(0).getInstanceId());
+        Assert.assertFalse(metrics.prometheus().contains("instance_id=\"gone\""));
+        busy.finish();
+        busy.record(200, 0, 0, 0);
+        Assert.assertEquals(1, metrics.snapshot().size());
+        /* Counted again from zero when it comes back */
+        metrics.meter("test", "gone").record(500, 0, 0, 0);
+        HttpProxyMetrics.Snapshot gone = byInstance(metrics.snapshot()).get("test/gone");
+        Assert.assertEquals(1, gone.getRequests());
+        Assert.assertEquals(1, gone.getResponses(5));
+    }
+
+    private static HttpProxyMetrics metrics(Properties props) {
+        return new HttpProxyMetrics(new ConfigurationObjectFactory(props).build(HttpProxyConfig.class));
+    }
+
+    private static Map<String, HttpProxyMetrics.Snapshot> byInstance(List<HttpProxyMetrics.Snapshot> snapshots) {
+        Map<String, HttpProxyMetrics.Snapshot> map = new HashMap<String, HttpProxyMetrics.Snapshot>();
+        for (HttpProxyMetrics.Snapshot snapshot : snapshots) {
+            map.put(snapshot.getService() + "/" + snapshot.getInstanceId(), snapshot);
+        }
+        return map;
+    }
+
+}
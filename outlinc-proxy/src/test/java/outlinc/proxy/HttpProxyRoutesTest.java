@@ -0,0 +1,226 @@
+package outlinc.proxy;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+public class HttpProxyRoutesTest {
+
+    @Test
+    public void test_host_precedence() {
+        HttpProxyRoutes routes = routes(
+            "exact.host", "api.example.com",
+            "exact.service", "exact",
+            "domain.host", "*.example.com",
+            "domain.service", "domain",
+            "sub.host", "*.api.example.com",
+            "sub.service", "sub",
+            "any.service", "any");
+        Assert.assertEquals("exact", routes.route(request("/x", "api.example.com")));
+        Assert.assertEquals("exact", routes.route(request("/x", "API.Example.com:8081")));
+        Assert.assertEquals("sub", routes.route(request("/x", "v1.api.example.com")));
+        Assert.assertEquals("domain", routes.route(request("/x", "www.example.com")));
+        /* A domain does not match itself */
+        Assert.assertEquals("any", routes.route(request("/x", "example.com")));
+        Assert.assertEquals("any", routes.route(request("/x", "www.example.org")));
+        Assert.assertEquals("any", routes.route(request("/x", null)));
+    }
+
+    @Test
+    public void test_longest_prefix() {
+        HttpProxyRoutes routes = routes(
+            "api.path", "/api",
+            "api.service", "api",
+            "v2.path", "/api/v2",
+            "v2.service", "v2",
+            "dir.path", "/static/",
+            "dir.service", "static");
+        Assert.assertEquals("api", routes.route(request("/api", null)));
+        Assert.assertEquals("api", routes.route(request("/api/v1/users", null)));
+        Assert.assertEquals("api", routes.route(request("/api?q=1", null)));
+        Assert.assertEquals("v2", routes.route(request("/api/v2", null)));
+        Assert.assertEquals("v2", routes.route(request("/api/v2/users", null)));
+        Assert.assertEquals("api", routes.route(request("/api/v20", null)));
+        Assert.assertNull(routes.route(request("/apix", null)));
+        Assert.assertNull(routes.route(request("/apix/v2", null)));
+        Assert.assertEquals("static", routes.route(request("/static/a.css", null)));
+        Assert.assertNull(routes.route(request("/statics", null)));
+    }
+
+    @Test
+    public void test_host_before_path() {
+        HttpProxyRoutes routes = routes(
+            "host.host", "a.example.com",
+            "host.service", "host",
+            "path.path", "/api/v1",
+            "path.service", "path");
+        /* The rules of a matching host win over longer prefixes without host */
+        Assert.assertEquals("host", routes.route(request("/api/v1/x", "a.example.com")));
+        Assert.assertEquals("path", routes.route(request("/api/v1/x", "b.example.com")));
+    }
+
+    @Test
+    public void test_headers() {
+        HttpProxyRoutes routes = routes(
+            "plain.path", "/api",
+            "plain.service", "plain",
+            "canary.path", "/api",
+            "canary.header.X-Canary", "1",
+            "canary.service", "canary",
+            "any.path", "/api",
+            "any.header.x-tenant", "*",
+            "any.header.x-canary", "*",
+            "any.service", "tenant");
+        HttpRequest req = request("/api/x", null);
+        Assert.assertEquals("plain", routes.route(req));
+        req.headers().set("x-canary", "1");
+        Assert.assertEquals("canary", routes.route(req));
+        req.headers().set("x-canary", "2");
+        Assert.assertEquals("plain", routes.route(req));
+        req.headers().set("x-tenant", "t");
+        Assert.assertEquals("tenant", routes.route(req));
+    }
+
+    @Test
+    public void test_fallback() {
+        Assert.assertNull(HttpProxyRoutes.parse(new Properties()));
+        HttpProxyRoutes routes = routes(
+            "host.host", "a.example.com",
+            "host.path", "/api",
+            "host.service", "host");
+        HttpRequest req = request("/echo/x?y=1", "a.example.com");
+        Assert.assertNull(routes.route(req));
+        Assert.assertEquals("/echo/x?y=1", req.uri());
+        Assert.assertNull(routes.route(request("/api", "b.example.com")));
+        routes = routes(
+            "host.host", "a.example.com",
+            "host.path", "/api",
+            "host.service", "host",
+            "default.service", "default");
+        Assert.assertEquals("default", routes.route(request("/echo/x", "a.example.com")));
+    }
+
+    @Test
+    public void test_rewrite() {
+        HttpProxyRoutes routes = routes(
+            "api.path", "/api",
+            "api.rewrite", "/v1",
+            "api.service", "api",
+            "strip.path", "/strip",
+            "strip.rewrite", "",
+            "strip.service", "strip",
+            "keep.path", "/keep",
+            "keep.service", "keep");
+        HttpRequest req = request("/api/users/7", null);
+        Assert.assertEquals("api", routes.route(req));
+        Assert.assertEquals("/v1/users/7", req.uri());
+        req = request("/api/users?id=7&x", null);
+        Assert.assertEquals("api", routes.route(req));
+        Assert.assertEquals("/v1/users?id=7&x", req.uri());
+        req = request("/api?id=7", null);
+        Assert.assertEquals("api", routes.route(req));
+        Assert.assertEquals("/v1?id=7", req.uri());
+        req = request("/strip/users?id=7", null);
+        Assert.assertEquals("strip", routes.route(req));
+        Assert.assertEquals("/users?id=7", req.uri());
+        req = request("/strip", null);
+        Assert.assertEquals("strip", routes.route(req));
+        Assert.assertEquals("/", req.uri());
+        req = request("/keep/users?id=7", null);
+        Assert.assertEquals("keep", routes.route(req));
+        Assert.assertEquals("/keep/users?id=7", req.uri());
+    }
+
+    @Test
+    public void test_load() throws Exception {
+        File file = File.createTempFile("outlinc-routes", ".properties");
+        try {
+            Properties more = new Properties();
+            more.setProperty("proxy.route.file.path", "/file");
+            more.setProperty("proxy.route.file.service", "file");
+            /* Overrides the settings */
+            more.setProperty("proxy.route.inline.service", "replaced");
+            OutputStream out = new FileOutputStream(file);
+            more.store(out, null);
+            out.close();
+            Properties props = new Properties();
+            props.setProperty("proxy.http.port", "8081");
+            props.setProperty("proxy.route.inline.path", "/inline");
+            props.setProperty("proxy.route.inline.service", "inline");
+            Assert.assertNull(HttpProxyRoutes.load(new Properties(), ""));
+            HttpProxyRoutes routes = HttpProxyRoutes.load(props, null);
+            Assert.assertEquals("inline", routes.route(request("/inline/x", null)));
+            Assert.assertNull(routes.route(request("/file/x", null)));
+            routes = HttpProxyRoutes.load(props, file.getPath());
+            Assert.assertEquals("replaced", routes.route(request("/inline/x", null)));
+            Assert.assertEquals("file", routes.route(request("/file/x", null)));
+        } finally {
+            file.delete();
+        }
+        try {
+            HttpProxyRoutes.load(new Properties(), file.getPath());
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void test_bad_rules() {
+        String[][] bad = {
+            {"nothing.path", "/x"},
+            {"x.service", "x", "x.path", "api"},
+            {"x.service", "x", "x.path", "/api?q"},
+            {"x.service", "x", "x.host", "*"},
+            {"x.service", "x", "x.host", "a.*.com"},
+            {"x.service", "x", "x.rewrite", "v1"},
+            {"x.service", "x", "x.port", "80"},
+        };
+        for (String[] rules : bad) {
+            try {
+                routes(rules);
+                Assert.fail(rules[0]);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void test_service_name() {
+        Assert.assertNull(HttpProxyRoutes.serviceName(""));
+        Assert.assertNull(HttpProxyRoutes.serviceName("/"));
+        Assert.assertNull(HttpProxyRoutes.serviceName("//x"));
+        Assert.assertEquals("test", HttpProxyRoutes.serviceName("/test"));
+        Assert.assertEquals("test", HttpProxyRoutes.serviceName("/test/a/b?q=1"));
+        Assert.assertEquals("tes", HttpProxyRoutes.serviceName("/tes/t"));
+        /* The same instance for every request of a service */
+        String name = HttpProxyRoutes.serviceName("/orders/1");
+        Assert.assertSame(name, HttpProxyRoutes.serviceName("/orders"));
+        Assert.assertSame(name, HttpProxyRoutes.serviceName("/orders/2"));
+    }
+
+    private static HttpProxyRoutes routes(String... keyValues) {
+        Properties props = new Properties();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            props.setProperty("proxy.route." + keyValues[i], keyValues[i + 1]);
+        }
+        return HttpProxyRoutes.parse(props);
+    }
+
+    private static HttpRequest request(String uri, String host) {
+        HttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        if (host != null) {
+            req.headers().set(HttpHeaderNames.HOST, host);
+        }
+        return req;
+    }
+
+}
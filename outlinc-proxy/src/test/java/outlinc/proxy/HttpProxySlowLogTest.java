@@ -0,0 +1,59 @@
+package outlinc.proxy;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.Assert;
+import org.junit.Test;
+import org.skife.config.ConfigurationObjectFactory;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+public class HttpProxySlowLogTest {
+
+    @Test
+    public void test_threshold() {
+        HttpProxySlowLog slowLog = slowLog(4);
+        long now = System.nanoTime();
+        slowLog.offer(exchange("/fast", now), 0, 200, now + TimeUnit.MILLISECONDS.toNanos(99));
+        Assert.assertEquals("", slowLog.dump());
+        HttpProxyExchange ex = exchange("/slow", now);
+        ex.decoded = now + TimeUnit.MILLISECONDS.toNanos(1);
+        ex.lookup = ex.decoded;
+        ex.looked = now + TimeUnit.MILLISECONDS.toNanos(2);
+        slowLog.offer(ex, now - TimeUnit.MILLISECONDS.toNanos(5), 504, now + TimeUnit.MILLISECONDS.toNanos(150));
+        String dump = slowLog.dump();
+        Assert.assertTrue(dump, dump.contains(" 150.000ms GET /slow 504 accept=5.000 decode=1.000 lookup=1.000\n"));
+        /* Phases not reached are left out */
+        Assert.assertFalse(dump, dump.contains("connect="));
+    }
+
+    @Test
+    public void test_wrap() {
+        HttpProxySlowLog slowLog = slowLog(6);
+        long now = System.nanoTime();
+        for (int i = 0; i < 7; i++) {
+            slowLog.offer(exchange("/" + i, now), 0, 200, now + TimeUnit.SECONDS.toNanos(1));
+        }
+        /* Rounded down to 4 slots, the latest requests first */
+        String[] lines = slowLog.dump().split("\n");
+        Assert.assertEquals(4, lines.length);
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(lines[i], lines[i].contains(" GET /" + (6 - i) + " 200"));
+        }
+    }
+
+    private static HttpProxySlowLog slowLog(int size) {
+        Properties props = new Properties();
+        props.setProperty("proxy.slow.threshold.ms", "100");
+        props.setProperty("proxy.slow.buffer.size", String.valueOf(size));
+        return new HttpProxySlowLog(new ConfigurationObjectFactory(props).build(HttpProxyConfig.class));
+    }
+
+    private static HttpProxyExchange exchange(String uri, long since) {
+        return new HttpProxyExchange(null, new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri),
+            true, since, since);
+    }
+
+}
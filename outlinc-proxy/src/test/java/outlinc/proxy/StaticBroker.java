@@ -0,0 +1,126 @@
+package outlinc.proxy;
+
+import org.skife.config.ConfigurationObjectFactory;
+import outlinc.discovery.*;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The same instances for every service, produced in turn, by default one at an address never connected to
+ */
+final class StaticBroker implements ServiceBroker<String>, ServiceProducer<String> {
+    private final List<ServiceEntity<String>> entities = new ArrayList<ServiceEntity<String>>();
+    private final AtomicInteger next = new AtomicInteger();
+    /**
+     * Ids of the instances marked down
+     */
+    final Set<String> down = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    StaticBroker() {
+        this(new InetSocketAddress("127.0.0.1", 1));
+    }
+
+    /**
+     * @param addresses of the instances test-1, test-2...
+     */
+    StaticBroker(InetSocketAddress... addresses) {
+        for (InetSocketAddress address : addresses) {
+            entities.add(new ServiceEntity.Builder<String>()
+                .instanceId("test-" + (entities.size() + 1))
+                .name("test")
+                .host(address.getAddress().getHostAddress())
+                .port(address.getPort())
+                .socketAddress(address)
+                .build());
+        }
+    }
+
+    @Override
+    public ServiceRegistry<String> registry() {
+        return null;
+    }
+
+    @Override
+    public ServiceProducer<String> producer() {
+        return this;
+    }
+
+    @Override
+    public CharSequence dumpInstanceAll() {
+        return "";
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public CuratorConfig getConfig() {
+        return new ConfigurationObjectFactory(new Properties()).build(CuratorConfig.class);
+    }
+
+    @Override
+    public ServiceEntity<String> produce(String serviceName) {
+        return entities.get((next.getAndIncrement() & Integer.MAX_VALUE) % entities.size());
+    }
+
+    @Override
+    public ServiceEntity<String> produce(String serviceName, Strategy strategy) {
+        return produce(serviceName);
+    }
+
+    @Override
+    public ServiceEntity<String> produce(String serviceName, Strategy strategy, String hashKey) {
+        return produce(serviceName);
+    }
+
+    @Override
+    public boolean reportError(String instanceId) {
+        return false;
+    }
+
+    @Override
+    public boolean reportError(ServiceEntity<String> entity) {
+        return false;
+    }
+
+    @Override
+    public List<ServiceEntity<String>> produceAll(String serviceName) {
+        return entities;
+    }
+
+    @Override
+    public boolean isStale(String serviceName) {
+        return false;
+    }
+
+    @Override
+    public boolean markDown(String instanceId) {
+        return down.add(instanceId);
+    }
+
+    @Override
+    public boolean markUp(String instanceId) {
+        return down.remove(instanceId);
+    }
+
+    @Override
+    public void reportStart(ServiceEntity<String> entity) {
+    }
+
+    @Override
+    public void reportFinish(ServiceEntity<String> entity, long latencyNanos) {
+    }
+
+    @Override
+    public void reportFinish(ServiceEntity<String> entity, long latencyNanos, boolean failed) {
+    }
+
+}
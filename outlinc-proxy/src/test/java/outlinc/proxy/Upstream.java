@@ -0,0 +1,214 @@
+package outlinc.proxy;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.resolver.AddressResolver;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.resolver.NoopAddressResolver;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+import org.junit.Assert;
+
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Upstream connection kept in memory on the loop of an {@link EmbeddedChannel}, what is written
+ * to it is kept and its responses are given by the tests
+ */
+final class Upstream extends AbstractChannel {
+
+    private static final ChannelMetadata METADATA = new ChannelMetadata(false);
+    /**
+     * Address connects to are refused
+     */
+    static final InetSocketAddress REFUSED = new InetSocketAddress("127.0.0.1", 9);
+    final Queue<Object> written = new ArrayDeque<Object>();
+    private final ChannelConfig config = new DefaultChannelConfig(this);
+    private boolean open = true;
+    private boolean active;
+    /**
+     * Whether writes are held in the outbound buffer, as by a peer not reading
+     */
+    private boolean held;
+
+    private Upstream() {
+        super(null);
+    }
+
+    /**
+     * Pools of upstream connections in memory, added to a list as they are opened
+     */
+    static HttpProxyPool.Group pools(HttpProxyConfig config, final List<Upstream> opened) {
+        Bootstrap bootstrap = new Bootstrap()
+            .channelFactory(new ChannelFactory<Channel>() {
+                @Override
+                public Channel newChannel() {
+                    Upstream ch = new Upstream();
+                    opened.add(ch);
+                    return ch;
+                }
+            })
+            .resolver(new AddressResolverGroup<SocketAddress>() {
+                /**
+                 * Not kept by loop, the loop of an EmbeddedChannel never terminates
+                 */
+                @Override
+                public AddressResolver<SocketAddress> getResolver(EventExecutor executor) {
+                    return newResolver(executor);
+                }
+
+                @Override
+                protected AddressResolver<SocketAddress> newResolver(EventExecutor executor) {
+                    return new NoopAddressResolver(executor);
+                }
+            })
+            .handler(new ChannelInitializer<Channel>() {
+                @Override
+                protected void initChannel(Channel ch) throws Exception {
+                    ch.pipeline().addLast(new HttpProxyUpstream(HttpProxyPool.of(ch)));
+                }
+            });
+        return new HttpProxyPool.Group(config, bootstrap, new Bootstrap(), null);
+    }
+
+    /**
+     * @return the request written first and not read yet
+     */
+    HttpRequest request() {
+        Object msg = written.poll();
+        Assert.assertTrue(String.valueOf(msg), msg instanceof HttpRequest);
+        ReferenceCountUtil.release(msg);
+        return (HttpRequest) msg;
+    }
+
+    /**
+     * Respond 200 with a body
+     *
+     * @return the response, released once written downstream
+     */
+    FullHttpResponse respond(String body) {
+        FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+            Unpooled.copiedBuffer(body, CharsetUtil.UTF_8));
+        HttpUtil.setContentLength(res, res.content().readableBytes());
+        pipeline().fireChannelRead(res);
+        return res;
+    }
+
+    /**
+     * Hold the writes or take them all
+     */
+    void hold(boolean held) {
+        this.held = held;
+        if (!held) {
+            flush();
+        }
+    }
+
+    /**
+     * @return bytes written and held in the outbound buffer
+     */
+    long heldBytes() {
+        ChannelOutboundBuffer out = unsafe().outboundBuffer();
+        return out == null ? 0 : out.totalPendingWriteBytes();
+    }
+
+    void releaseAll() {
+        Object msg;
+        while ((msg = written.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    @Override
+    protected AbstractUnsafe newUnsafe() {
+        return new AbstractUnsafe() {
+            @Override
+            public void connect(SocketAddress remote, SocketAddress local, ChannelPromise promise) {
+                if (REFUSED.equals(remote)) {
+                    promise.setFailure(new ConnectException("Connection refused: " + remote));
+                    close(voidPromise());
+                    return;
+                }
+                active = true;
+                promise.setSuccess();
+                pipeline().fireChannelActive();
+            }
+        };
+    }
+
+    @Override
+    protected boolean isCompatible(EventLoop loop) {
+        return true;
+    }
+
+    @Override
+    protected SocketAddress localAddress0() {
+        return null;
+    }
+
+    @Override
+    protected SocketAddress remoteAddress0() {
+        return null;
+    }
+
+    @Override
+    protected void doBind(SocketAddress local) {
+    }
+
+    @Override
+    protected void doDisconnect() {
+        doClose();
+    }
+
+    @Override
+    protected void doClose() {
+        open = false;
+        active = false;
+    }
+
+    @Override
+    protected void doBeginRead() {
+    }
+
+    @Override
+    protected void doWrite(ChannelOutboundBuffer in) {
+        if (held) {
+            return;
+        }
+        Object msg;
+        while ((msg = in.current()) != null) {
+            written.add(ReferenceCountUtil.retain(msg));
+            in.remove();
+        }
+    }
+
+    @Override
+    public ChannelConfig config() {
+        return config;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isActive() {
+        return active;
+    }
+
+    @Override
+    public ChannelMetadata metadata() {
+        return METADATA;
+    }
+
+}